@@ -1,9 +1,11 @@
 package com.eeg_project;
 
+import com.eeg_project.components.acquisition.AcquisitionModule;
 import com.eeg_project.components.managers.FilterGraphManager;
 import com.eeg_project.components.managers.EEGGraphManager;
 import com.eeg_project.components.managers.PSDGraphManager;
 import com.eeg_project.components.connector.ConnectorModule;
+import com.eeg_project.components.latency.LatencyModule;
 import com.facebook.react.ReactPackage;
 import com.facebook.react.bridge.JavaScriptModule;
 import com.facebook.react.bridge.NativeModule;
@@ -19,7 +21,9 @@ public class EEGPackage implements ReactPackage {
 	// Register Native Modules to JS
 	public List<NativeModule> createNativeModules(ReactApplicationContext reactApplicationContext) {
 		return Arrays.<NativeModule>asList(
-				new ConnectorModule(reactApplicationContext)
+				new ConnectorModule(reactApplicationContext),
+				new LatencyModule(reactApplicationContext),
+				new AcquisitionModule(reactApplicationContext)
 		);
 	}
 
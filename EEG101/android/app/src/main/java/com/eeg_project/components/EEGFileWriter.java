@@ -4,21 +4,27 @@ import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
 import android.os.Environment;
-import android.os.SystemClock;
 import android.util.Log;
 import android.widget.Toast;
 
-import java.io.BufferedWriter;
+import com.choosemuse.libmuse.Muse;
+import com.choosemuse.libmuse.MuseConfiguration;
+import com.eeg_project.components.recording.BinaryRecordingWriter;
+import com.eeg_project.components.recording.CompressedRecordingWriter;
+import com.eeg_project.components.recording.CsvRecordingWriter;
+import com.eeg_project.components.recording.RecordingHeader;
+import com.eeg_project.components.recording.RecordingWriter;
+import com.eeg_project.components.recording.StreamingRecorder;
+
 import java.io.File;
 import java.io.FileOutputStream;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.util.Arrays;
 
 /**
  * Writes EEG data (either raw/filtered EEG or computed FFT) into a csv. Presents a toast when
  * recording is started and starts sharing intent for sending data to email when recording is
- * completed
+ * completed. Rows are streamed to the file by a StreamingRecorder while recording, so memory use
+ * does not grow with the length of the session
  */
 
 public class EEGFileWriter {
@@ -26,10 +32,22 @@ public class EEGFileWriter {
     // ---------------------------------------------------------------------------
     // Variables
 
+    private static final String TAG = "EEGFileWriter";
+    // Rows that can wait for the disk before new ones are dropped
+    private static final int EEG_QUEUE_CAPACITY = 1024;
+    private static final int PSD_QUEUE_CAPACITY = 256;
+    // Resolution of compressed recordings: uV for EEG, log10 units for PSD
+    private static final double EEG_QUANTIZATION_STEP = 0.01;
+    private static final double PSD_QUANTIZATION_STEP = 0.0001;
+
+    // Muse electrodes, in the order of the EEG packets
+    public static final String[] MUSE_CHANNELS = {"TP9", "AF7", "AF8", "TP10"};
+
     private Context context;
-    StringBuilder builder;
     int fileNum = 1;
-    public FileWriter fileWriter;
+    private File file;
+    // Set and cleared on the UI thread, read by the graph's data thread
+    private volatile StreamingRecorder recorder;
     private static boolean isRecording;
 
     // ---------------------------------------------------------------------------
@@ -44,52 +62,88 @@ public class EEGFileWriter {
     // Internal methods
 
     public void initFile(String title) {
-        builder = new StringBuilder();
+        StringBuilder builder = new StringBuilder();
         builder.append("Timestamp (ms),");
+        int nbColumns;
         if(title.contains("Power")) {
+            nbColumns = 128;
             for(int i=1; i<129; i++) {
                 builder.append(i + " hz,");
             }
-            builder.append("\n");
         } else {
+            nbColumns = 4;
             for(int i=1; i<5; i++) {
                 builder.append("Electrode " + i +",");
             }
-            builder.append("\n");
         }
-        makeToast(title);
+
+        try {
+            file = new File(context.getExternalFilesDir(Environment.DIRECTORY_DOWNLOADS), title + fileNum + ".csv");
+            startRecorder(new CsvRecordingWriter(new FileOutputStream(file), builder.toString()), nbColumns);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not create " + file, e);
+        }
+    }
+
+    // Records into a compact binary file described by header instead of a csv (see
+    // BinaryRecordingWriter), or into a losslessly compressed one (see CompressedRecordingWriter).
+    // BinaryRecordingReader and CompressedRecordingReader convert these files back to csv
+    public void initFile(String title, RecordingHeader header, boolean compressed) {
+        try {
+            File dir = context.getExternalFilesDir(Environment.DIRECTORY_DOWNLOADS);
+            RecordingWriter writer;
+            if (compressed) {
+                file = new File(dir, title + fileNum + ".eegz");
+                double step = header.getFreqBins().length > 0 ? PSD_QUANTIZATION_STEP : EEG_QUANTIZATION_STEP;
+                writer = new CompressedRecordingWriter(new FileOutputStream(file), header, step);
+            } else {
+                file = new File(dir, title + fileNum + ".eeg");
+                writer = new BinaryRecordingWriter(new FileOutputStream(file), header);
+            }
+            startRecorder(writer, header.getNbColumns());
+        } catch (IOException e) {
+            Log.e(TAG, "Could not create " + file, e);
+        }
+    }
+
+    private void startRecorder(RecordingWriter writer, int nbColumns) {
+        recorder = new StreamingRecorder(writer, nbColumns, nbColumns > 4 ? PSD_QUEUE_CAPACITY : EEG_QUEUE_CAPACITY);
+        recorder.start();
+        makeToast(file.getName());
         isRecording = true;
     }
 
     public void addDataToFile(double[] data) {
-        // Append timestamp
-        Long tsLong = System.currentTimeMillis();
-        builder.append(tsLong.toString() +",");
-        for (int j = 0; j < data.length; j++) {
-            builder.append(Double.toString(data[j]));
-            if (j < data.length - 1) {
-                builder.append(",");
-            }
+        // Queues the row with the current timestamp; it is written by the recorder's thread.
+        // recorder is read once: writeFile() may clear it meanwhile
+        StreamingRecorder current = recorder;
+        if (current != null) {
+            current.addRow(data);
         }
-        builder.append("\n");
     }
 
     public void writeFile(String title) {
+        StreamingRecorder current = recorder;
+        if (current == null) {
+            return;
+        }
+        recorder = null;
         try {
-            final File dir = context.getExternalFilesDir(Environment.DIRECTORY_DOWNLOADS);
-            final File file = new File(dir, title + fileNum + ".csv");
-            fileWriter = new java.io.FileWriter(file);
-            BufferedWriter bufferedWriter = new BufferedWriter(fileWriter);
-            bufferedWriter.write(builder.toString());
-            bufferedWriter.close();
+            // Writes the rows still queued and closes the file
+            current.stop();
+            if (current.getDroppedRows() > 0) {
+                Log.w(TAG, current.getDroppedRows() + " rows were dropped from " + file.getName());
+            }
             sendData(file);
             fileNum ++;
             isRecording = false;
-        } catch (IOException e) {}
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write " + file, e);
+        }
     }
 
-    public void makeToast(String title) {
-        CharSequence toastText = "Recording data in " + title+fileNum+".csv";
+    public void makeToast(String fileName) {
+        CharSequence toastText = "Recording data in " + fileName;
         Toast toast = Toast.makeText(context, toastText, Toast.LENGTH_SHORT);
         toast.show();
     }
@@ -97,7 +151,7 @@ public class EEGFileWriter {
     public void sendData(File dataCSV) {
         Intent sendIntent = new Intent();
         sendIntent.setAction(Intent.ACTION_SEND);
-        sendIntent.setType("application/csv");
+        sendIntent.setType(dataCSV.getName().endsWith(".csv") ? "application/csv" : "application/octet-stream");
         sendIntent.putExtra(Intent.EXTRA_STREAM, Uri.fromFile(dataCSV));
         context.startActivity(Intent.createChooser(sendIntent, "Export data to..."));
     }
@@ -105,4 +159,13 @@ public class EEGFileWriter {
     public boolean isRecording() {
         return isRecording;
     }
+
+    // Model of the headband for recording headers, e.g. "MU_02"
+    public static String getDeviceModel(Muse muse) {
+        MuseConfiguration configuration = muse.getMuseConfiguration();
+        if (configuration != null && configuration.getModel() != null) {
+            return configuration.getModel().name();
+        }
+        return muse.isLowEnergy() ? "MU_02" : "MU_01";
+    }
 }
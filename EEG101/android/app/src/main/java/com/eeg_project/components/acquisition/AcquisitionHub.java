@@ -0,0 +1,200 @@
+package com.eeg_project.components.acquisition;
+
+import com.choosemuse.libmuse.Eeg;
+import com.choosemuse.libmuse.Muse;
+import com.choosemuse.libmuse.MuseArtifactPacket;
+import com.choosemuse.libmuse.MuseDataListener;
+import com.choosemuse.libmuse.MuseDataPacket;
+import com.choosemuse.libmuse.MuseDataPacketType;
+import com.eeg_project.components.replay.SampleListener;
+import com.eeg_project.components.signal.CircularBuffer;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+Single entry point of the EEG stream, shared by the graphs, recorders and analytics
+
+The hub registers one MuseDataListener on the connected Muse (attach(), called by ConnectorModule),
+decodes each EEG packet once and stores its 4 channel values, stamped with System.nanoTime(), in one
+shared CircularBuffer. Every consumer subscribe()s and gets its own Subscription, i.e. its own cursor
+on that buffer: it reads every sample exactly once, at its own pace and on its own thread. The Muse
+listener does the same work whatever the number of consumers, so adding one only costs its own
+processing, and a slow consumer never holds the others back.
+
+The buffer has a single producer: the Muse listener, or a ReplaySource feeding receiveSample()
+while no headband is attached. ReplaySource refuses to start into the hub while a Muse is attached,
+and if one is attached during a replay, receiveSample() ignores the replayed samples from then on
+(they are counted, getIgnoredSamples()). A consumer that falls more than BUFFER_LENGTH samples behind loses
+the oldest ones, which are counted (Subscription.getDropped()).
+*/
+public final class AcquisitionHub implements SampleListener {
+
+    // ------------------------------------------------------------------------
+    // Variables
+
+    public static final int NB_CHANNELS = 4;
+    // 4 s at 256 Hz: PSDGraph needs the last 256 samples, the rest is slack for slow consumers
+    public static final int BUFFER_LENGTH = 1024;
+
+    private static AcquisitionHub instance;
+
+    private final CircularBuffer buffer = new CircularBuffer(BUFFER_LENGTH, NB_CHANNELS);
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+    private final DataListener dataListener = new DataListener();
+    private Muse muse;
+    // Read at every replayed sample
+    private volatile boolean attached;
+    private final AtomicLong ignoredSamples = new AtomicLong();
+
+    // ------------------------------------------------------------------------
+    // Constructor
+
+    private AcquisitionHub() {
+    }
+
+    public static synchronized AcquisitionHub getInstance() {
+        if (instance == null) {
+            instance = new AcquisitionHub();
+        }
+        return instance;
+    }
+
+    // ------------------------------------------------------------------------
+    // Methods
+
+    // Streams the EEG of newMuse into the hub, replacing the previously attached Muse. Attaching the
+    // same Muse again registers the listener again, as connecting clears a Muse's listeners
+    public synchronized void attach(Muse newMuse) {
+        detach();
+        newMuse.registerDataListener(dataListener, MuseDataPacketType.EEG);
+        muse = newMuse;
+        attached = true;
+    }
+
+    public synchronized void detach() {
+        if (muse != null) {
+            muse.unregisterDataListener(dataListener, MuseDataPacketType.EEG);
+            muse = null;
+            attached = false;
+        }
+    }
+
+    public synchronized boolean isAttached() {
+        return muse != null;
+    }
+
+    // New consumer, which will read the samples received from now on. `name` identifies it in
+    // AcquisitionModule's status
+    public Subscription subscribe(String name) {
+        Subscription subscription = new Subscription(name, buffer);
+        subscriptions.add(subscription);
+        return subscription;
+    }
+
+    public void unsubscribe(Subscription subscription) {
+        subscriptions.remove(subscription);
+    }
+
+    public List<Subscription> getSubscriptions() {
+        return Collections.unmodifiableList(subscriptions);
+    }
+
+    // Number of samples received since the app started
+    public long getNbSamples() {
+        return buffer.getSequence();
+    }
+
+    // Called by a ReplaySource for every sample. Ignored while a Muse is attached, which is then the
+    // buffer's only producer
+    @Override
+    public void receiveSample(double[] sample) {
+        if (attached) {
+            ignoredSamples.incrementAndGet();
+            return;
+        }
+        buffer.update(sample, System.nanoTime());
+    }
+
+    // Replayed samples ignored because a Muse was attached
+    public long getIgnoredSamples() {
+        return ignoredSamples.get();
+    }
+
+    // ------------------------------------------------------------------------
+    // Listener
+
+    // Decodes the EEG packets of the attached Muse, which arrive around 220hz (256hz for Muse 2016)
+    private final class DataListener extends MuseDataListener {
+        private final double[] sample = new double[NB_CHANNELS];
+
+        @Override
+        public void receiveMuseDataPacket(final MuseDataPacket p, final Muse muse) {
+            sample[0] = p.getEegChannelValue(Eeg.EEG1);
+            sample[1] = p.getEegChannelValue(Eeg.EEG2);
+            sample[2] = p.getEegChannelValue(Eeg.EEG3);
+            sample[3] = p.getEegChannelValue(Eeg.EEG4);
+            buffer.update(sample, System.nanoTime());
+        }
+
+        @Override
+        public void receiveMuseArtifactPacket(final MuseArtifactPacket p, final Muse muse) {
+            // Artifacts are not used for now
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // Subscription
+
+    // One consumer's read position in the hub's buffer. A subscription must only be read from one
+    // thread at a time
+    public static final class Subscription {
+        private final String name;
+        private final CircularBuffer buffer;
+        private final CircularBuffer.Cursor cursor;
+
+        private Subscription(String name, CircularBuffer buffer) {
+            this.name = name;
+            this.buffer = buffer;
+            cursor = buffer.newCursor();
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        // Blocks until nbSamples samples are waiting to be read, or `timeout` ms have elapsed.
+        // Returns false on timeout
+        public boolean await(int nbSamples, long timeout) throws InterruptedException {
+            return buffer.awaitPts(cursor, nbSamples, timeout);
+        }
+
+        // Copies the samples received since the last read into dst[NB_CHANNELS][maxSamples], oldest
+        // first, and returns how many were copied (see CircularBuffer.readSince())
+        public int read(double[][] dst) {
+            return buffer.readSince(cursor, dst);
+        }
+
+        // Ingest time (System.nanoTime()) of the last sample read, 0 if it is no longer in the buffer
+        public long getLastTimestamp() {
+            return buffer.getTimestamp(cursor.getPosition() - 1);
+        }
+
+        // Number of samples received since the last read. Beyond BUFFER_LENGTH, the oldest are lost
+        public int getPending() {
+            return buffer.getPts(cursor);
+        }
+
+        // Number of samples lost because this consumer fell more than BUFFER_LENGTH samples behind
+        public long getDropped() {
+            return cursor.getDropped();
+        }
+
+        // The whole shared buffer, e.g. to take the latest window of samples. Must not be cleared
+        public CircularBuffer getBuffer() {
+            return buffer;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.eeg_project.components.acquisition;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.Promise;
+import com.facebook.react.bridge.ReactApplicationContext;
+import com.facebook.react.bridge.ReactContextBaseJavaModule;
+import com.facebook.react.bridge.ReactMethod;
+import com.facebook.react.bridge.WritableMap;
+
+/*
+Exposes the state of the AcquisitionHub to JS
+
+getStatus() resolves to whether a Muse is streaming into the hub, the number of samples received,
+and the backlog of every consumer, e.g.
+{"attached": true, "samples": 51200, "subscribers": {"Raw_EEG": {"pending": 2, "dropped": 0}, ...}}
+*/
+public class AcquisitionModule extends ReactContextBaseJavaModule {
+
+    // ---------------------------------------------------------
+    // Constructor
+    public AcquisitionModule(ReactApplicationContext reactContext) {
+        super(reactContext);
+    }
+
+    // ---------------------------------------------------------
+    // React Native Module methods
+    // Required by ReactContextBaseJavaModule
+    @Override
+    public String getName() {
+        return "Acquisition";
+    }
+
+    // ------------------------------------------------------------
+    // Bridged methods
+
+    @ReactMethod
+    public void getStatus(Promise promise) {
+        AcquisitionHub hub = AcquisitionHub.getInstance();
+        WritableMap subscribers = Arguments.createMap();
+        for (AcquisitionHub.Subscription subscription : hub.getSubscriptions()) {
+            WritableMap stats = Arguments.createMap();
+            stats.putInt("pending", subscription.getPending());
+            stats.putDouble("dropped", subscription.getDropped());
+            subscribers.putMap(subscription.getName(), stats);
+        }
+
+        WritableMap status = Arguments.createMap();
+        status.putBoolean("attached", hub.isAttached());
+        status.putDouble("samples", hub.getNbSamples());
+        status.putMap("subscribers", subscribers);
+        promise.resolve(status);
+    }
+}
@@ -11,6 +11,7 @@ import com.choosemuse.libmuse.MuseConnectionPacket;
 import com.choosemuse.libmuse.MuseListener;
 import com.choosemuse.libmuse.MuseManagerAndroid;
 import com.eeg_project.MainApplication;
+import com.eeg_project.components.acquisition.AcquisitionHub;
 import com.facebook.react.bridge.Arguments;
 import com.facebook.react.bridge.Promise;
 import com.facebook.react.bridge.ReactApplicationContext;
@@ -138,6 +139,9 @@ public class ConnectorModule extends ReactContextBaseJavaModule {
         // TODO: consider putting this on another thread or in a service
         connectionListener = new ConnectionListener();
         appState.connectedMuse.registerConnectionListener(connectionListener);
+
+        // Stream the Muse's EEG into the hub, which every graph reads from
+        AcquisitionHub.getInstance().attach(appState.connectedMuse);
     }
 
     // ------------------------------------------------------------------------------
@@ -6,29 +6,41 @@ import com.androidplot.Plot;
 import com.androidplot.PlotListener;
 import com.androidplot.xy.XYSeries;
 
-import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.NoSuchElementException;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 
 // AndroidPlot class that stores dataSource to be plotted. getX() and getY() are called by XYPlot to to draw graph
-// This implementation only stores Y values, with X values implicitily determined by the index of the dataSource in the LinkedList
+// This implementation only stores Y values, with X values implicitily determined by the index of the dataSource in the series
+// Values are kept in a fixed-capacity ring of doubles: getY() is an array read and adding or removing a value only moves
+// an index. When the series is full, addLast() drops the oldest value
 // readwritelocks prevent flickering issue when dataseries is modified while being rendered
+// Every change marks the series' RenderScheduler target dirty, so the plot is redrawn at the next frame
 public class DynamicSeries implements XYSeries, PlotListener {
 
     // -------------------------------------------------------------
     // Variables
 
     private String title;
-    private volatile LinkedList<Number> yVals = new LinkedList<Number>();
+    private final double[] yVals;
+    private final int capacity;
+    // Ring position of the oldest value, and number of values
+    private int first;
+    private int size;
     private ReentrantReadWriteLock lock = new ReentrantReadWriteLock(true);
+    private volatile RenderScheduler.Target renderTarget;
 
     // -------------------------------------------------------------
     // Constructor
 
-    public DynamicSeries(String title) {
+    public DynamicSeries(String title, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive.");
+        }
         this.title = title;
+        this.capacity = capacity;
+        yVals = new double[capacity];
     }
 
     // --------------------------------------------------------------
@@ -41,7 +53,7 @@ public class DynamicSeries implements XYSeries, PlotListener {
 
     @Override
     public int size() {
-        return yVals != null ? yVals.size() : 0;
+        return size;
     }
 
     @Override
@@ -51,26 +63,87 @@ public class DynamicSeries implements XYSeries, PlotListener {
 
     @Override
     public Number getY(int index) {
-        return yVals.get(index);
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + size + ".");
+        }
+        return yVals[wrap(first + index)];
     }
 
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public void setRenderTarget(RenderScheduler.Target renderTarget) {
+        this.renderTarget = renderTarget;
+    }
 
     public void addLast(Number y) {
+        addLast(y.doubleValue());
+    }
+
+    public void addLast(double y) {
         lock.writeLock().lock();
         try {
-            yVals.addLast(y);
+            if (size == capacity) {
+                first = wrap(first + 1);
+                size--;
+            }
+            yVals[wrap(first + size)] = y;
+            size++;
         } finally {
             lock.writeLock().unlock();
         }
+        changed();
     }
 
     public void addAll(Double[] y) {
+        // Same as addAll(double[], int, int), unboxing each value into the ring
+        lock.writeLock().lock();
+        try {
+            int offset = Math.max(0, y.length - capacity);
+            int length = y.length - offset;
+            int overflow = size + length - capacity;
+            if (overflow > 0) {
+                first = wrap(first + overflow);
+                size -= overflow;
+            }
+
+            int position = wrap(first + size);
+            for (int i = offset; i < y.length; i++) {
+                yVals[position] = y[i];
+                position = (position + 1 == capacity) ? 0 : position + 1;
+            }
+            size += length;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        changed();
+    }
+
+    public void addAll(double[] y, int offset, int length) {
+        // Append y[offset, offset + length). Only the last `capacity` values are kept
         lock.writeLock().lock();
         try {
-            yVals.addAll(Arrays.asList(y));
+            if (length > capacity) {
+                offset += length - capacity;
+                length = capacity;
+            }
+            int overflow = size + length - capacity;
+            if (overflow > 0) {
+                first = wrap(first + overflow);
+                size -= overflow;
+            }
+
+            // The new values wrap around the end of the ring at most once
+            int start = wrap(first + size);
+            int firstSpan = Math.min(length, capacity - start);
+            System.arraycopy(y, offset, yVals, start, firstSpan);
+            System.arraycopy(y, offset + firstSpan, yVals, 0, length - firstSpan);
+            size += length;
         } finally {
             lock.writeLock().unlock();
         }
+        changed();
     }
 
     public void removeFirst() {
@@ -79,34 +152,49 @@ public class DynamicSeries implements XYSeries, PlotListener {
             if (size() <= 0) {
                 throw new NoSuchElementException();
             }
-            yVals.removeFirst();
+            first = wrap(first + 1);
+            size--;
         } finally {
             lock.writeLock().unlock();
         }
+        changed();
     }
 
     public void remove(int nbsamples) {
         lock.writeLock().lock();
         try {
-            if (size() <= 0) {
+            if (size() <= 0 || nbsamples > size) {
                 throw new NoSuchElementException();
             }
-
-            for(int i = 0; i<nbsamples; i++){
-                yVals.removeFirst();
-            }
+            first = wrap(first + nbsamples);
+            size -= nbsamples;
         } finally {
             lock.writeLock().unlock();
         }
+        changed();
     }
 
     public void clear() {
         lock.writeLock().lock();
         try {
-            yVals.clear();
+            first = 0;
+            size = 0;
         } finally {
             lock.writeLock().unlock();
         }
+        changed();
+    }
+
+    private void changed() {
+        RenderScheduler.Target target = renderTarget;
+        if (target != null) {
+            target.markDirty();
+        }
+    }
+
+    // Position in the ring of first + index, for index < 2 * capacity
+    private int wrap(int position) {
+        return (position >= capacity) ? position - capacity : position;
     }
 
     // ------------------------------------------------------------
@@ -122,4 +210,89 @@ public class DynamicSeries implements XYSeries, PlotListener {
         lock.readLock().unlock();
     }
 
-}
\ No newline at end of file
+    // Example main for testing: cost of the redraw path (lock, then size() and getY() for every
+    // point as XYPlot does, then unlock) of a full 366-point EEGGraph series, and of the data
+    // thread's removeFirst() + addLast() per sample, against the previous LinkedList<Number>
+    // implementation. Needs androidplot's PlotListener and XYSeries classes on the classpath
+    public static void main(String[] args) {
+        int plotLength = 366;
+        int frames = 20000;
+        DynamicSeries ring = new DynamicSeries("ring", plotLength);
+        LinkedListSeries linkedList = new LinkedListSeries();
+        for (int i = 0; i < plotLength; i++) {
+            ring.addLast(Math.sin(i));
+            linkedList.addLast(Math.sin(i));
+        }
+
+        // Best of several passes, to leave out JIT warm-up
+        double ringFrame = Double.MAX_VALUE;
+        double linkedListFrame = Double.MAX_VALUE;
+        double ringSample = Double.MAX_VALUE;
+        double linkedListSample = Double.MAX_VALUE;
+        double checksum = 0;
+        for (int pass = 0; pass < 5; pass++) {
+            long start = System.nanoTime();
+            for (int f = 0; f < frames; f++) {
+                ring.onBeforeDraw(null, null);
+                for (int i = 0; i < ring.size(); i++) {
+                    checksum += ring.getY(i).doubleValue();
+                }
+                ring.onAfterDraw(null, null);
+            }
+            ringFrame = Math.min(ringFrame, (System.nanoTime() - start) / 1e3 / frames);
+
+            start = System.nanoTime();
+            for (int f = 0; f < frames / 10; f++) {
+                linkedList.lock.readLock().lock();
+                for (int i = 0; i < linkedList.yVals.size(); i++) {
+                    checksum += linkedList.yVals.get(i).doubleValue();
+                }
+                linkedList.lock.readLock().unlock();
+            }
+            linkedListFrame = Math.min(linkedListFrame, (System.nanoTime() - start) / 1e3 / (frames / 10));
+
+            start = System.nanoTime();
+            for (int i = 0; i < 100 * frames; i++) {
+                ring.removeFirst();
+                ring.addLast(i);
+            }
+            ringSample = Math.min(ringSample, (System.nanoTime() - start) / (100. * frames));
+
+            start = System.nanoTime();
+            for (int i = 0; i < 100 * frames; i++) {
+                linkedList.removeFirst();
+                linkedList.addLast(i);
+            }
+            linkedListSample = Math.min(linkedListSample, (System.nanoTime() - start) / (100. * frames));
+        }
+
+        System.out.println(String.format("Redraw of %d points: ring %.2f us, LinkedList %.2f us (%.0fx faster)",
+                plotLength, ringFrame, linkedListFrame, linkedListFrame / ringFrame));
+        System.out.println(String.format("removeFirst + addLast: ring %.1f ns, LinkedList %.1f ns (checksum %.0f)",
+                ringSample, linkedListSample, checksum));
+    }
+
+    // The previous implementation, for comparison
+    private static final class LinkedListSeries {
+        private final LinkedList<Number> yVals = new LinkedList<Number>();
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(true);
+
+        void addLast(Number y) {
+            lock.writeLock().lock();
+            try {
+                yVals.addLast(y);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        void removeFirst() {
+            lock.writeLock().lock();
+            try {
+                yVals.removeFirst();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+}
@@ -7,7 +7,6 @@ import android.util.Log;
 import android.view.View;
 import android.widget.FrameLayout;
 
-import com.androidplot.Plot;
 import com.androidplot.ui.HorizontalPositioning;
 import com.androidplot.ui.Size;
 import com.androidplot.ui.SizeMetric;
@@ -18,18 +17,13 @@ import com.androidplot.xy.BoundaryMode;
 import com.androidplot.xy.FastLineAndPointRenderer;
 import com.androidplot.xy.LineAndPointFormatter;
 import com.androidplot.xy.XYPlot;
-import com.choosemuse.libmuse.Eeg;
-import com.choosemuse.libmuse.Muse;
-import com.choosemuse.libmuse.MuseArtifactPacket;
-import com.choosemuse.libmuse.MuseDataListener;
-import com.choosemuse.libmuse.MuseDataPacket;
-import com.choosemuse.libmuse.MuseDataPacketType;
 import com.eeg_project.MainApplication;
 import com.eeg_project.components.EEGFileWriter;
-import com.eeg_project.components.signal.CircularBuffer;
-import com.eeg_project.components.signal.Filter;
-
-import java.lang.ref.WeakReference;
+import com.eeg_project.components.acquisition.AcquisitionHub;
+import com.eeg_project.components.latency.LatencyTracker;
+import com.eeg_project.components.recording.RecordingHeader;
+import com.eeg_project.components.signal.DspRuntime;
+import com.eeg_project.components.signal.EEGProcessor;
 
 
 /*
@@ -38,10 +32,14 @@ Bandstop filter is present to remove 60hz noise in 2016 Muse. High pass filter c
 around 0
 
 Plotting process:
-1. Creates AndroidPlot graph and MuseDataListener for EEG dataSource packets
-2. MuseDataListener updates circular eegBuffer at 220-260hz
-3. When view is visible, dataThread and renderingThread add newest values to dataSeries and plot
-dataSeries, respectively
+1. Creates AndroidPlot graph
+2. When view is visible, dataTask (a pipeline on the shared DspRuntime's pool) subscribes to the
+AcquisitionHub, which receives the Muse's EEG at 220-260hz, and filters every new sample (bandstop on
+Muse 2016)
+3. dataTask then reduces each bucket of
+SAMPLES_PER_BUCKET samples to its min and max (MinMaxDecimator) and adds them to dataSeries, which
+has the shared RenderScheduler redraw the plot at its next frame
+The processing of steps 2 and 3 is done by an EEGProcessor, which ReplaySource also runs
 */
 public class EEGGraph extends FrameLayout {
 
@@ -50,20 +48,34 @@ public class EEGGraph extends FrameLayout {
 
     public static XYPlot eegPlot;
     public static final int PLOT_LENGTH = 366;
+    // Samples reduced to 2 plotted points (their min and max): PLOT_LENGTH points show as much
+    // time as when one sample out of 3 was plotted
+    private static final int SAMPLES_PER_BUCKET = 6;
     private static final String PLOT_TITLE = "Raw_EEG";
-    public PlotUpdater plotUpdater;
+    // How long stopThreads() waits for the data pipeline to end, in ms
+    private static final long STOP_TIMEOUT = 500;
     private EEGDataSource dataSource;
     public DynamicSeries dataSeries;
-    private Thread dataThread;
-    private Thread renderingThread;
+    private DspRuntime.Task dataTask;
+    // Retries startDataThread() until a pipeline that outlived stopThreads() has ended
+    private final Runnable restartDataThread = new Runnable() {
+        @Override
+        public void run() {
+            startDataThread();
+        }
+    };
+    private RenderScheduler.Target renderTarget;
     private LineAndPointFormatter lineFormatter;
-    public  DataListener dataListener;
-    public  CircularBuffer eegBuffer = new CircularBuffer(220, 4);
+    private AcquisitionHub.Subscription subscription;
+    // Sample-to-plot latencies, exposed to JS by LatencyModule
+    public final LatencyTracker latencyTracker = LatencyTracker.get("EEGGraph");
 
 
     // Bridged props
     // Default channelOfInterest = 1 (left ear)
     public int channelOfInterest = 1;
+    // Recordings are csv files unless the recordingFormat prop is "binary" or "compressed"
+    public String recordingFormat = "csv";
 
 
     // grab reference to global Muse
@@ -116,8 +128,19 @@ public class EEGGraph extends FrameLayout {
         */
     }
 
+    public void setRecordingFormat(String format) {
+        recordingFormat = format;
+    }
+
     public void startRecording() {
-        dataSource.fileWriter.initFile(PLOT_TITLE);
+        if ("binary".equals(recordingFormat) || "compressed".equals(recordingFormat)) {
+            double samplingFrequency = appState.connectedMuse.isLowEnergy() ? 256 : 220;
+            RecordingHeader header = new RecordingHeader(samplingFrequency, EEGFileWriter.MUSE_CHANNELS, "uV",
+                    new double[0], EEGFileWriter.getDeviceModel(appState.connectedMuse));
+            dataSource.fileWriter.initFile(PLOT_TITLE, header, "compressed".equals(recordingFormat));
+        } else {
+            dataSource.fileWriter.initFile(PLOT_TITLE);
+        }
         dataSource.isRecording = true;
     }
 
@@ -139,12 +162,9 @@ public class EEGGraph extends FrameLayout {
         // Create eegPlot
         eegPlot = new XYPlot(context, "Raw EEG Plot");
 
-        // set up PlotUpdater
-        plotUpdater = new PlotUpdater(eegPlot);
-
         // get datasets (Y will be dataSeries, x will be implicitly generated):
         dataSource = new EEGDataSource(appState.connectedMuse.isLowEnergy());
-        dataSeries = new DynamicSeries("EEG dataSource");
+        dataSeries = new DynamicSeries("EEG dataSource", PLOT_LENGTH);
 
         // Create high pass filter as well as bandstop filter if Muse is lowEnergy
         /*
@@ -174,6 +194,7 @@ public class EEGGraph extends FrameLayout {
         // add series to plot
         eegPlot.addSeries(dataSeries,
                 lineFormatter);
+        eegPlot.addListener(latencyTracker);
 
         // Format plot layout
         //Remove margins, padding and border
@@ -227,159 +248,101 @@ public class EEGGraph extends FrameLayout {
         if (visibility == View.INVISIBLE){
             stopThreads();
         }
-        else if (dataThread == null || !dataThread.isAlive()) {
+        else {
             startDataThread();
-            startRenderingThread();
         }
     }
 
     // ---------------------------------------------------------
     // Thread management functions
 
-    // Start thread that will  update the dataSource whenever a Muse dataSource packet is received
+    // Start thread that will read every new sample from the AcquisitionHub and update the dataSource.
+    // Does nothing if it is already running
     public void startDataThread() {
-        dataListener = new DataListener();
-
-        // Register a listener to receive dataSource packets from Muse. Second argument defines which type(s) of dataSource will be transmitted to listener
-        appState.connectedMuse.registerDataListener(dataListener, MuseDataPacketType.EEG);
-        dataThread = new Thread (dataSource);
-        dataThread.start();
-    }
-
-    // Start thread that will render the plot at a fixed speed
-    //
-    public void startRenderingThread(){
-        renderingThread = new Thread (plotUpdater);
-        renderingThread.start();
-    }
-
-    public void stopThreads(){
-        plotUpdater.stopThread();
-        dataSource.stopThread();
-
-        if (dataListener != null) {
-            appState.connectedMuse.unregisterDataListener(dataListener, MuseDataPacketType.EEG);
-        }
-    }
-
-    // --------------------------------------------------------------
-    // Listeners
-
-    // Listener that receives incoming dataSource from the Muse.
-    // Will call receiveMuseDataPacket as dataSource comes in around 220hz (260hz for Muse 2016)
-    // Updates eegBuffer with latest values for all 4 electrodes
-    public class DataListener extends MuseDataListener {
-        public double[] newData;
-
-        // Filter variables
-        public boolean filterOn = false;
-        public Filter bandstopFilter;
-        public double[][] bandstopFiltState;
-        public double[] bandstopFiltResult;
-
-        DataListener() {
-            if (appState.connectedMuse.isLowEnergy()) {
-                filterOn = true;
-                bandstopFilter = new Filter(256, "bandstop", 5, 55, 65);
-                bandstopFiltState = new double[4][bandstopFilter.getNB()];
+        if (dataTask != null && dataTask.isRunning()) {
+            if (dataTask.isStopping()) {
+                // dataSource must not run twice at once (see DspRuntime)
+                removeCallbacks(restartDataThread);
+                postDelayed(restartDataThread, STOP_TIMEOUT);
             }
-            newData = new double[4];
-        }
-
-        @Override
-        public void receiveMuseDataPacket(final MuseDataPacket p, final Muse muse) {
-            getEegChannelValues(newData, p);
-
-            if(filterOn) {
-                bandstopFiltState = bandstopFilter.transform(newData, bandstopFiltState);
-                newData = bandstopFilter.extractFilteredSamples(bandstopFiltState);
-            }
-            eegBuffer.update(newData);
-        }
-
-        // Updates newData array based on incoming EEG channel values
-        private void getEegChannelValues(double[] newData, MuseDataPacket p) {
-            newData[0] = p.getEegChannelValue(Eeg.EEG1);
-            newData[1] = p.getEegChannelValue(Eeg.EEG2);
-            newData[2] = p.getEegChannelValue(Eeg.EEG3);
-            newData[3] = p.getEegChannelValue(Eeg.EEG4);
-        }
-
-        @Override
-        public void receiveMuseArtifactPacket(final MuseArtifactPacket p, final Muse muse) {
-            // Does nothing for now
+            return;
         }
+        subscription = AcquisitionHub.getInstance().subscribe(PLOT_TITLE);
+        dataSource.subscription = subscription;
+        // Redraw the plot whenever dataSeries changes, until stopThreads()
+        renderTarget = RenderScheduler.getInstance().register(eegPlot);
+        dataSeries.setRenderTarget(renderTarget);
+        dataTask = DspRuntime.getInstance().start(PLOT_TITLE, dataSource);
     }
 
-
-    // --------------------------------------------------------------
-    // Runnables
-
-    // Runnable class that redraws plot at a fixed frequency
-    public final class PlotUpdater implements Runnable {
-        WeakReference<Plot> plot;
-        private boolean keepRunning = true;
-
-        public PlotUpdater(Plot plot) {
-            this.plot = new WeakReference<Plot>(plot);
+    public void stopThreads(){
+        // Waits for the pipeline to leave its pool thread (see DspRuntime for a timeout)
+        removeCallbacks(restartDataThread);
+        if (dataTask != null && !dataTask.stopAndAwait(STOP_TIMEOUT)) {
+            Log.w(PLOT_TITLE, "Data pipeline still running " + STOP_TIMEOUT + " ms after it was stopped");
         }
+        dataSource.stopThread();
 
-        @Override
-        public void run() {
-            try {
-                keepRunning = true;
-                while (keepRunning) {
-                    // 33ms sleep = 30 fps
-                    Thread.sleep(33);
-                    plot.get().redraw();
-                }
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
+        if (subscription != null) {
+            AcquisitionHub.getInstance().unsubscribe(subscription);
+            subscription = null;
         }
-
-        public void stopThread() {
-            keepRunning = false;
+        if (renderTarget != null) {
+            dataSeries.setRenderTarget(null);
+            RenderScheduler.getInstance().unregister(renderTarget);
+            renderTarget = null;
         }
     }
 
-
-    // Updates dataSeries, performs dataSource processing
-    public final class EEGDataSource implements Runnable {
-        private boolean keepRunning;
+    // --------------------------------------------------------------
+    // Pipelines
+
+    // Updates dataSeries, performs dataSource processing. Run by the DspRuntime
+    public final class EEGDataSource implements DspRuntime.Pipeline {
+        private AcquisitionHub.Subscription subscription;
+        private EEGProcessor processor;
+        private double[][] chunk = new double[4][64];
+        private double[] row = new double[4];
+        private double[] points;
         public EEGFileWriter fileWriter = new EEGFileWriter(getContext(), PLOT_TITLE);
-        public boolean isRecording;
+        // Set on the UI thread, read at every step
+        public volatile boolean isRecording;
 
-        // Choosing these step sizes arbitrarily based on how they look
         public EEGDataSource(Boolean isLowEnergy) {
+            // Removes the 60hz noise of the Muse 2016
+            processor = new EEGProcessor(4, isLowEnergy ? 256 : 220, isLowEnergy, SAMPLES_PER_BUCKET);
+            points = new double[processor.getMaxPoints(chunk[0].length)];
         }
 
         @Override
-        public void run() {
-            try {
-                keepRunning = true;
-                while (keepRunning) {
-                    if (eegBuffer.getPts() >= 3) {
-                        if (dataSeries.size() >= PLOT_LENGTH) {
-                            dataSeries.removeFirst();
-                        }
-
-                        // For adding 10 data points at a time (Full sampling)
-                        //dataSeries.addAll(eegBuffer.extractSingleChannelTransposedAsDouble(10,                         channelOfInterest - 1));
-
-                        // For adding every 5th or 6th data point (Down sampling)
-                        dataSeries.addLast(eegBuffer.extract(1)[0][channelOfInterest - 1]);
-                        if (isRecording) { fileWriter.addDataToFile(eegBuffer.extract(1)[0]);}
+        public void step() throws InterruptedException {
+            // Park until a bucket of new samples has arrived. The timeout lets the runtime notice a stop
+            if (subscription.await(SAMPLES_PER_BUCKET, 100)) {
+                int nbSamples = subscription.read(chunk);
+                if (nbSamples == 0) {
+                    return;
+                }
+                long ingestTime = subscription.getLastTimestamp();
+                processor.process(chunk, nbSamples);
+                latencyTracker.recordProcessed(ingestTime);
 
-                        // resets the 'points-since-dataSource-read' value
-                        eegBuffer.resetPts();
+                int nbPoints = processor.decimate(chunk, nbSamples, channelOfInterest - 1, points);
+                if (nbPoints > 0) {
+                    dataSeries.addAll(points, 0, nbPoints);
+                }
+                if (isRecording) {
+                    for (int i = 0; i < nbSamples; i++) {
+                        for (int c = 0; c < row.length; c++) {
+                            row[c] = chunk[c][i];
+                        }
+                        fileWriter.addDataToFile(row);
                     }
                 }
-            } catch (Exception e) {}
+                latencyTracker.recordConsumed(ingestTime);
+            }
         }
 
         public void stopThread() {
-            keepRunning = false;
             if (isRecording) {
                 fileWriter.writeFile(PLOT_TITLE);
             }
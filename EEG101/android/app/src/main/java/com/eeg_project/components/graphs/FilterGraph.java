@@ -6,7 +6,6 @@ import android.util.Log;
 import android.view.View;
 import android.widget.FrameLayout;
 
-import com.androidplot.Plot;
 import com.androidplot.ui.HorizontalPositioning;
 import com.androidplot.ui.Size;
 import com.androidplot.ui.SizeMetric;
@@ -16,29 +15,29 @@ import com.androidplot.xy.BoundaryMode;
 import com.androidplot.xy.FastLineAndPointRenderer;
 import com.androidplot.xy.LineAndPointFormatter;
 import com.androidplot.xy.XYPlot;
-import com.choosemuse.libmuse.Eeg;
-import com.choosemuse.libmuse.Muse;
-import com.choosemuse.libmuse.MuseArtifactPacket;
-import com.choosemuse.libmuse.MuseDataListener;
-import com.choosemuse.libmuse.MuseDataPacket;
-import com.choosemuse.libmuse.MuseDataPacketType;
 import com.eeg_project.MainApplication;
 import com.eeg_project.components.EEGFileWriter;
-import com.eeg_project.components.signal.CircularBuffer;
-import com.eeg_project.components.signal.Filter;
-
-import java.lang.ref.WeakReference;
+import com.eeg_project.components.acquisition.AcquisitionHub;
+import com.eeg_project.components.latency.LatencyTracker;
+import com.eeg_project.components.recording.RecordingHeader;
+import com.eeg_project.components.signal.DspRuntime;
+import com.eeg_project.components.signal.FilterDesign;
+import com.eeg_project.components.signal.FilterProcessor;
 
 /*
 View that plots a single-channel filtered EEG graph
-Bandstop, bandpass, high-pass, and low-pass filters are availabe in Filter class
+Bandstop, bandpass, high-pass, and low-pass filters are availabe in SOSFilter class
+The active filter can be changed while streaming (see SwappableFilter)
 
 Plotting process:
-1. Creates AndroidPlot graph and MuseDataListener for EEG dataSource packets
-2. MuseDataListener updates circular eegBuffer at 220-260hz
-3. raw dataSource is filtered as it comes in with Butterworth filters from DSP Library
-3. dataThread and renderThread add latest filter result to dataSeries and render plot at a fixed
-frequency
+1. Creates AndroidPlot graph
+2. When view is visible, dataTask (a pipeline on the shared DspRuntime's pool) subscribes to the
+AcquisitionHub, which receives the Muse's EEG at 220-260hz, and filters every new sample with the active
+Butterworth filter
+3. dataTask then reduces each bucket of SAMPLES_PER_BUCKET samples to its
+min and max (MinMaxDecimator) and adds them to dataSeries, which has the shared RenderScheduler
+redraw the plot at its next frame
+The processing of steps 2 and 3 is done by a FilterProcessor, which ReplaySource also runs
 */
 public class FilterGraph extends FrameLayout {
 
@@ -47,33 +46,46 @@ public class FilterGraph extends FrameLayout {
 
     public XYPlot filterPlot;
     private static final int PLOT_LENGTH = 366;
+    // Samples reduced to 2 plotted points (their min and max): PLOT_LENGTH points show as much
+    // time as when one sample out of 3 was plotted
+    private static final int SAMPLES_PER_BUCKET = 6;
     private static final String PLOT_TITLE = "Filtered_EEG";
+    // How long stopThreads() waits for the data pipeline to end, in ms
+    private static final long STOP_TIMEOUT = 500;
     private int PLOT_LOW_BOUND = 600;
     private int PLOT_HIGH_BOUND = 1000;
-    public PlotUpdater plotUpdater;
     private FilterDataSource dataSource;
     private LineAndPointFormatter lineFormatter;
     public DynamicSeries dataSeries;
-    public museDataListener dataListener;
+    private AcquisitionHub.Subscription subscription;
 
-    Thread dataThread;
-    Thread renderingThread;
+    private DspRuntime.Task dataTask;
+    // Retries startDataThread() until a pipeline that outlived stopThreads() has ended
+    private final Runnable restartDataThread = new Runnable() {
+        @Override
+        public void run() {
+            startDataThread();
+        }
+    };
+    private RenderScheduler.Target renderTarget;
 
     // Reference to global application state used for connected Muse
     MainApplication appState;
 
     // Filter specific variables
     public int filterFreq;
-    public CircularBuffer eegBuffer = new CircularBuffer(220, 4);
-    public Filter activeFilter;
-    // Filter states represent info about previous samples; intermediate values that represent
-    // polynomial components determined by previous samples in the epoch. For more info, read the Rational Transfer Function description here: https://www.mathworks.com/help/matlab/ref/filter.html
-    public double[][] filtState;
+    // Filters all 4 channels with the active preset and decimates them for the plot. Presets are
+    // swapped in while streaming, warm-started from the last 512 raw samples
+    private final FilterProcessor processor = new FilterProcessor(4, SAMPLES_PER_BUCKET);
+    // Sample-to-plot latencies, exposed to JS by LatencyModule
+    public final LatencyTracker latencyTracker = LatencyTracker.get("FilterGraph");
 
 
     // Bridged props
     // Default channelOfInterest = 1 (left ear)
     public int channelOfInterest = 1;
+    // Recordings are csv files unless the recordingFormat prop is "binary" or "compressed"
+    public String recordingFormat = "csv";
 
     // ------------------------------------------------------------------------
     // Constructors
@@ -94,8 +106,9 @@ public class FilterGraph extends FrameLayout {
     }
 
     public void setFilterType(String filterType) {
-        stopThreads();
-        dataSeries.clear();
+        // The new filter is swapped in by the listener at its next packet, warm-started from the
+        // latest raw samples, so the threads keep running and the trace stays continuous
+        int previousLowBound = PLOT_LOW_BOUND;
 
         if(appState.connectedMuse.isLowEnergy()) { filterFreq = 256; }
         else { filterFreq = 220; }
@@ -104,33 +117,46 @@ public class FilterGraph extends FrameLayout {
             case "LOWPASS":
                 PLOT_LOW_BOUND = 600;
                 PLOT_HIGH_BOUND = 1000;
-                filterPlot.setRangeBoundaries(PLOT_LOW_BOUND, PLOT_HIGH_BOUND, BoundaryMode.FIXED);
-                activeFilter = new Filter(filterFreq, "lowpass", 5, 35, 0);
-                filtState = new double[4][activeFilter.getNB()];
+                processor.setFilter(FilterDesign.get(filterFreq, "lowpass", 5, 35, 0));
                 break;
 
             case "BANDPASS":
                 PLOT_LOW_BOUND = -200;
                 PLOT_HIGH_BOUND = 200;
-                filterPlot.setRangeBoundaries(PLOT_LOW_BOUND, PLOT_HIGH_BOUND, BoundaryMode.FIXED);
-                activeFilter = new Filter(filterFreq, "bandpass", 5, 2, 35);
-                filtState = new double[4][activeFilter.getNB()];
+                processor.setFilter(FilterDesign.get(filterFreq, "bandpass", 5, 2, 35));
                 break;
 
             case "HIGHPASS":
                 PLOT_LOW_BOUND = -200;
                 PLOT_HIGH_BOUND = 200;
-                filterPlot.setRangeBoundaries(PLOT_LOW_BOUND, PLOT_HIGH_BOUND, BoundaryMode.FIXED);
-                activeFilter = new Filter(filterFreq, "highpass", 2, 1, 0);
-                filtState = new double[4][activeFilter.getNB()];
+                processor.setFilter(FilterDesign.get(filterFreq, "highpass", 2, 1, 0));
                 break;
         }
+        filterPlot.setRangeBoundaries(PLOT_LOW_BOUND, PLOT_HIGH_BOUND, BoundaryMode.FIXED);
+
+        // Samples filtered with the previous preset would be off the new range
+        if (PLOT_LOW_BOUND != previousLowBound) {
+            dataSeries.clear();
+        }
+
         startDataThread();
-        startRenderingThread();
+        if (renderTarget != null) {
+            renderTarget.markDirty();
+        }
+    }
+
+    public void setRecordingFormat(String format) {
+        recordingFormat = format;
     }
 
     public void startRecording() {
-        dataSource.fileWriter.initFile(PLOT_TITLE);
+        if ("binary".equals(recordingFormat) || "compressed".equals(recordingFormat)) {
+            RecordingHeader header = new RecordingHeader(filterFreq, EEGFileWriter.MUSE_CHANNELS, "uV",
+                    new double[0], EEGFileWriter.getDeviceModel(appState.connectedMuse));
+            dataSource.fileWriter.initFile(PLOT_TITLE, header, "compressed".equals(recordingFormat));
+        } else {
+            dataSource.fileWriter.initFile(PLOT_TITLE);
+        }
         dataSource.isRecording = true;
     }
 
@@ -149,14 +175,11 @@ public class FilterGraph extends FrameLayout {
     public void initView(Context context) {
         filterPlot = new XYPlot(context, PLOT_TITLE);
 
-        // Create plotUpdater
-        plotUpdater = new PlotUpdater(filterPlot);
-
         // Create dataSource
         dataSource = new FilterDataSource(appState.connectedMuse.isLowEnergy());
 
         // Create dataSeries that will be drawn on plot (Y will be obtained from dataSource, x will be implicitly generated):
-        dataSeries = new DynamicSeries(PLOT_TITLE);
+        dataSeries = new DynamicSeries(PLOT_TITLE, PLOT_LENGTH);
 
         // Set X and Y domain
         filterPlot.setRangeBoundaries(PLOT_LOW_BOUND, PLOT_HIGH_BOUND, BoundaryMode.FIXED);
@@ -171,6 +194,7 @@ public class FilterGraph extends FrameLayout {
 
         filterPlot.addSeries(dataSeries,
                 lineFormatter);
+        filterPlot.addListener(latencyTracker);
 
         // Format plot layout
         //Remove margins, padding and border
@@ -221,140 +245,100 @@ public class FilterGraph extends FrameLayout {
         if (visibility == View.INVISIBLE){
             stopThreads();
         }
-        else if (dataThread == null || !dataThread.isAlive()) {
+        else {
             startDataThread();
-            startRenderingThread();
         }
     }
 
     // --f-------------------------------------------------------
     // Thread management functions
 
-    // Start thread that will  update the dataSource whenever a Muse dataSource packet is receive series
-    // and perform dataSource processing
+    // Start thread that will read every new sample from the AcquisitionHub and perform dataSource
+    // processing. Does nothing if it is already running
     public void startDataThread() {
-        dataListener = new museDataListener();
-
-        // Register a listener to receive dataSource packets from Muse. Second argument defines which type(s) of dataSource will be transmitted to listener
-        appState.connectedMuse.registerDataListener(dataListener, MuseDataPacketType.EEG);
-        dataThread = new Thread (dataSource);
-        dataThread.start();
-    }
-
-    // Start thread that will render the plot at a fixed speed
-    public void startRenderingThread(){
-        renderingThread = new Thread (plotUpdater);
-        renderingThread.start();
+        if (dataTask != null && dataTask.isRunning()) {
+            if (dataTask.isStopping()) {
+                // dataSource must not run twice at once (see DspRuntime)
+                removeCallbacks(restartDataThread);
+                postDelayed(restartDataThread, STOP_TIMEOUT);
+            }
+            return;
+        }
+        subscription = AcquisitionHub.getInstance().subscribe(PLOT_TITLE);
+        dataSource.subscription = subscription;
+        // Redraw the plot whenever dataSeries changes, until stopThreads()
+        renderTarget = RenderScheduler.getInstance().register(filterPlot);
+        dataSeries.setRenderTarget(renderTarget);
+        dataTask = DspRuntime.getInstance().start(PLOT_TITLE, dataSource);
     }
 
     // Stop all threads
     public void stopThreads(){
-        plotUpdater.stopThread();
-        dataSource.stopThread();
-
-        if (dataListener != null) {
-            appState.connectedMuse.unregisterDataListener(dataListener, MuseDataPacketType.EEG);
-        }
-
-    }
-
-    // --------------------------------------------------------------
-    // Listeners
-
-    // Listener that receives incoming Muse dataSource packets and updates the eegbuffer
-    class museDataListener extends MuseDataListener {
-        private double[] newData;
-
-        // Constructor
-        museDataListener() {
-            newData = new double[4];
-        }
-
-        // Called whenever an incoming dataSource packet is received. Handles different types of incoming dataSource packets and updates dataSource correctly
-        @Override
-        public void receiveMuseDataPacket(final MuseDataPacket p, final Muse muse) {
-            getEegChannelValues(newData, p);
-            filtState = activeFilter.transform(newData, filtState);
-            eegBuffer.update(activeFilter.extractFilteredSamples(filtState));
+        // Waits for the pipeline to leave its pool thread (see DspRuntime for a timeout)
+        removeCallbacks(restartDataThread);
+        if (dataTask != null && !dataTask.stopAndAwait(STOP_TIMEOUT)) {
+            Log.w(PLOT_TITLE, "Data pipeline still running " + STOP_TIMEOUT + " ms after it was stopped");
         }
+        dataSource.stopThread();
 
-        // Updates newData array based on incoming EEG channel values
-        private void getEegChannelValues(double[] newData, MuseDataPacket p) {
-            newData[0] = p.getEegChannelValue(Eeg.EEG1);
-            newData[1] = p.getEegChannelValue(Eeg.EEG2);
-            newData[2] = p.getEegChannelValue(Eeg.EEG3);
-            newData[3] = p.getEegChannelValue(Eeg.EEG4);
+        if (subscription != null) {
+            AcquisitionHub.getInstance().unsubscribe(subscription);
+            subscription = null;
         }
-
-        @Override
-        public void receiveMuseArtifactPacket(final MuseArtifactPacket p, final Muse muse) {
-            // Put something here about marking noise maybe
+        if (renderTarget != null) {
+            dataSeries.setRenderTarget(null);
+            RenderScheduler.getInstance().unregister(renderTarget);
+            renderTarget = null;
         }
     }
 
     // --------------------------------------------------------------
-    // Runnables
+    // Pipelines
 
-    // Runnable class that redraws plot at a fixed frequency
-    class PlotUpdater implements Runnable {
-        WeakReference<Plot> plot;
-        private boolean keepRunning = true;
-
-        public PlotUpdater(Plot plot) {
-            this.plot = new WeakReference<Plot>(plot);
-        }
-
-        @Override
-        public void run() {
-            try {
-                keepRunning = true;
-                while (keepRunning) {
-                    // 33ms sleep = 30 fps
-                    Thread.sleep(33);
-                    plot.get().redraw();
-                }
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        }
-
-        public void stopThread() {
-            keepRunning = false;
-        }
-    }
-
-    // Data source runnable
+    // Data source pipeline, run by the DspRuntime
     // Processes raw EEG dataSource and updates dataSeries
-    public final class FilterDataSource implements Runnable {
-        private boolean keepRunning;
+    public final class FilterDataSource implements DspRuntime.Pipeline {
+        private AcquisitionHub.Subscription subscription;
+        private double[][] chunk = new double[4][64];
+        private double[] row = new double[4];
+        private double[] points = new double[processor.getMaxPoints(chunk[0].length)];
         public EEGFileWriter fileWriter = new EEGFileWriter(getContext(), PLOT_TITLE);
-        public boolean isRecording;
+        // Set on the UI thread, read at every step
+        public volatile boolean isRecording;
 
         // Choosing these step sizes arbitrarily based on how they look
         public FilterDataSource(Boolean isLowEnergy) {
         }
 
         @Override
-        public void run() {
-            try {
-                keepRunning = true;
-                while (keepRunning) {
-                    if (eegBuffer.getPts() >= 3) {
-                        if (dataSeries.size() >= PLOT_LENGTH) {
-                            dataSeries.removeFirst();
-                        }
-
-                        dataSeries.addLast(eegBuffer.extract(1)[0][channelOfInterest - 1]);
-                        if (isRecording) { fileWriter.addDataToFile(eegBuffer.extract(1)[0]);}
+        public void step() throws InterruptedException {
+            // Park until a bucket of new samples has arrived. The timeout lets the runtime notice a stop
+            if (subscription.await(SAMPLES_PER_BUCKET, 100)) {
+                int nbSamples = subscription.read(chunk);
+                if (nbSamples == 0) {
+                    return;
+                }
+                long ingestTime = subscription.getLastTimestamp();
+                processor.process(chunk, nbSamples);
+                latencyTracker.recordProcessed(ingestTime);
 
-                        eegBuffer.resetPts();
+                int nbPoints = processor.decimate(chunk, nbSamples, channelOfInterest - 1, points);
+                if (nbPoints > 0) {
+                    dataSeries.addAll(points, 0, nbPoints);
+                }
+                if (isRecording) {
+                    for (int i = 0; i < nbSamples; i++) {
+                        for (int c = 0; c < row.length; c++) {
+                            row[c] = chunk[c][i];
+                        }
+                        fileWriter.addDataToFile(row);
                     }
                 }
-            } catch (Exception e) {}
+                latencyTracker.recordConsumed(ingestTime);
+            }
         }
 
         public void stopThread() {
-            keepRunning = false;
             if (isRecording) {
                 fileWriter.writeFile(PLOT_TITLE);
             }
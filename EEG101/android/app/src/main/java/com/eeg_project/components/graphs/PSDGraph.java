@@ -1,11 +1,14 @@
 package com.eeg_project.components.graphs;
 
 import android.content.Context;
+import android.graphics.Canvas;
 import android.graphics.Color;
+import android.util.Log;
 import android.view.View;
 import android.widget.FrameLayout;
 
 import com.androidplot.Plot;
+import com.androidplot.PlotListener;
 import com.androidplot.ui.HorizontalPositioning;
 import com.androidplot.ui.Size;
 import com.androidplot.ui.SizeMetric;
@@ -15,31 +18,32 @@ import com.androidplot.xy.BoundaryMode;
 import com.androidplot.xy.LineAndPointFormatter;
 import com.androidplot.xy.XYPlot;
 import com.androidplot.xy.XYSeries;
-import com.choosemuse.libmuse.Eeg;
-import com.choosemuse.libmuse.Muse;
-import com.choosemuse.libmuse.MuseArtifactPacket;
-import com.choosemuse.libmuse.MuseDataListener;
-import com.choosemuse.libmuse.MuseDataPacket;
-import com.choosemuse.libmuse.MuseDataPacketType;
 import com.eeg_project.MainApplication;
 import com.eeg_project.components.EEGFileWriter;
-import com.eeg_project.components.signal.CircularBuffer;
-import com.eeg_project.components.signal.FFT;
-import com.eeg_project.components.signal.PSDBuffer;
-
-import java.lang.ref.WeakReference;
+import com.eeg_project.components.acquisition.AcquisitionHub;
+import com.eeg_project.components.latency.LatencyTracker;
+import com.eeg_project.components.recording.RecordingHeader;
+import com.eeg_project.components.signal.DspRuntime;
+import com.eeg_project.components.signal.PSDProcessor;
 
 /*
 View that plots a dynamic power spectral density (PSD) curve
 
 Plotting process:
-1. Creates AndroidPlot graph and MuseDataListener for EEG dataSource packets
-2. MuseDataListener updates circular eegBuffer at 220-260hz
-3. When view is visible, dataThread and renderingThread perform PSD computations and plot
-dataSeries, respectively
-4. dataThread computes smoothed log PSD with FFT from JTransforms library (in FFT class)
-5. renderingThread plots PSDseries at fixed frequency. PSDseries just points to smoothLogPower in
- dataSource
+1. Creates AndroidPlot graph
+2. When view is visible, dataTask (a pipeline on the shared DspRuntime's pool) subscribes to the
+AcquisitionHub, which receives the Muse's EEG at 220-260hz
+3. dataTask performs PSD computations and has the shared RenderScheduler
+redraw dataSeries at the next frame
+4. dataTask computes the smoothed log PSD of all 4 channels with FFT from JTransforms library
+(in MultiChannelPSD class)
+5. PSDseries takes the latest smoothed log PSDs of all channels from dataSource before each draw
+ (MultiChannelPSD's lock-free snapshot, so a frame never mixes two hops) and plots the one of
+ channelOfInterest, so changing channel is instant. The plot is only redrawn when a new PSD is
+ computed or the channel changes
+6. dataTask also feeds every new sample to a BandPowerTracker, which keeps the power of each EEG
+band over the last 256 samples (see getBandPower)
+The processing of steps 3, 4 and 6 is done by a PSDProcessor, which ReplaySource also runs
 */
 public class PSDGraph extends FrameLayout {
 
@@ -50,12 +54,22 @@ public class PSDGraph extends FrameLayout {
     private PSDDataSource dataSource;
     public  int PLOT_LENGTH = 50;
     private static final String PLOT_TITLE = "Power_Spectral_Density";
+    // How long stopThreads() waits for the data pipeline to end, in ms
+    private static final long STOP_TIMEOUT = 500;
     private PSDSeries dataSeries;
-    public PlotUpdater plotUpdater;
-    public MuseDataListener dataListener;
-    Thread dataThread;
-    Thread renderingThread;
-    public CircularBuffer eegBuffer = new CircularBuffer(220, 4);
+    private AcquisitionHub.Subscription subscription;
+    private DspRuntime.Task dataTask;
+    // Retries startDataThread() until a pipeline that outlived stopThreads() has ended
+    private final Runnable restartDataThread = new Runnable() {
+        @Override
+        public void run() {
+            startDataThread();
+        }
+    };
+    // Set on the UI thread, null while stopped, read at every step
+    private volatile RenderScheduler.Target renderTarget;
+    // Sample-to-plot latencies (of the newest sample of each PSD), exposed to JS by LatencyModule
+    public final LatencyTracker latencyTracker = LatencyTracker.get("PSDGraph");
 
 
     // Reference to global application state used for connected Muse
@@ -64,6 +78,8 @@ public class PSDGraph extends FrameLayout {
     // Bridged props
     // Default channelOfInterest = 1 (left ear)
     public int channelOfInterest = 1;
+    // Recordings are csv files unless the recordingFormat prop is "binary" or "compressed"
+    public String recordingFormat = "csv";
 
 
 
@@ -80,12 +96,35 @@ public class PSDGraph extends FrameLayout {
     // Bridge functions (can be called from JS by setting props)
 
     public void setChannelOfInterest(int channel) {
+        // All channels are processed continuously, so the new channel's smoothed PSD is
+        // already available
         channelOfInterest = channel;
-        dataSource.clearDataBuffer();
+        RenderScheduler.Target target = renderTarget;
+        if (target != null) {
+            target.markDirty();
+        }
+    }
+
+    // Power of a band (e.g. BandPowerTracker.ALPHA) in channelOfInterest over the last 256 samples
+    public double getBandPower(int band) {
+        return dataSource.processor.getBandPowerTracker().getBandPower(channelOfInterest - 1, band);
+    }
+
+    public void setRecordingFormat(String format) {
+        recordingFormat = format;
     }
 
     public void startRecording() {
-        dataSource.fileWriter.initFile(PLOT_TITLE);
+        if ("binary".equals(recordingFormat) || "compressed".equals(recordingFormat)) {
+            // Rows hold the smoothed log-PSD of channelOfInterest
+            String[] channel = {EEGFileWriter.MUSE_CHANNELS[channelOfInterest - 1]};
+            RecordingHeader header = new RecordingHeader(dataSource.processor.getSamplingFrequency(), channel,
+                    "log10(uV^2)", dataSource.processor.getPSD().getFreqBins(),
+                    EEGFileWriter.getDeviceModel(appState.connectedMuse));
+            dataSource.fileWriter.initFile(PLOT_TITLE, header, "compressed".equals(recordingFormat));
+        } else {
+            dataSource.fileWriter.initFile(PLOT_TITLE);
+        }
         dataSource.isRecording = true;
     }
 
@@ -107,9 +146,6 @@ public class PSDGraph extends FrameLayout {
         // Create psdPlot
         psdPlot = new XYPlot(context, "PSD Plot");
 
-        // Create plotUpdater
-        plotUpdater = new PlotUpdater(psdPlot);
-
         // Create dataSource
         dataSource = new PSDDataSource(appState.connectedMuse.isLowEnergy());
 
@@ -123,6 +159,8 @@ public class PSDGraph extends FrameLayout {
         // add dataSeries to plot and define color of plotted line
         psdPlot.addSeries(dataSeries,
                 new LineAndPointFormatter(Color.rgb(255, 255, 255), null, null, null));
+        psdPlot.addListener(latencyTracker);
+        psdPlot.addListener(dataSeries);
 
         // Set plot background color
         psdPlot.getGraph().getBackgroundPaint().setColor(Color.rgb(114, 194, 241));
@@ -169,187 +207,117 @@ public class PSDGraph extends FrameLayout {
         if (visibility == View.INVISIBLE){
             stopThreads();
         }
-        else if (dataThread == null || !dataThread.isAlive()) {
+        else {
             startDataThread();
-            startRenderingThread();
-            dataListener = new DataListener();
-            // Register a listener to receive dataSource packets from Muse. Second argument defines which type(s) of dataSource will be transmitted to listener
-            appState.connectedMuse.registerDataListener(dataListener, MuseDataPacketType.EEG);
         }
     }
 
     // ---------------------------------------------------------
     // Thread management functions
 
-    // Start thread that will  update the dataSource whenever a Muse dataSource packet is receive series
-    // and perform dataSource processing
+    // Start thread that will read every new sample from the AcquisitionHub and perform dataSource
+    // processing. Does nothing if it is already running
     public void startDataThread() {
-        dataThread = new Thread(dataSource);
-        dataThread.start();
-    }
-
-    // Start thread that will render the plot at a fixed speed
-    public void startRenderingThread(){
-        renderingThread = new Thread (plotUpdater);
-        renderingThread.start();
+        if (dataTask != null && dataTask.isRunning()) {
+            if (dataTask.isStopping()) {
+                // dataSource must not run twice at once (see DspRuntime)
+                removeCallbacks(restartDataThread);
+                postDelayed(restartDataThread, STOP_TIMEOUT);
+            }
+            return;
+        }
+        subscription = AcquisitionHub.getInstance().subscribe(PLOT_TITLE);
+        dataSource.subscription = subscription;
+        // Redraw the plot whenever dataSource computes a new PSD, until stopThreads()
+        renderTarget = RenderScheduler.getInstance().register(psdPlot);
+        dataTask = DspRuntime.getInstance().start(PLOT_TITLE, dataSource);
     }
 
     // Stop all threads
     public void stopThreads(){
-        plotUpdater.stopThread();
-        dataSource.stopThread();
-
-        if (dataListener != null) {
-            appState.connectedMuse.unregisterDataListener(dataListener, MuseDataPacketType.EEG);
-        }
-    }
-
-    // --------------------------------------------------------------
-    // Listeners
-
-    // Listener that receives incoming dataSource from the Muse.
-    // Will call receiveMuseDataPacket as dataSource comes in around 220hz (260hz for Muse 2016)
-    // Updates eegBuffer with latest values for all 4 electrodes
-    class DataListener extends MuseDataListener {
-        public double[] newData;
-
-        // Constructor
-        DataListener() {
-            newData  = new double[4];
-        }
-
-        // Called whenever an incoming dataSource packet is received. Handles different types of incoming dataSource packets and updates dataSource correctly
-        @Override
-        public void receiveMuseDataPacket(final MuseDataPacket p, final Muse muse) {
-            getEegChannelValues(newData, p);
-            eegBuffer.update(newData);
+        // Waits for the pipeline to leave its pool thread (see DspRuntime for a timeout)
+        removeCallbacks(restartDataThread);
+        if (dataTask != null && !dataTask.stopAndAwait(STOP_TIMEOUT)) {
+            Log.w(PLOT_TITLE, "Data pipeline still running " + STOP_TIMEOUT + " ms after it was stopped");
         }
+        dataSource.stopThread();
 
-        // Updates newData array based on incoming EEG channel values
-        private void getEegChannelValues(double[] newData, MuseDataPacket p) {
-            newData[0] = p.getEegChannelValue(Eeg.EEG1);
-            newData[1] = p.getEegChannelValue(Eeg.EEG2);
-            newData[2] = p.getEegChannelValue(Eeg.EEG3);
-            newData[3] = p.getEegChannelValue(Eeg.EEG4);
+        if (subscription != null) {
+            AcquisitionHub.getInstance().unsubscribe(subscription);
+            subscription = null;
         }
-
-        @Override
-        public void receiveMuseArtifactPacket(final MuseArtifactPacket p, final Muse muse) {
-            // Put something here about marking noise maybe
+        if (renderTarget != null) {
+            RenderScheduler.getInstance().unregister(renderTarget);
+            renderTarget = null;
         }
     }
 
     // --------------------------------------------------------------
-    // Runnables
-
-    // Runnable class that redraws plot at a fixed frequency
-    class PlotUpdater implements Runnable {
-        WeakReference<Plot> plot;
-        private boolean keepRunning = true;
-        public PlotUpdater(Plot plot) {
-            this.plot = new WeakReference<Plot>(plot);
-        }
-
-        @Override
-        public void run() {
-            try {
-                keepRunning = true;
-                while (keepRunning) {
-                    // 33ms sleep = 30 fps
-                    Thread.sleep(33);
-                    plot.get().redraw();
-                }
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        }
+    // Pipelines
 
-        public void stopThread() {
-            keepRunning = false;
-        }
-    }
-
-    // Data source runnable
+    // Data source pipeline, run by the DspRuntime
     // Processes raw EEG dataSource and updates dataSeries
-    public final class PSDDataSource implements Runnable {
-        private boolean keepRunning = true;
-        double[] latestSamples;
-        int stepSize = 26;
-        public boolean isRecording;
+    public final class PSDDataSource implements DspRuntime.Pipeline {
+        private AcquisitionHub.Subscription subscription;
+        private double[][] chunk = new double[4][64];
+        // Set on the UI thread, read at every step
+        public volatile boolean isRecording;
         public EEGFileWriter fileWriter = new EEGFileWriter(getContext(), "Power_Spectral_Density");
-        private int samplingFrequency;
-        private FFT fft;
-        private PSDBuffer psdBuffer;
-        private double[] logpower;
-        private double[] smoothLogPower;
+        // PSD and band powers of the 4 channels
+        PSDProcessor processor;
 
         public PSDDataSource(Boolean isLowEnergy) {
-            if (isLowEnergy) {
-                samplingFrequency = 256;
-                stepSize = 26;
-            } else {
-                samplingFrequency = 220;
-                stepSize = 22;
-            }
-
-            // Initialize FFT transform
-            fft = new FFT(256, 256, samplingFrequency);
-
-            // Initialize FFT 2D Buffer
-            int nbBins =fft.getFreqBins().length;
-            psdBuffer = new PSDBuffer(20, nbBins);
-            logpower = new double[nbBins];
-            smoothLogPower = new double[nbBins];
+            processor = new PSDProcessor(4, isLowEnergy ? 256 : 220);
         }
 
         @Override
-        public void run() {
-            try {
-                keepRunning = true;
-                while (keepRunning) {
-                    if (eegBuffer.getPts() >= stepSize) {
-
-                        // Extract latest raw samples
-                        latestSamples = eegBuffer.extractSingleChannelTransposed(256,channelOfInterest - 1);
-
-                        // Compute log-PSD for channel of interest
-                        logpower = fft.computeLogPSD(latestSamples);
-
-                        // Write new log-PSD in buffer
-                        psdBuffer.update(logpower);
-
-                        // Compute average PSD over buffer
-                        smoothLogPower = psdBuffer.mean();
-
-                        if (isRecording) { fileWriter.addDataToFile(smoothLogPower);}
-
-                        eegBuffer.resetPts();
-                    }
+        public void step() throws InterruptedException {
+            // Park until enough new samples arrive. The timeout lets the runtime notice a stop
+            if (subscription.await(processor.getStepSize(), 100)) {
+
+                // Band powers take in every sample received since the last step
+                int nbSamples;
+                while ((nbSamples = subscription.read(chunk)) > 0) {
+                    processor.addSamples(chunk, nbSamples);
+                }
+                long ingestTime = subscription.getLastTimestamp();
+                latencyTracker.recordProcessed(ingestTime);
+
+                // Compute log-PSD of the latest raw samples in the hub's buffer and average
+                // it over the last hops, for every channel
+                processor.update(subscription.getBuffer());
+                latencyTracker.recordConsumed(ingestTime);
+                RenderScheduler.Target target = renderTarget;
+                if (target != null) {
+                    target.markDirty();
                 }
-            } catch (Exception e) {
+
+                if (isRecording) { fileWriter.addDataToFile(getSmoothLogPower());}
             }
         }
 
-        public void clearDataBuffer() {
-            psdBuffer.clear();
-            eegBuffer.clear();
+        public double[] getSmoothLogPower() {
+            return processor.getPSD().getSmoothLogPower(channelOfInterest - 1);
         }
 
         public void stopThread() {
-            keepRunning = false;
             if (isRecording) {
                 fileWriter.writeFile(PLOT_TITLE);
             }
         }
     }
 
-    class PSDSeries implements XYSeries {
+    // Plots the snapshot of channelOfInterest's smoothed log PSD taken before each draw
+    class PSDSeries implements XYSeries, PlotListener {
         private PSDDataSource datasource;
         private String title;
+        // Only used by the drawing thread, the single consumer of the snapshots
+        private double[] spectrum;
 
         public PSDSeries(PSDDataSource datasource, String title) {
             this.datasource = datasource;
             this.title = title;
+            spectrum = new double[0];
         }
 
         @Override
@@ -359,7 +327,7 @@ public class PSDGraph extends FrameLayout {
 
         @Override
         public int size() {
-            return datasource.smoothLogPower.length;
+            return spectrum.length;
         }
 
         @Override
@@ -369,7 +337,16 @@ public class PSDGraph extends FrameLayout {
 
         @Override
         public Number getY(int index) {
-            return datasource.smoothLogPower[index];
+            return spectrum[index];
+        }
+
+        @Override
+        public void onBeforeDraw(Plot source, Canvas canvas) {
+            spectrum = datasource.processor.getPSD().getSnapshot().acquire()[channelOfInterest - 1];
+        }
+
+        @Override
+        public void onAfterDraw(Plot source, Canvas canvas) {
         }
     }
 
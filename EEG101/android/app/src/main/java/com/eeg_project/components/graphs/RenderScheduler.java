@@ -0,0 +1,213 @@
+package com.eeg_project.components.graphs;
+
+import android.graphics.Canvas;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import com.androidplot.Plot;
+import com.androidplot.PlotListener;
+import com.eeg_project.components.signal.LatencyHistogram;
+
+import java.lang.ref.WeakReference;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+Redraws the plots of every graph, replacing one sleep(33) loop per graph
+
+A graph registers its plot while its data pipeline runs and gets a Target. Whoever changes the plotted data (e.g. DynamicSeries)
+calls Target.markDirty(), which schedules a frame callback with Android's Choreographer. At each
+display frame (vsync) the scheduler redraws the plots marked dirty since the last frame and only those,
+at most targetFrameRate times per second. Samples arriving within a frame are drawn together, and when
+no data changes no frame callback is scheduled at all, so idle or hidden graphs cost nothing.
+
+The scheduler can be used from any thread (LatencyModule reads its metrics on the React Native
+modules thread). Choreographer.getInstance() belongs to the thread that calls it, so the
+Choreographer is only obtained, and frame callbacks only posted, on the main thread: a frame
+scheduled from another thread is handed over through a Handler on the main Looper.
+
+plot.redraw() only wakes androidplot's own rendering thread, which draws into its buffer. The time
+that drawing takes is recorded per redraw, along with the interval between rendered frames; both are
+exposed to JS by LatencyModule.getRenderMetrics().
+*/
+public final class RenderScheduler implements Choreographer.FrameCallback {
+
+    // ------------------------------------------------------------------------
+    // Variables
+
+    public static final int DEFAULT_FRAME_RATE = 30;
+    // Vsync times jitter slightly: a frame this early is still drawn
+    private static final long FRAME_TOLERANCE_NANOS = 2000000;
+
+    private static RenderScheduler instance;
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    // Only used on the main thread
+    private Choreographer choreographer;
+    private final List<Target> targets = new CopyOnWriteArrayList<Target>();
+    private final AtomicBoolean frameScheduled = new AtomicBoolean();
+    private volatile long framePeriodNanos = 1000000000L / DEFAULT_FRAME_RATE;
+    private long lastFrameTime;
+
+    // Metrics
+    private final AtomicLong frameCount = new AtomicLong();
+    private final AtomicLong redrawCount = new AtomicLong();
+    private final LatencyHistogram drawTime = new LatencyHistogram();
+    private final LatencyHistogram frameInterval = new LatencyHistogram();
+
+    // ------------------------------------------------------------------------
+    // Constructor
+
+    private RenderScheduler() {
+    }
+
+    public static synchronized RenderScheduler getInstance() {
+        if (instance == null) {
+            instance = new RenderScheduler();
+        }
+        return instance;
+    }
+
+    // ------------------------------------------------------------------------
+    // Methods
+
+    public Target register(Plot plot) {
+        Target target = new Target(plot);
+        plot.addListener(target);
+        targets.add(target);
+        return target;
+    }
+
+    public void unregister(Target target) {
+        targets.remove(target);
+        Plot plot = target.plot.get();
+        if (plot != null) {
+            plot.removeListener(target);
+        }
+    }
+
+    public void setTargetFrameRate(int framesPerSecond) {
+        if (framesPerSecond <= 0) {
+            throw new IllegalArgumentException("Frame rate must be positive.");
+        }
+        framePeriodNanos = 1000000000L / framesPerSecond;
+    }
+
+    public int getTargetFrameRate() {
+        return (int) Math.round(1e9 / framePeriodNanos);
+    }
+
+    // Frames in which at least one plot was redrawn
+    public long getFrameCount() {
+        return frameCount.get();
+    }
+
+    // Plots drawn, over all frames
+    public long getRedrawCount() {
+        return redrawCount.get();
+    }
+
+    // Time androidplot took to draw one plot
+    public LatencyHistogram getDrawTime() {
+        return drawTime;
+    }
+
+    // Time between two frames in which plots were redrawn
+    public LatencyHistogram getFrameInterval() {
+        return frameInterval;
+    }
+
+    public void resetMetrics() {
+        frameCount.set(0);
+        redrawCount.set(0);
+        drawTime.reset();
+        frameInterval.reset();
+    }
+
+    private void scheduleFrame() {
+        if (frameScheduled.compareAndSet(false, true)) {
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                postFrame.run();
+            } else {
+                mainHandler.post(postFrame);
+            }
+        }
+    }
+
+    // Posts the frame callback to the main thread's Choreographer. Runs on the main thread
+    private final Runnable postFrame = new Runnable() {
+        @Override
+        public void run() {
+            if (choreographer == null) {
+                choreographer = Choreographer.getInstance();
+            }
+            choreographer.postFrameCallback(RenderScheduler.this);
+        }
+    };
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        // Too early for the target frame rate: wait for a later vsync
+        long sinceLastFrame = frameTimeNanos - lastFrameTime;
+        if (sinceLastFrame < framePeriodNanos - FRAME_TOLERANCE_NANOS) {
+            choreographer.postFrameCallback(this);
+            return;
+        }
+
+        // Cleared before the dirty flags are, so data changed during this frame schedules the next one
+        frameScheduled.set(false);
+
+        boolean redrawn = false;
+        for (Target target : targets) {
+            Plot plot = target.plot.get();
+            if (plot == null) {
+                targets.remove(target);
+            } else if (target.dirty.getAndSet(false)) {
+                plot.redraw();
+                redrawn = true;
+            }
+        }
+
+        if (redrawn) {
+            if (frameCount.getAndIncrement() > 0) {
+                frameInterval.record(sinceLastFrame);
+            }
+            lastFrameTime = frameTimeNanos;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // Target
+
+    // A registered plot. Also listens to its draws to measure them
+    public final class Target implements PlotListener {
+        private final WeakReference<Plot> plot;
+        private final AtomicBoolean dirty = new AtomicBoolean();
+        // Only used by androidplot's rendering thread
+        private long drawStart;
+
+        private Target(Plot plot) {
+            this.plot = new WeakReference<Plot>(plot);
+        }
+
+        // Called from any thread when the plotted data has changed
+        public void markDirty() {
+            dirty.set(true);
+            scheduleFrame();
+        }
+
+        @Override
+        public void onBeforeDraw(Plot source, Canvas canvas) {
+            drawStart = System.nanoTime();
+        }
+
+        @Override
+        public void onAfterDraw(Plot source, Canvas canvas) {
+            drawTime.record(System.nanoTime() - drawStart);
+            redrawCount.incrementAndGet();
+        }
+    }
+}
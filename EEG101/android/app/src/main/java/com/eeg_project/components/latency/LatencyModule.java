@@ -0,0 +1,118 @@
+package com.eeg_project.components.latency;
+
+import com.eeg_project.components.graphs.RenderScheduler;
+import com.eeg_project.components.signal.DspRuntime;
+import com.eeg_project.components.signal.LatencyHistogram;
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.Promise;
+import com.facebook.react.bridge.ReactApplicationContext;
+import com.facebook.react.bridge.ReactContextBaseJavaModule;
+import com.facebook.react.bridge.ReactMethod;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import java.util.Map;
+
+/*
+Exposes the sample-to-plot latencies measured by every graph's LatencyTracker to JS
+
+getLatencies() resolves to {graph: {stage: {p50, p99, max (in ms), count}}}, e.g.
+{"EEGGraph": {"total": {"p50": 41.2, "p99": 78.9, "max": 102.4, "count": 5012}, ...}, ...}
+so it can be polled to watch latencies live. resetLatencies() starts the measurements over.
+
+getRenderMetrics() resolves to the RenderScheduler's counters, e.g.
+{"targetFrameRate": 30, "frames": 1800, "redraws": 3600, "drawTime": {p50, p99, max}, "frameInterval": {...}}
+and setTargetFrameRate(fps) changes how often the plots can be redrawn.
+
+getProcessingMetrics() resolves to the state of the DspRuntime's pool, e.g.
+{"poolSize": 4, "liveThreads": 4, "activeThreads": 1, "pipelines": ["Raw_EEG"], "queued": 0,
+"completedTasks": 52310, "utilisation": 0.31}
+*/
+public class LatencyModule extends ReactContextBaseJavaModule {
+
+    // ---------------------------------------------------------
+    // Constructor
+    public LatencyModule(ReactApplicationContext reactContext) {
+        super(reactContext);
+    }
+
+    // ---------------------------------------------------------
+    // React Native Module methods
+    // Required by ReactContextBaseJavaModule
+    @Override
+    public String getName() {
+        return "Latency";
+    }
+
+    // ------------------------------------------------------------
+    // Bridged methods
+
+    @ReactMethod
+    public void getLatencies(Promise promise) {
+        WritableMap graphs = Arguments.createMap();
+        for (Map.Entry<String, LatencyTracker> entry : LatencyTracker.getAll().entrySet()) {
+            WritableMap stages = Arguments.createMap();
+            for (int stage = 0; stage < LatencyTracker.STAGES.length; stage++) {
+                LatencyHistogram histogram = entry.getValue().getHistogram(stage);
+                stages.putMap(LatencyTracker.STAGES[stage], toMap(histogram));
+            }
+            graphs.putMap(entry.getKey(), stages);
+        }
+        promise.resolve(graphs);
+    }
+
+    @ReactMethod
+    public void resetLatencies() {
+        for (LatencyTracker tracker : LatencyTracker.getAll().values()) {
+            tracker.reset();
+        }
+        RenderScheduler.getInstance().resetMetrics();
+        DspRuntime.getInstance().resetMetrics();
+    }
+
+    @ReactMethod
+    public void getRenderMetrics(Promise promise) {
+        RenderScheduler scheduler = RenderScheduler.getInstance();
+        WritableMap metrics = Arguments.createMap();
+        metrics.putInt("targetFrameRate", scheduler.getTargetFrameRate());
+        metrics.putDouble("frames", scheduler.getFrameCount());
+        metrics.putDouble("redraws", scheduler.getRedrawCount());
+        metrics.putMap("drawTime", toMap(scheduler.getDrawTime()));
+        metrics.putMap("frameInterval", toMap(scheduler.getFrameInterval()));
+        promise.resolve(metrics);
+    }
+
+    @ReactMethod
+    public void setTargetFrameRate(int framesPerSecond) {
+        RenderScheduler.getInstance().setTargetFrameRate(framesPerSecond);
+    }
+
+    @ReactMethod
+    public void getProcessingMetrics(Promise promise) {
+        DspRuntime runtime = DspRuntime.getInstance();
+        WritableArray pipelines = Arguments.createArray();
+        for (DspRuntime.Task task : runtime.getPipelines()) {
+            pipelines.pushString(task.getName());
+        }
+
+        WritableMap metrics = Arguments.createMap();
+        metrics.putInt("poolSize", runtime.getPoolSize());
+        metrics.putInt("liveThreads", runtime.getLiveThreadCount());
+        metrics.putInt("activeThreads", runtime.getActiveThreadCount());
+        metrics.putArray("pipelines", pipelines);
+        metrics.putInt("queued", runtime.getQueueLength());
+        metrics.putDouble("completedTasks", runtime.getCompletedTaskCount());
+        metrics.putDouble("utilisation", runtime.getUtilisation());
+        promise.resolve(metrics);
+    }
+
+    // p50, p99 and max in ms, and count
+    private static WritableMap toMap(LatencyHistogram histogram) {
+        WritableMap stats = Arguments.createMap();
+        stats.putDouble("p50", histogram.getValueAtPercentile(50) / 1e6);
+        stats.putDouble("p99", histogram.getValueAtPercentile(99) / 1e6);
+        stats.putDouble("max", histogram.getMax() / 1e6);
+        stats.putDouble("count", histogram.getCount());
+        return stats;
+    }
+}
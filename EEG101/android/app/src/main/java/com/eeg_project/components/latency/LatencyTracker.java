@@ -0,0 +1,128 @@
+package com.eeg_project.components.latency;
+
+import android.graphics.Canvas;
+
+import com.androidplot.Plot;
+import com.androidplot.PlotListener;
+import com.eeg_project.components.signal.LatencyHistogram;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+Measures how long samples take to go from the AcquisitionHub to the plot of a graph
+
+Every sample is stamped with System.nanoTime() when the hub receives it, and the stamp travels with
+it through the hub's CircularBuffer. Latencies are recorded at each checkpoint:
+PROCESSING : hub received the sample -> graph's data thread read and filtered it
+DATA_THREAD : hub received the sample -> data thread added it to the plotted series
+RENDER : data thread added the sample -> plot drawn with it
+TOTAL : hub received the sample -> plot drawn with it
+The plot is drawn into androidplot's buffer, so it reaches the screen at the next frame.
+
+Recording only stores counters (see LatencyHistogram), so it stays on for every sample. Trackers
+are kept by graph name for LatencyModule, and survive the graphs being recreated.
+*/
+public final class LatencyTracker implements PlotListener {
+
+    // ------------------------------------------------------------------------
+    // Variables
+
+    public static final int PROCESSING = 0;
+    public static final int DATA_THREAD = 1;
+    public static final int RENDER = 2;
+    public static final int TOTAL = 3;
+    public static final String[] STAGES = {"processing", "dataThread", "render", "total"};
+
+    private static final Map<String, LatencyTracker> trackers = new ConcurrentHashMap<String, LatencyTracker>();
+
+    private final LatencyHistogram[] histograms = new LatencyHistogram[STAGES.length];
+
+    // Newest sample added to the series by the data thread: its ingest time and when it was added
+    private volatile long consumedTime;
+    private volatile long consumedIngestTime;
+
+    // Ingest time of the newest sample drawn (only used by the drawing thread)
+    private long drawnIngestTime;
+
+    // ------------------------------------------------------------------------
+    // Constructor
+
+    private LatencyTracker() {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+    }
+
+    // Tracker of a graph, created on first use
+    public static LatencyTracker get(String graph) {
+        LatencyTracker tracker = trackers.get(graph);
+        if (tracker == null) {
+            synchronized (trackers) {
+                tracker = trackers.get(graph);
+                if (tracker == null) {
+                    tracker = new LatencyTracker();
+                    trackers.put(graph, tracker);
+                }
+            }
+        }
+        return tracker;
+    }
+
+    public static Map<String, LatencyTracker> getAll() {
+        return Collections.unmodifiableMap(trackers);
+    }
+
+    // ------------------------------------------------------------------------
+    // Methods
+
+    // Called by the data thread once the sample stamped with ingestTime is read and filtered
+    public void recordProcessed(long ingestTime) {
+        if (ingestTime == 0) {
+            return;
+        }
+        histograms[PROCESSING].record(System.nanoTime() - ingestTime);
+    }
+
+    // Called by the data thread once the sample stamped with ingestTime is in the plotted series
+    public void recordConsumed(long ingestTime) {
+        if (ingestTime == 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        histograms[DATA_THREAD].record(now - ingestTime);
+        consumedTime = now;
+        consumedIngestTime = ingestTime;
+    }
+
+    public LatencyHistogram getHistogram(int stage) {
+        return histograms[stage];
+    }
+
+    public void reset() {
+        for (LatencyHistogram histogram : histograms) {
+            histogram.reset();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // PlotListener methods
+
+    @Override
+    public void onBeforeDraw(Plot source, Canvas canvas) {
+    }
+
+    @Override
+    public void onAfterDraw(Plot source, Canvas canvas) {
+        // Redraws without new samples are not counted
+        long ingestTime = consumedIngestTime;
+        if (ingestTime == 0 || ingestTime == drawnIngestTime) {
+            return;
+        }
+        long now = System.nanoTime();
+        histograms[RENDER].record(now - consumedTime);
+        histograms[TOTAL].record(now - ingestTime);
+        drawnIngestTime = ingestTime;
+    }
+}
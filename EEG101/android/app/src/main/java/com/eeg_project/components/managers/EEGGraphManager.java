@@ -33,6 +33,13 @@ public class EEGGraphManager extends SimpleViewManager<EEGGraph> {
         return eegGraph;
     }
 
+    // Called when React Native removes the view. Ends its data pipeline, so no processing outlives it
+    @Override
+    public void onDropViewInstance(EEGGraph view) {
+        view.stopThreads();
+        super.onDropViewInstance(view);
+    }
+
     // Bridge function for visibility prop. View.VISIBILITY is a native property of Android views
     @ReactProp(name = "visibility", defaultBoolean = false)
     public void setVisibility(EEGGraph graph, @Nullable boolean isVisible) {
@@ -59,6 +66,12 @@ public class EEGGraphManager extends SimpleViewManager<EEGGraph> {
         }
     }
 
+    // Bridge function for recordingFormat prop ("csv", "binary" or "compressed"). Calls setRecordingFormat in EEGGraph
+    @ReactProp(name = "recordingFormat")
+    public void setRecordingFormat(EEGGraph graph, @Nullable String format) {
+        graph.setRecordingFormat(format);
+    }
+
     // Bridge function for receiving 'start threads' and 'stop threads' commands from the
     // dispatchViewManagerCommand() method in JS. Currently, only used in stopping threads when
     // switching between graphs in the SandboxGraph component
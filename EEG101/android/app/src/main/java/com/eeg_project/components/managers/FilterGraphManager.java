@@ -31,6 +31,13 @@ public class FilterGraphManager extends SimpleViewManager<FilterGraph> {
         return bufferGraph;
     }
 
+    // Called when React Native removes the view. Ends its data pipeline, so no processing outlives it
+    @Override
+    public void onDropViewInstance(FilterGraph view) {
+        view.stopThreads();
+        super.onDropViewInstance(view);
+    }
+
     // Bridge function for visibility prop. View.VISIBILITY is a native property of Android views
     @ReactProp(name = "visibility")
     public void setVisibility(FilterGraph graph, @Nullable boolean isVisible) {
@@ -64,6 +71,12 @@ public class FilterGraphManager extends SimpleViewManager<FilterGraph> {
         }
     }
 
+    // Bridge function for recordingFormat prop ("csv", "binary" or "compressed"). Calls setRecordingFormat in FilterGraph
+    @ReactProp(name = "recordingFormat")
+    public void setRecordingFormat(FilterGraph graph, @Nullable String format) {
+        graph.setRecordingFormat(format);
+    }
+
     // Bridge function for receiving 'start threads' and 'stop threads' commands from the
     // dispatchViewManagerCommand() method in JS. Currently, only used in stopping threads when
     // switching between graphs in the SandboxGraph component
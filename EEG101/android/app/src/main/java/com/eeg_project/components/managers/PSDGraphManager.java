@@ -31,6 +31,13 @@ public class PSDGraphManager extends SimpleViewManager<PSDGraph> {
         return psdGraph;
     }
 
+    // Called when React Native removes the view. Ends its data pipeline, so no processing outlives it
+    @Override
+    public void onDropViewInstance(PSDGraph view) {
+        view.stopThreads();
+        super.onDropViewInstance(view);
+    }
+
     // Bridge function for visibility prop. View.VISIBILITY is a native property of Android views
     @ReactProp(name = "visibility")
     public void setVisibility(PSDGraph graph, @Nullable boolean isVisible) {
@@ -57,6 +64,12 @@ public class PSDGraphManager extends SimpleViewManager<PSDGraph> {
         }
     }
 
+    // Bridge function for recordingFormat prop ("csv", "binary" or "compressed"). Calls setRecordingFormat in PSDGraph
+    @ReactProp(name = "recordingFormat")
+    public void setRecordingFormat(PSDGraph graph, @Nullable String format) {
+        graph.setRecordingFormat(format);
+    }
+
     // Bridge function for receiving 'start threads' and 'stop threads' commands from the
     // dispatchViewManagerCommand() method in JS. Currently, only used in stopping threads when
     // switching between graphs in the SandboxGraph component    @Override
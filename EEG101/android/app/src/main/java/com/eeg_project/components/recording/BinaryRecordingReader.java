@@ -0,0 +1,131 @@
+package com.eeg_project.components.recording;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/*
+Reads binary recordings written by BinaryRecordingWriter, block by block, and converts them back to
+csv
+
+Usage as a converter: java com.eeg_project.components.recording.BinaryRecordingReader in out.csv
+
+Args:
+in (InputStream) : the recording, starting with its header
+*/
+public class BinaryRecordingReader implements Closeable {
+
+    // ------------------------------------------------------------------------
+    // Variables
+
+    private final DataInputStream in;
+    private final RecordingHeader header;
+    private final int nbColumns;
+    private final ByteBuffer block;
+
+    // ------------------------------------------------------------------------
+    // Constructor
+
+    public BinaryRecordingReader(InputStream in) throws IOException {
+        this.in = new DataInputStream(new BufferedInputStream(in, 64 * 1024));
+        header = RecordingHeader.read(this.in);
+        nbColumns = header.getNbColumns();
+        block = ByteBuffer.allocate(BinaryRecordingWriter.blockSize(BinaryRecordingWriter.MAX_ROWS_PER_BLOCK, nbColumns))
+                .order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    // ------------------------------------------------------------------------
+    // Methods
+
+    public RecordingHeader getHeader() {
+        return header;
+    }
+
+    public int readBlock(long[] timestamps, float[] values) throws IOException {
+        // Read the next block into timestamps[nbRows] and values[nbRows * nbColumns] (arrays of at
+        // least MAX_ROWS_PER_BLOCK rows). Returns the number of rows, or -1 at the end of the file
+
+        int nbRows;
+        try {
+            nbRows = Integer.reverseBytes(in.readInt());
+        } catch (EOFException e) {
+            return -1;
+        }
+        if (nbRows <= 0 || nbRows > BinaryRecordingWriter.MAX_ROWS_PER_BLOCK) {
+            throw new IOException("Corrupted block of " + nbRows + " rows.");
+        }
+
+        int size = BinaryRecordingWriter.blockSize(nbRows, nbColumns) - 4;
+        in.readFully(block.array(), 0, size);
+        block.clear();
+        long firstTimestamp = block.getLong();
+        for (int i = 0; i < nbRows; i++) {
+            timestamps[i] = firstTimestamp + block.getChar();
+        }
+        block.asFloatBuffer().get(values, 0, nbRows * nbColumns);
+        return nbRows;
+    }
+
+    public void toCsv(Writer out) throws IOException {
+        // Write the rest of the recording as csv, with the header's column titles
+
+        long[] timestamps = new long[BinaryRecordingWriter.MAX_ROWS_PER_BLOCK];
+        float[] values = new float[BinaryRecordingWriter.MAX_ROWS_PER_BLOCK * nbColumns];
+        StringBuilder line = new StringBuilder(256);
+        out.write(header.getCsvHeader());
+        out.write('\n');
+        int nbRows;
+        while ((nbRows = readBlock(timestamps, values)) > 0) {
+            for (int i = 0; i < nbRows; i++) {
+                line.setLength(0);
+                line.append(timestamps[i]).append(',');
+                for (int j = 0; j < nbColumns; j++) {
+                    line.append(values[i*nbColumns + j]);
+                    if (j < nbColumns - 1) {
+                        line.append(',');
+                    }
+                }
+                line.append('\n');
+                out.append(line);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    public static void convertToCsv(File recording, File csv) throws IOException {
+        BinaryRecordingReader reader = new BinaryRecordingReader(new FileInputStream(recording));
+        try {
+            Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(csv), "US-ASCII"), 64 * 1024);
+            try {
+                reader.toCsv(out);
+            } finally {
+                out.close();
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: BinaryRecordingReader <recording> <output.csv>");
+            System.exit(1);
+        }
+        convertToCsv(new File(args[0]), new File(args[1]));
+    }
+}
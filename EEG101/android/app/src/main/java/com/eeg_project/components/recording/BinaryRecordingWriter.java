@@ -0,0 +1,207 @@
+package com.eeg_project.components.recording;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+/*
+Writes rows to a compact binary recording
+
+The file starts with a RecordingHeader, followed by blocks of up to MAX_ROWS_PER_BLOCK rows.
+Every block is little-endian:
+int32 nbRows, int64 timestamp of the first row (ms), nbRows uint16 offsets of each row's
+timestamp from the first one (ms), nbRows * nbColumns float32 values (row-major)
+
+A new block is started when the current one is full, when a timestamp does not fit in the offsets
+(more than 65 s later, or earlier than the first row) and at every flush(). Rows with fewer values
+than the header's number of columns are padded with NaN.
+
+Values are stored as float32, which keeps ~7 significant digits (well below the noise of the
+headband) in 4 bytes, against ~18 characters for Double.toString() in the csv files.
+
+Args:
+out (OutputStream) : where the recording is written, closed by close()
+header (RecordingHeader) : description of the recording, written first
+*/
+public class BinaryRecordingWriter implements RecordingWriter {
+
+    // ------------------------------------------------------------------------
+    // Variables
+
+    public static final int MAX_ROWS_PER_BLOCK = 64;
+    static final int BLOCK_HEADER_SIZE = 4 + 8;
+    static final int MAX_TIMESTAMP_OFFSET = 0xffff;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    private final OutputStream out;
+    private final int nbColumns;
+
+    // Rows of the current block
+    private int nbRows;
+    private long firstTimestamp;
+    private final char[] offsets = new char[MAX_ROWS_PER_BLOCK];
+    private final float[] values;
+    private final ByteBuffer block;
+
+    // ------------------------------------------------------------------------
+    // Constructor
+
+    public BinaryRecordingWriter(OutputStream out, RecordingHeader header) throws IOException {
+        this.out = new BufferedOutputStream(out, WRITE_BUFFER_SIZE);
+        nbColumns = header.getNbColumns();
+        values = new float[MAX_ROWS_PER_BLOCK * nbColumns];
+        block = ByteBuffer.allocate(blockSize(MAX_ROWS_PER_BLOCK, nbColumns)).order(ByteOrder.LITTLE_ENDIAN);
+        header.write(this.out);
+    }
+
+    // ------------------------------------------------------------------------
+    // Methods
+
+    @Override
+    public void writeRow(long timestamp, double[] data, int offset, int width) throws IOException {
+        if (width > nbColumns) {
+            throw new IllegalArgumentException("Row has " + width + " values, the recording has " + nbColumns + " columns.");
+        }
+        if (nbRows > 0 && (timestamp < firstTimestamp || timestamp - firstTimestamp > MAX_TIMESTAMP_OFFSET)) {
+            writeBlock();
+        }
+        if (nbRows == 0) {
+            firstTimestamp = timestamp;
+        }
+
+        offsets[nbRows] = (char) (timestamp - firstTimestamp);
+        int start = nbRows * nbColumns;
+        for (int j = 0; j < width; j++) {
+            values[start + j] = (float) data[offset + j];
+        }
+        for (int j = width; j < nbColumns; j++) {
+            values[start + j] = Float.NaN;
+        }
+        nbRows++;
+
+        if (nbRows == MAX_ROWS_PER_BLOCK) {
+            writeBlock();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writeBlock();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            writeBlock();
+        } finally {
+            out.close();
+        }
+    }
+
+    static int blockSize(int nbRows, int nbColumns) {
+        return BLOCK_HEADER_SIZE + 2*nbRows + 4*nbRows*nbColumns;
+    }
+
+    private void writeBlock() throws IOException {
+        if (nbRows == 0) {
+            return;
+        }
+        block.clear();
+        block.putInt(nbRows);
+        block.putLong(firstTimestamp);
+        for (int i = 0; i < nbRows; i++) {
+            block.putChar(offsets[i]);
+        }
+        block.asFloatBuffer().put(values, 0, nbRows * nbColumns);
+        out.write(block.array(), 0, blockSize(nbRows, nbColumns));
+        nbRows = 0;
+    }
+
+    // Example main for testing: writes one simulated minute of each graph's recording (4-channel
+    // EEG rows every 3 samples at 256 Hz, 128-bin PSD rows every 26 samples) with the csv and the
+    // binary writers, and compares the bytes and the CPU time (time spent formatting on the writer
+    // thread) per second of recording. The binary files are then read back and compared
+    public static void main(String[] args) throws IOException {
+        double fs = 256;
+        double[] freqBins = new double[128];
+        for (int i = 0; i < freqBins.length; i++) {
+            freqBins[i] = i * fs / 256;
+        }
+        RecordingHeader eeg = new RecordingHeader(fs, new String[] {"TP9", "AF7", "AF8", "TP10"}, "uV",
+                new double[0], "MU_02");
+        RecordingHeader psd = new RecordingHeader(fs, new String[] {"TP9"}, "log10(uV^2/Hz)", freqBins, "MU_02");
+
+        benchmark("EEG", eeg, 3, fs);
+        benchmark("PSD", psd, 26, fs);
+    }
+
+    private static void benchmark(String name, RecordingHeader header, int step, double fs) throws IOException {
+        int seconds = 60;
+        int nbRows = (int) (seconds * fs / step);
+        int nbColumns = header.getNbColumns();
+        Random random = new Random(42);
+        double[][] rows = new double[nbRows][nbColumns];
+        long[] timestamps = new long[nbRows];
+        for (int i = 0; i < nbRows; i++) {
+            timestamps[i] = 1500000000000L + (long) (i * step * 1000 / fs);
+            for (int j = 0; j < nbColumns; j++) {
+                rows[i][j] = nbColumns > 4 ? 1 + 0.3*random.nextGaussian()
+                        : 800 + 40*Math.sin(2*Math.PI*10*i*step/fs + j) + 10*random.nextGaussian();
+            }
+        }
+
+        long csvBytes = 0, binaryBytes = 0;
+        long csvNanos = Long.MAX_VALUE, binaryNanos = Long.MAX_VALUE;
+        ByteArrayOutputStream binary = null;
+        for (int pass = 0; pass < 10; pass++) {
+            ByteArrayOutputStream csv = new ByteArrayOutputStream();
+            long start = System.nanoTime();
+            RecordingWriter writer = new CsvRecordingWriter(csv, header.getCsvHeader());
+            for (int i = 0; i < nbRows; i++) {
+                writer.writeRow(timestamps[i], rows[i], 0, nbColumns);
+            }
+            writer.close();
+            csvNanos = Math.min(csvNanos, System.nanoTime() - start);
+            csvBytes = csv.size();
+
+            binary = new ByteArrayOutputStream();
+            start = System.nanoTime();
+            writer = new BinaryRecordingWriter(binary, header);
+            for (int i = 0; i < nbRows; i++) {
+                writer.writeRow(timestamps[i], rows[i], 0, nbColumns);
+            }
+            writer.close();
+            binaryNanos = Math.min(binaryNanos, System.nanoTime() - start);
+            binaryBytes = binary.size();
+        }
+
+        // Read back: timestamps must be exact and values equal to their float32 rounding
+        BinaryRecordingReader reader = new BinaryRecordingReader(new ByteArrayInputStream(binary.toByteArray()));
+        long[] readTimestamps = new long[MAX_ROWS_PER_BLOCK];
+        float[] readValues = new float[MAX_ROWS_PER_BLOCK * nbColumns];
+        int row = 0;
+        boolean exact = true;
+        int n;
+        while ((n = reader.readBlock(readTimestamps, readValues)) > 0) {
+            for (int i = 0; i < n; i++, row++) {
+                exact &= readTimestamps[i] == timestamps[row];
+                for (int j = 0; j < nbColumns; j++) {
+                    exact &= readValues[i*nbColumns + j] == (float) rows[row][j];
+                }
+            }
+        }
+        reader.close();
+
+        System.out.println(String.format("%s, %d rows of %d values: csv %d B/s, %.2f ms CPU/s; binary %d B/s, "
+                + "%.2f ms CPU/s (%.1fx smaller, %.1fx faster); read back %d rows %s", name, nbRows, nbColumns,
+                csvBytes / seconds, csvNanos / 1e6 / seconds, binaryBytes / seconds, binaryNanos / 1e6 / seconds,
+                (double) csvBytes / binaryBytes, (double) csvNanos / binaryNanos, row,
+                exact && row == nbRows ? "identical" : "DIFFERENT"));
+    }
+}
@@ -0,0 +1,243 @@
+package com.eeg_project.components.recording;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/*
+Lossless encoding of chunks of quantized samples, used by CompressedRecordingWriter and
+CompressedRecordingReader
+
+Consecutive EEG samples differ very little, so every column of a chunk is stored as its first
+value followed by the differences between consecutive values. Differences are zig-zag encoded
+(0, -1, 1, -2, ... -> 0, 1, 2, 3, ...) so small negative and positive values both become small
+integers, then written either as varints (7 bits per byte) or bit-packed relative to their minimum
+(frame of reference), whichever is smaller for that column. Timestamps are encoded the same way.
+
+Chunk layout:
+varint nbRows, varint first timestamp, nbRows - 1 timestamp differences,
+then for every column: zig-zag varint first value, mode byte, nbRows - 1 differences
+
+Mode VARINT: zig-zag varint per difference
+Mode PACKED: zig-zag varint minimum difference, bit width byte, then every (difference - minimum)
+in `width` bits, least significant bit first, padded to a whole byte
+*/
+final class ChunkCodec {
+
+    // ------------------------------------------------------------------------
+    // Variables
+
+    private static final int VARINT = 0;
+    private static final int PACKED = 1;
+
+    // Encoded bytes of the last chunk
+    private byte[] out = new byte[4096];
+    private int size;
+
+    // Read position while decoding
+    private byte[] in;
+    private int position;
+    private int end;
+
+    // ------------------------------------------------------------------------
+    // Encoding
+
+    // Encode the first nbRows values of timestamps and of every column. The result is
+    // getBytes()[0, getSize())
+    void encode(long[] timestamps, long[][] columns, int nbRows) {
+        size = 0;
+        writeVarint(nbRows);
+        if (nbRows == 0) {
+            return;
+        }
+        writeVarint(zigZag(timestamps[0]));
+        encodeDifferences(timestamps, nbRows);
+        for (long[] column : columns) {
+            writeVarint(zigZag(column[0]));
+            encodeDifferences(column, nbRows);
+        }
+    }
+
+    byte[] getBytes() {
+        return out;
+    }
+
+    int getSize() {
+        return size;
+    }
+
+    private void encodeDifferences(long[] x, int nbRows) {
+        if (nbRows < 2) {
+            writeByte(VARINT);
+            return;
+        }
+
+        // Size of both encodings, to pick the smaller one
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        long varintBytes = 0;
+        for (int i = 1; i < nbRows; i++) {
+            long d = x[i] - x[i - 1];
+            min = Math.min(min, d);
+            max = Math.max(max, d);
+            varintBytes += varintSize(zigZag(d));
+        }
+        int width = 64 - Long.numberOfLeadingZeros(max - min);
+        long packedBytes = varintSize(zigZag(min)) + 1 + ((long) width*(nbRows - 1) + 7) / 8;
+
+        if (varintBytes <= packedBytes) {
+            writeByte(VARINT);
+            for (int i = 1; i < nbRows; i++) {
+                writeVarint(zigZag(x[i] - x[i - 1]));
+            }
+        } else {
+            writeByte(PACKED);
+            writeVarint(zigZag(min));
+            writeByte(width);
+            ensureCapacity((int) packedBytes);
+            long accumulator = 0;
+            int bits = 0;
+            for (int i = 1; i < nbRows; i++) {
+                long v = x[i] - x[i - 1] - min;
+                accumulator |= v << bits;
+                if (bits + width >= 64) {
+                    // Flush the 64 full bits, keep the high bits of v that did not fit
+                    writeLong(accumulator);
+                    accumulator = (bits == 0) ? 0 : v >>> (64 - bits);
+                    bits = bits + width - 64;
+                } else {
+                    bits += width;
+                }
+            }
+            for (; bits > 0; bits -= 8) {
+                writeByte((int) accumulator);
+                accumulator >>>= 8;
+            }
+        }
+    }
+
+    private void writeVarint(long v) {
+        ensureCapacity(10);
+        while ((v & ~0x7fL) != 0) {
+            out[size++] = (byte) ((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        out[size++] = (byte) v;
+    }
+
+    private void writeByte(int b) {
+        ensureCapacity(1);
+        out[size++] = (byte) b;
+    }
+
+    private void writeLong(long v) {
+        ensureCapacity(8);
+        for (int i = 0; i < 8; i++) {
+            out[size++] = (byte) v;
+            v >>>= 8;
+        }
+    }
+
+    private void ensureCapacity(int n) {
+        if (size + n > out.length) {
+            out = Arrays.copyOf(out, Math.max(2*out.length, size + n));
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // Decoding
+
+    // Decode a chunk from src[offset, offset + length) into timestamps and columns (each with room
+    // for the chunk's rows). Returns the number of rows
+    int decode(byte[] src, int offset, int length, long[] timestamps, long[][] columns) throws IOException {
+        in = src;
+        position = offset;
+        end = offset + length;
+
+        long nbRows = readVarint();
+        if (nbRows < 0 || nbRows > timestamps.length) {
+            throw new IOException("Corrupted chunk of " + nbRows + " rows.");
+        }
+        int n = (int) nbRows;
+        if (n > 0) {
+            timestamps[0] = unZigZag(readVarint());
+            decodeDifferences(timestamps, n);
+            for (long[] column : columns) {
+                column[0] = unZigZag(readVarint());
+                decodeDifferences(column, n);
+            }
+        }
+        if (position != end) {
+            throw new IOException("Corrupted chunk: " + (end - position) + " bytes left over.");
+        }
+        return n;
+    }
+
+    private void decodeDifferences(long[] x, int nbRows) throws IOException {
+        int mode = readByte();
+        if (mode == VARINT) {
+            for (int i = 1; i < nbRows; i++) {
+                x[i] = x[i - 1] + unZigZag(readVarint());
+            }
+        } else if (mode == PACKED) {
+            long min = unZigZag(readVarint());
+            int width = readByte();
+            if (width > 64) {
+                throw new IOException("Corrupted chunk: bit width " + width + ".");
+            }
+            int current = 0;
+            int bitsLeft = 0; // bits of `current` not read yet
+            for (int i = 1; i < nbRows; i++) {
+                long v = 0;
+                for (int got = 0; got < width; ) {
+                    if (bitsLeft == 0) {
+                        current = readByte();
+                        bitsLeft = 8;
+                    }
+                    int take = Math.min(bitsLeft, width - got);
+                    v |= (long) (current & ((1 << take) - 1)) << got;
+                    current >>>= take;
+                    bitsLeft -= take;
+                    got += take;
+                }
+                x[i] = x[i - 1] + v + min;
+            }
+        } else {
+            throw new IOException("Corrupted chunk: unknown mode " + mode + ".");
+        }
+    }
+
+    private long readVarint() throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte();
+            v |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IOException("Corrupted chunk: varint too long.");
+    }
+
+    private int readByte() throws IOException {
+        if (position >= end) {
+            throw new IOException("Corrupted chunk: truncated.");
+        }
+        return in[position++] & 0xff;
+    }
+
+    // ------------------------------------------------------------------------
+    // Helpers
+
+    static long zigZag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    static long unZigZag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private static int varintSize(long v) {
+        int bits = 64 - Long.numberOfLeadingZeros(v | 1);
+        return (bits + 6) / 7;
+    }
+}
@@ -0,0 +1,169 @@
+package com.eeg_project.components.recording;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.zip.CRC32;
+
+/*
+Reads compressed recordings written by CompressedRecordingWriter, chunk by chunk, and converts them
+to csv. The checksum of every chunk is verified before it is decoded
+
+Usage as a converter: java com.eeg_project.components.recording.CompressedRecordingReader in out.csv
+
+Args:
+in (InputStream) : the recording, starting with its header
+*/
+public class CompressedRecordingReader implements Closeable {
+
+    // ------------------------------------------------------------------------
+    // Variables
+
+    private final DataInputStream in;
+    private final RecordingHeader header;
+    private final double quantizationStep;
+    private final int chunkRows;
+    private final int nbColumns;
+
+    private final ChunkCodec codec = new ChunkCodec();
+    private final CRC32 crc = new CRC32();
+    private byte[] payload = new byte[4096];
+    private final long[][] columns;
+    private int chunkIndex;
+
+    // ------------------------------------------------------------------------
+    // Constructor
+
+    public CompressedRecordingReader(InputStream in) throws IOException {
+        this.in = new DataInputStream(new BufferedInputStream(in, 64 * 1024));
+        byte[] magic = new byte[CompressedRecordingWriter.MAGIC.length];
+        this.in.readFully(magic);
+        for (int i = 0; i < magic.length; i++) {
+            if (magic[i] != CompressedRecordingWriter.MAGIC[i]) {
+                throw new IOException("Not a compressed EEG recording.");
+            }
+        }
+        int version = Short.reverseBytes(this.in.readShort()) & 0xffff;
+        if (version != CompressedRecordingWriter.VERSION) {
+            throw new IOException("Unsupported recording version " + version + ".");
+        }
+        quantizationStep = Double.longBitsToDouble(Long.reverseBytes(this.in.readLong()));
+        chunkRows = Integer.reverseBytes(this.in.readInt());
+        header = RecordingHeader.read(this.in);
+        nbColumns = header.getNbColumns();
+        columns = new long[nbColumns][chunkRows];
+    }
+
+    // ------------------------------------------------------------------------
+    // Methods
+
+    public RecordingHeader getHeader() {
+        return header;
+    }
+
+    public double getQuantizationStep() {
+        return quantizationStep;
+    }
+
+    // Maximum number of rows returned by readChunk()
+    public int getChunkRows() {
+        return chunkRows;
+    }
+
+    public int readChunk(long[] timestamps, double[] values) throws IOException {
+        // Read the next chunk into timestamps[nbRows] and values[nbRows * nbColumns] (row-major,
+        // arrays of at least getChunkRows() rows). Returns the number of rows, or -1 at the end of
+        // the file
+
+        int length;
+        try {
+            length = Integer.reverseBytes(in.readInt());
+        } catch (EOFException e) {
+            return -1;
+        }
+        int checksum = Integer.reverseBytes(in.readInt());
+        if (length < 0) {
+            throw new IOException("Corrupted chunk " + chunkIndex + ".");
+        }
+        if (length > payload.length) {
+            payload = new byte[length];
+        }
+        in.readFully(payload, 0, length);
+        crc.reset();
+        crc.update(payload, 0, length);
+        if ((int) crc.getValue() != checksum) {
+            throw new IOException("Checksum mismatch in chunk " + chunkIndex + ".");
+        }
+
+        int nbRows = codec.decode(payload, 0, length, timestamps, columns);
+        for (int j = 0; j < nbColumns; j++) {
+            long[] column = columns[j];
+            for (int i = 0; i < nbRows; i++) {
+                values[i*nbColumns + j] = column[i] * quantizationStep;
+            }
+        }
+        chunkIndex++;
+        return nbRows;
+    }
+
+    public void toCsv(Writer out) throws IOException {
+        // Write the rest of the recording as csv, with the header's column titles
+
+        long[] timestamps = new long[chunkRows];
+        double[] values = new double[chunkRows * nbColumns];
+        StringBuilder line = new StringBuilder(256);
+        out.write(header.getCsvHeader());
+        out.write('\n');
+        int nbRows;
+        while ((nbRows = readChunk(timestamps, values)) > 0) {
+            for (int i = 0; i < nbRows; i++) {
+                line.setLength(0);
+                line.append(timestamps[i]).append(',');
+                for (int j = 0; j < nbColumns; j++) {
+                    line.append(values[i*nbColumns + j]);
+                    if (j < nbColumns - 1) {
+                        line.append(',');
+                    }
+                }
+                line.append('\n');
+                out.append(line);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    public static void convertToCsv(File recording, File csv) throws IOException {
+        CompressedRecordingReader reader = new CompressedRecordingReader(new FileInputStream(recording));
+        try {
+            Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(csv), "US-ASCII"), 64 * 1024);
+            try {
+                reader.toCsv(out);
+            } finally {
+                out.close();
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: CompressedRecordingReader <recording> <output.csv>");
+            System.exit(1);
+        }
+        convertToCsv(new File(args[0]), new File(args[1]));
+    }
+}
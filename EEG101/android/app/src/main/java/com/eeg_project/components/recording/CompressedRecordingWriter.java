@@ -0,0 +1,272 @@
+package com.eeg_project.components.recording;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+/*
+Writes rows to a losslessly compressed recording, small enough to be emailed after hours of EEG
+
+Values are quantized to integer multiples of `quantizationStep` (e.g. 0.01 uV for EEG, well
+below the resolution of the headband) and then stored exactly: every chunk of up to `chunkRows`
+rows is encoded column by column as differences between consecutive values (see ChunkCodec).
+Each chunk carries a CRC32, so a damaged file can still be read up to the damaged chunk.
+Non-finite values are not supported (NaN is stored as 0).
+
+File layout (little-endian):
+"EEGZ" magic, int16 version, float64 quantizationStep, int32 chunkRows, RecordingHeader,
+then chunks of: int32 payload length, int32 CRC32 of the payload, payload
+
+Args:
+out (OutputStream) : where the recording is written, closed by close()
+header (RecordingHeader) : description of the recording
+quantizationStep (double) : resolution at which values are stored, in the header's units
+chunkRows (int) : maximum number of rows per chunk
+*/
+public class CompressedRecordingWriter implements RecordingWriter {
+
+    // ------------------------------------------------------------------------
+    // Variables
+
+    static final byte[] MAGIC = {'E', 'E', 'G', 'Z'};
+    static final int VERSION = 1;
+    public static final int DEFAULT_CHUNK_ROWS = 256;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    private final OutputStream out;
+    private final int nbColumns;
+    private final int chunkRows;
+    private final double quantizationStep;
+
+    // Quantized rows of the current chunk
+    private int nbRows;
+    private final long[] timestamps;
+    private final long[][] columns;
+
+    private final ChunkCodec codec = new ChunkCodec();
+    private final CRC32 crc = new CRC32();
+    private final ByteBuffer chunkHeader = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+
+    private long encodedBytes;
+
+    // ------------------------------------------------------------------------
+    // Constructors
+
+    public CompressedRecordingWriter(OutputStream out, RecordingHeader header, double quantizationStep) throws IOException {
+        this(out, header, quantizationStep, DEFAULT_CHUNK_ROWS);
+    }
+
+    public CompressedRecordingWriter(OutputStream out, RecordingHeader header, double quantizationStep, int chunkRows)
+            throws IOException {
+        if (!(quantizationStep > 0) || chunkRows <= 0) {
+            throw new IllegalArgumentException("Quantization step and chunk size must be positive.");
+        }
+        this.out = new BufferedOutputStream(out, WRITE_BUFFER_SIZE);
+        this.nbColumns = header.getNbColumns();
+        this.chunkRows = chunkRows;
+        this.quantizationStep = quantizationStep;
+        timestamps = new long[chunkRows];
+        columns = new long[nbColumns][chunkRows];
+
+        ByteBuffer buffer = ByteBuffer.allocate(MAGIC.length + 2 + 8 + 4).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(MAGIC);
+        buffer.putShort((short) VERSION);
+        buffer.putDouble(quantizationStep);
+        buffer.putInt(chunkRows);
+        this.out.write(buffer.array());
+        header.write(this.out);
+    }
+
+    // ------------------------------------------------------------------------
+    // Methods
+
+    @Override
+    public void writeRow(long timestamp, double[] data, int offset, int width) throws IOException {
+        // Rows with fewer values than the header's number of columns are padded with 0
+        if (width > nbColumns) {
+            throw new IllegalArgumentException("Row has " + width + " values, the recording has " + nbColumns + " columns.");
+        }
+        timestamps[nbRows] = timestamp;
+        for (int j = 0; j < width; j++) {
+            columns[j][nbRows] = Math.round(data[offset + j] / quantizationStep);
+        }
+        for (int j = width; j < nbColumns; j++) {
+            columns[j][nbRows] = 0;
+        }
+        nbRows++;
+
+        if (nbRows == chunkRows) {
+            writeChunk();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writeChunk();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            writeChunk();
+        } finally {
+            out.close();
+        }
+    }
+
+    // Compressed bytes written so far, headers excluded
+    public long getEncodedBytes() {
+        return encodedBytes;
+    }
+
+    private void writeChunk() throws IOException {
+        if (nbRows == 0) {
+            return;
+        }
+        codec.encode(timestamps, columns, nbRows);
+        crc.reset();
+        crc.update(codec.getBytes(), 0, codec.getSize());
+        chunkHeader.clear();
+        chunkHeader.putInt(codec.getSize());
+        chunkHeader.putInt((int) crc.getValue());
+        out.write(chunkHeader.array());
+        out.write(codec.getBytes(), 0, codec.getSize());
+        encodedBytes += 8 + codec.getSize();
+        nbRows = 0;
+    }
+
+    // Example main for testing: compresses 10 minutes of 4-channel EEG at 256 Hz (every sample,
+    // quantized to 0.01 uV) and reports the size against the csv and float32 binary formats, the
+    // encode and decode speed (in MB/s of float32 input) and whether the decoded values are
+    // exactly the quantized input. Synthetic data is a Muse-like signal with 12-bit samples
+    // (offset, 1/f-like background, alpha, line noise) and, as a worst case, white noise. A csv
+    // written by EEGFileWriter can be passed as argument to also test recorded data
+    public static void main(String[] args) throws IOException {
+        int fs = 256;
+        int nbRows = 600 * fs;
+        Random random = new Random(42);
+
+        long[] timestamps = new long[nbRows];
+        double[][] muse = new double[nbRows][4];
+        double[][] white = new double[nbRows][4];
+        double[] background = new double[4];
+        double adcStep = 1682.815 / 4096; // uV per bit of the headband's 12-bit samples
+        for (int i = 0; i < nbRows; i++) {
+            timestamps[i] = 1500000000000L + i * 1000L / fs;
+            for (int c = 0; c < 4; c++) {
+                background[c] = 0.98*background[c] + 3*random.nextGaussian();
+                double v = 800 + background[c] + 15*Math.sin(2*Math.PI*10*i/fs + c) + 5*Math.sin(2*Math.PI*60*i/fs);
+                muse[i][c] = Math.round(v / adcStep) * adcStep;
+                white[i][c] = 800 + 50*random.nextGaussian();
+            }
+        }
+        benchmark("Synthetic Muse-like EEG", timestamps, muse, 0.01);
+        benchmark("White noise", timestamps, white, 0.01);
+
+        if (args.length > 0) {
+            List<Long> recordedTimestamps = new ArrayList<Long>();
+            List<double[]> recordedRows = new ArrayList<double[]>();
+            BufferedReader reader = new BufferedReader(new FileReader(args[0]));
+            try {
+                reader.readLine(); // column titles
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split(",");
+                    double[] row = new double[fields.length - 1];
+                    for (int j = 0; j < row.length; j++) {
+                        row[j] = Double.parseDouble(fields[j + 1]);
+                    }
+                    recordedTimestamps.add(Long.parseLong(fields[0]));
+                    recordedRows.add(row);
+                }
+            } finally {
+                reader.close();
+            }
+            long[] t = new long[recordedRows.size()];
+            for (int i = 0; i < t.length; i++) {
+                t[i] = recordedTimestamps.get(i);
+            }
+            benchmark("Recorded " + args[0], t, recordedRows.toArray(new double[0][]), 0.01);
+        }
+    }
+
+    private static void benchmark(String name, long[] timestamps, double[][] rows, double step) throws IOException {
+        int nbRows = rows.length;
+        int nbColumns = rows[0].length;
+        String[] channels = new String[nbColumns];
+        for (int c = 0; c < nbColumns; c++) {
+            channels[c] = "Electrode " + (c + 1);
+        }
+        RecordingHeader header = new RecordingHeader(256, channels, "uV", new double[0], "MU_02");
+
+        ByteArrayOutputStream csv = new ByteArrayOutputStream();
+        RecordingWriter csvWriter = new CsvRecordingWriter(csv, header.getCsvHeader());
+        ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        RecordingWriter binaryWriter = new BinaryRecordingWriter(binary, header);
+        for (int i = 0; i < nbRows; i++) {
+            csvWriter.writeRow(timestamps[i], rows[i], 0, nbColumns);
+            binaryWriter.writeRow(timestamps[i], rows[i], 0, nbColumns);
+        }
+        csvWriter.close();
+        binaryWriter.close();
+
+        // Best of several passes, to leave out JIT warm-up
+        ByteArrayOutputStream compressed = null;
+        long encodeNanos = Long.MAX_VALUE;
+        for (int pass = 0; pass < 5; pass++) {
+            compressed = new ByteArrayOutputStream(binary.size());
+            long start = System.nanoTime();
+            RecordingWriter writer = new CompressedRecordingWriter(compressed, header, step);
+            for (int i = 0; i < nbRows; i++) {
+                writer.writeRow(timestamps[i], rows[i], 0, nbColumns);
+            }
+            writer.close();
+            encodeNanos = Math.min(encodeNanos, System.nanoTime() - start);
+        }
+
+        long decodeNanos = Long.MAX_VALUE;
+        boolean exact = true;
+        for (int pass = 0; pass < 5; pass++) {
+            long start = System.nanoTime();
+            CompressedRecordingReader reader = new CompressedRecordingReader(new ByteArrayInputStream(compressed.toByteArray()));
+            long[] t = new long[reader.getChunkRows()];
+            double[] values = new double[reader.getChunkRows() * nbColumns];
+            int row = 0;
+            int n;
+            while ((n = reader.readChunk(t, values)) > 0) {
+                if (pass == 0) {
+                    for (int i = 0; i < n; i++) {
+                        exact &= t[i] == timestamps[row + i];
+                        for (int j = 0; j < nbColumns; j++) {
+                            exact &= values[i*nbColumns + j] == Math.round(rows[row + i][j] / step) * step;
+                        }
+                    }
+                }
+                row += n;
+            }
+            reader.close();
+            exact &= row == nbRows;
+            decodeNanos = Math.min(decodeNanos, System.nanoTime() - start);
+        }
+
+        double inputMB = 4. * nbRows * nbColumns / 1e6;
+        System.out.println(String.format("%s, %d rows of %d values: csv %d kB, float32 %d kB, compressed %d kB "
+                + "(%.1fx smaller than csv, %.1fx smaller than float32, %.2f bytes/value); encode %.0f MB/s, "
+                + "decode %.0f MB/s; %s", name, nbRows, nbColumns, csv.size() / 1024, binary.size() / 1024,
+                compressed.size() / 1024, (double) csv.size() / compressed.size(),
+                (double) binary.size() / compressed.size(), (double) compressed.size() / (nbRows * nbColumns),
+                inputMB / (encodeNanos / 1e9), inputMB / (decodeNanos / 1e9),
+                exact ? "lossless" : "DECODED VALUES DIFFER"));
+    }
+}
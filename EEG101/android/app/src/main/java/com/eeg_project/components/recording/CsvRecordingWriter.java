@@ -0,0 +1,54 @@
+package com.eeg_project.components.recording;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/*
+Writes rows as csv lines, "timestamp,value1,value2,...", with Double.toString() values
+
+Args:
+out (OutputStream) : where the csv is written, closed by close()
+header (String) : first line of the file (without the line break), or null
+*/
+public class CsvRecordingWriter implements RecordingWriter {
+
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    private final Writer writer;
+    private final StringBuilder line = new StringBuilder(256);
+
+    public CsvRecordingWriter(OutputStream out, String header) throws IOException {
+        writer = new BufferedWriter(new OutputStreamWriter(out, "US-ASCII"), WRITE_BUFFER_SIZE);
+        if (header != null) {
+            writer.write(header);
+            writer.write('\n');
+        }
+    }
+
+    @Override
+    public void writeRow(long timestamp, double[] values, int offset, int width) throws IOException {
+        line.setLength(0);
+        line.append(timestamp).append(',');
+        for (int j = 0; j < width; j++) {
+            line.append(values[offset + j]);
+            if (j < width - 1) {
+                line.append(',');
+            }
+        }
+        line.append('\n');
+        writer.append(line);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writer.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+}
@@ -0,0 +1,498 @@
+package com.eeg_project.components.recording;
+
+import com.eeg_project.components.signal.FFT;
+import com.eeg_project.components.signal.SOSFilter;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+/*
+Random access to a binary recording (see BinaryRecordingWriter) through a memory-mapped file
+
+Instead of parsing a whole file to reach a point of a session, the file is mapped and a sparse
+index with one entry per block (byte offset, first timestamp and first row of the block) is built
+by hopping from block header to block header, without reading the samples. The index is saved next
+to the recording (<recording>.idx) and loaded instead of rebuilt the next time, as long as the
+recording has not changed size.
+
+seek() finds the first row at or after a timestamp with a binary search over the blocks and then
+within the block, and getWindow() returns a range of rows as a view of the mapped file: nothing is
+copied until the values are read, and only the pages holding the requested rows are loaded.
+Timestamps are expected to never decrease (they come from System.currentTimeMillis() on a single
+thread).
+
+Recordings are mapped in one piece, so they must be smaller than 2 GB (about 60 days of 4-channel
+EEG at 256 Hz).
+
+Args:
+file (File) : binary recording
+*/
+public class MappedRecording {
+
+    // ------------------------------------------------------------------------
+    // Variables
+
+    private static final byte[] INDEX_MAGIC = {'E', 'E', 'G', 'I'};
+
+    private final RecordingHeader header;
+    private final int nbColumns;
+    private final MappedByteBuffer map;
+
+    // One entry per block
+    private int nbBlocks;
+    private int[] blockOffsets;
+    private long[] blockTimestamps;
+    private long[] blockFirstRows;
+    private long nbRows;
+
+    // ------------------------------------------------------------------------
+    // Constructor
+
+    public MappedRecording(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Recordings larger than 2 GB cannot be mapped.");
+            }
+            // The mapping stays valid after the channel is closed
+            map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            raf.close();
+        }
+        map.order(ByteOrder.LITTLE_ENDIAN);
+
+        ByteBuffer headerBytes = map.duplicate();
+        header = RecordingHeader.read(new DataInputStream(new BufferInputStream(headerBytes)));
+        nbColumns = header.getNbColumns();
+
+        File indexFile = new File(file.getPath() + ".idx");
+        if (!loadIndex(indexFile)) {
+            buildIndex(headerBytes.position());
+            saveIndex(indexFile);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // Methods
+
+    public RecordingHeader getHeader() {
+        return header;
+    }
+
+    public long getNbRows() {
+        return nbRows;
+    }
+
+    public long getFirstTimestamp() {
+        return nbBlocks == 0 ? -1 : blockTimestamps[0];
+    }
+
+    public long getLastTimestamp() {
+        return nbBlocks == 0 ? -1 : getTimestamp(nbRows - 1);
+    }
+
+    public long seek(long timestamp) {
+        // Index of the first row with a timestamp >= `timestamp` (getNbRows() if there is none)
+
+        // Last block starting before the timestamp: the row is in it or is the first of the next
+        int lo = 0, hi = nbBlocks - 1, block = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (blockTimestamps[mid] < timestamp) {
+                block = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        if (block < 0) {
+            return 0;
+        }
+
+        int rows = blockRows(block);
+        int offsets = blockOffsets[block] + BinaryRecordingWriter.BLOCK_HEADER_SIZE;
+        long target = timestamp - blockTimestamps[block];
+        lo = 0;
+        hi = rows;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (map.getChar(offsets + 2*mid) < target) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return blockFirstRows[block] + lo;
+    }
+
+    public long getTimestamp(long row) {
+        int block = findBlock(row);
+        int i = (int) (row - blockFirstRows[block]);
+        return blockTimestamps[block]
+                + map.getChar(blockOffsets[block] + BinaryRecordingWriter.BLOCK_HEADER_SIZE + 2*i);
+    }
+
+    public Window getWindow(long firstRow, int length) {
+        // View of rows [firstRow, firstRow + length)
+        if (firstRow < 0 || length < 0 || firstRow + length > nbRows) {
+            throw new IllegalArgumentException("Rows [" + firstRow + ", " + (firstRow + length) + ") are not in the recording.");
+        }
+        return new Window(firstRow, length);
+    }
+
+    // Rows with timestamps in [start, end)
+    public Window getWindowBetween(long start, long end) {
+        long first = seek(start);
+        return new Window(first, (int) Math.min(Integer.MAX_VALUE, seek(end) - first));
+    }
+
+    // Values of a block as a view of the mapped file, row-major (nbRows * nbColumns floats)
+    public FloatBuffer getBlockValues(int block) {
+        ByteBuffer view = map.duplicate();
+        int start = valuesOffset(block);
+        view.position(start);
+        view.limit(start + 4*blockRows(block)*nbColumns);
+        return view.slice().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+    }
+
+    public int getNbBlocks() {
+        return nbBlocks;
+    }
+
+    private int blockRows(int block) {
+        long next = (block + 1 < nbBlocks) ? blockFirstRows[block + 1] : nbRows;
+        return (int) (next - blockFirstRows[block]);
+    }
+
+    // Byte offset of the first value of a block
+    private int valuesOffset(int block) {
+        return blockOffsets[block] + BinaryRecordingWriter.BLOCK_HEADER_SIZE + 2*blockRows(block);
+    }
+
+    // Block holding a row
+    private int findBlock(long row) {
+        int lo = 0, hi = nbBlocks - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (blockFirstRows[mid] <= row) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    private void buildIndex(int start) throws IOException {
+        int capacity = 1024;
+        blockOffsets = new int[capacity];
+        blockTimestamps = new long[capacity];
+        blockFirstRows = new long[capacity];
+        nbBlocks = 0;
+        nbRows = 0;
+
+        int offset = start;
+        int end = map.limit();
+        while (offset + BinaryRecordingWriter.BLOCK_HEADER_SIZE <= end) {
+            int rows = map.getInt(offset);
+            int size = BinaryRecordingWriter.blockSize(rows, nbColumns);
+            if (rows <= 0 || rows > BinaryRecordingWriter.MAX_ROWS_PER_BLOCK || offset + size > end) {
+                // A recording interrupted mid-block: keep the complete blocks
+                break;
+            }
+            if (nbBlocks == capacity) {
+                capacity *= 2;
+                blockOffsets = Arrays.copyOf(blockOffsets, capacity);
+                blockTimestamps = Arrays.copyOf(blockTimestamps, capacity);
+                blockFirstRows = Arrays.copyOf(blockFirstRows, capacity);
+            }
+            blockOffsets[nbBlocks] = offset;
+            blockTimestamps[nbBlocks] = map.getLong(offset + 4);
+            blockFirstRows[nbBlocks] = nbRows;
+            nbBlocks++;
+            nbRows += rows;
+            offset += size;
+        }
+    }
+
+    // Index file (little-endian): "EEGI" magic, int64 recording size, int32 nbBlocks, int64 nbRows,
+    // then per block: int32 offset, int64 first timestamp, int64 first row
+    private void saveIndex(File indexFile) {
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 8 + 4 + 8 + 20*nbBlocks).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(INDEX_MAGIC);
+        buffer.putLong(map.limit());
+        buffer.putInt(nbBlocks);
+        buffer.putLong(nbRows);
+        for (int b = 0; b < nbBlocks; b++) {
+            buffer.putInt(blockOffsets[b]);
+            buffer.putLong(blockTimestamps[b]);
+            buffer.putLong(blockFirstRows[b]);
+        }
+        try {
+            FileOutputStream out = new FileOutputStream(indexFile);
+            try {
+                out.write(buffer.array());
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            // The index is only a cache: it is rebuilt next time
+        }
+    }
+
+    private boolean loadIndex(File indexFile) {
+        if (!indexFile.exists()) {
+            return false;
+        }
+        try {
+            FileInputStream in = new FileInputStream(indexFile);
+            try {
+                FileChannel channel = in.getChannel();
+                ByteBuffer buffer = ByteBuffer.allocate((int) channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+                while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                    // read the whole file
+                }
+                buffer.flip();
+                for (byte b : INDEX_MAGIC) {
+                    if (buffer.get() != b) {
+                        return false;
+                    }
+                }
+                if (buffer.getLong() != map.limit()) {
+                    return false; // the recording has changed since the index was saved
+                }
+                int blocks = buffer.getInt();
+                long rows = buffer.getLong();
+                if (buffer.remaining() != 20L*blocks) {
+                    return false;
+                }
+                blockOffsets = new int[blocks];
+                blockTimestamps = new long[blocks];
+                blockFirstRows = new long[blocks];
+                for (int b = 0; b < blocks; b++) {
+                    blockOffsets[b] = buffer.getInt();
+                    blockTimestamps[b] = buffer.getLong();
+                    blockFirstRows[b] = buffer.getLong();
+                }
+                nbBlocks = blocks;
+                nbRows = rows;
+                return true;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return false;
+        } catch (RuntimeException e) {
+            return false; // truncated or corrupted index
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // Window
+
+    // Consecutive rows of the recording, read straight from the mapped file. A window stays valid
+    // as long as the recording it came from
+    public final class Window {
+        private final long firstRow;
+        private final int length;
+
+        private Window(long firstRow, int length) {
+            this.firstRow = firstRow;
+            this.length = length;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        public long getFirstRow() {
+            return firstRow;
+        }
+
+        public long getTimestamp(int i) {
+            return MappedRecording.this.getTimestamp(firstRow + i);
+        }
+
+        public float getValue(int i, int column) {
+            long row = firstRow + i;
+            int block = findBlock(row);
+            int r = (int) (row - blockFirstRows[block]);
+            return map.getFloat(valuesOffset(block) + 4*(r*nbColumns + column));
+        }
+
+        public void copyColumn(int column, double[] dst, int dstOffset) {
+            // Copy one column of the window into dst (e.g. to run it through FFT or a filter),
+            // block by block
+
+            if (length == 0) {
+                return;
+            }
+            int block = findBlock(firstRow);
+            int r = (int) (firstRow - blockFirstRows[block]);
+            int i = 0;
+            while (i < length) {
+                int rows = blockRows(block);
+                int values = valuesOffset(block);
+                int n = Math.min(rows - r, length - i);
+                for (int k = 0; k < n; k++) {
+                    dst[dstOffset + i + k] = map.getFloat(values + 4*((r + k)*nbColumns + column));
+                }
+                i += n;
+                block++;
+                r = 0;
+            }
+        }
+    }
+
+    // Reads a ByteBuffer as a stream, to parse the header with RecordingHeader.read()
+    private static final class BufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        BufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+    }
+
+    // Example main for testing: writes a simulated one-hour, 4-channel recording at 256 Hz as a
+    // binary file and as a csv, then compares opening, seeking and reprocessing random 1 s windows
+    // through FFT (and a 10-minute slice through a filter) with the mapped file against scanning
+    // the csv line by line, and checks seek() against a linear search
+    public static void main(String[] args) throws IOException {
+        int fs = 256;
+        int nbRows = 3600 * fs;
+        File binary = File.createTempFile("session", ".eeg");
+        File csv = File.createTempFile("session", ".csv");
+        File index = new File(binary.getPath() + ".idx");
+        binary.deleteOnExit();
+        csv.deleteOnExit();
+        index.deleteOnExit();
+
+        RecordingHeader header = new RecordingHeader(fs, new String[] {"TP9", "AF7", "AF8", "TP10"}, "uV",
+                new double[0], "MU_02");
+        RecordingWriter binaryWriter = new BinaryRecordingWriter(new FileOutputStream(binary), header);
+        RecordingWriter csvWriter = new CsvRecordingWriter(new FileOutputStream(csv), header.getCsvHeader());
+        Random random = new Random(42);
+        long[] timestamps = new long[nbRows];
+        double[] row = new double[4];
+        for (int i = 0; i < nbRows; i++) {
+            timestamps[i] = 1500000000000L + i * 1000L / fs;
+            for (int c = 0; c < 4; c++) {
+                row[c] = 800 + 40*Math.sin(2*Math.PI*10*i/fs + c) + 10*random.nextGaussian();
+            }
+            binaryWriter.writeRow(timestamps[i], row, 0, 4);
+            csvWriter.writeRow(timestamps[i], row, 0, 4);
+        }
+        binaryWriter.close();
+        csvWriter.close();
+
+        long start = System.nanoTime();
+        MappedRecording recording = new MappedRecording(binary);
+        long buildNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        recording = new MappedRecording(binary);
+        long loadNanos = System.nanoTime() - start;
+
+        // Seeks to random times, checked against a linear search of the timestamps
+        int nbSeeks = 100000;
+        long[] targets = new long[nbSeeks];
+        for (int s = 0; s < nbSeeks; s++) {
+            targets[s] = timestamps[0] - 10 + (long) (random.nextDouble() * (timestamps[nbRows - 1] - timestamps[0] + 20));
+        }
+        boolean correct = true;
+        for (int s = 0; s < 1000; s++) {
+            int expected = 0;
+            while (expected < nbRows && timestamps[expected] < targets[s]) {
+                expected++;
+            }
+            correct &= recording.seek(targets[s]) == expected;
+        }
+        long checksum = 0;
+        start = System.nanoTime();
+        for (int s = 0; s < nbSeeks; s++) {
+            checksum += recording.seek(targets[s]);
+        }
+        long seekNanos = (System.nanoTime() - start) / nbSeeks;
+
+        // PSD of random 1 s windows of one channel
+        FFT fft = new FFT(fs, fs, fs);
+        double[] window = new double[fs];
+        double[] psd = new double[fft.getFreqBins().length];
+        int nbWindows = 1000;
+        start = System.nanoTime();
+        for (int w = 0; w < nbWindows; w++) {
+            long first = Math.min(recording.seek(targets[w]), recording.getNbRows() - fs);
+            recording.getWindow(first, fs).copyColumn(1, window, 0);
+            fft.computePSD(window, 0, psd);
+        }
+        long windowNanos = (System.nanoTime() - start) / nbWindows;
+
+        // 10-minute slice through the FilterGraph bandpass
+        start = System.nanoTime();
+        Window slice = recording.getWindowBetween(timestamps[0] + 1200000, timestamps[0] + 1800000);
+        double[][] samples = new double[4][slice.getLength()];
+        for (int c = 0; c < 4; c++) {
+            slice.copyColumn(c, samples[c], 0);
+        }
+        new SOSFilter(fs, "bandpass", 5, 2, 35, 4).process(samples, samples, slice.getLength());
+        long sliceNanos = System.nanoTime() - start;
+
+        // Same windows from the csv: scan lines until the timestamp is reached
+        int nbCsvWindows = 20;
+        start = System.nanoTime();
+        for (int w = 0; w < nbCsvWindows; w++) {
+            BufferedReader reader = new BufferedReader(new FileReader(csv));
+            try {
+                reader.readLine();
+                String line;
+                int n = 0;
+                while ((line = reader.readLine()) != null && n < fs) {
+                    String[] fields = line.split(",");
+                    if (n > 0 || Long.parseLong(fields[0]) >= targets[w]) {
+                        window[n++] = Double.parseDouble(fields[2]);
+                    }
+                }
+                fft.computePSD(window, 0, psd);
+            } finally {
+                reader.close();
+            }
+        }
+        long csvWindowNanos = (System.nanoTime() - start) / nbCsvWindows;
+
+        System.out.println(String.format("%d rows in %d blocks (%d kB binary, %d kB csv): index built in %.1f ms, "
+                + "loaded in %.1f ms; seek %d ns (%s); 1 s window + FFT %.1f us from the mapped file vs %.1f ms "
+                + "scanning the csv; 10 min slice + bandpass in %.1f ms (checksum %d)", recording.getNbRows(),
+                recording.getNbBlocks(), binary.length() / 1024, csv.length() / 1024, buildNanos / 1e6, loadNanos / 1e6,
+                seekNanos, correct ? "matches a linear search" : "WRONG", windowNanos / 1e3, csvWindowNanos / 1e6,
+                sliceNanos / 1e6, checksum % 1000));
+    }
+}
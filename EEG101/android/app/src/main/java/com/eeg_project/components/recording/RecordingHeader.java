@@ -0,0 +1,186 @@
+package com.eeg_project.components.recording;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+
+/*
+Description of a binary recording, stored at the start of the file
+
+Rows of a time series recording (raw or filtered EEG) hold one value per channel. Rows of a PSD
+recording hold one value per frequency bin for every channel, channel-major, so a recording has
+nbChannels * max(1, nbFreqBins) columns.
+
+Serialized little-endian:
+"EEGB" magic, int16 version, float64 samplingFrequency, string deviceModel, string units,
+int32 nbChannels, nbChannels strings, int32 nbFreqBins, nbFreqBins float32
+where a string is an int16 byte length followed by UTF-8 bytes.
+
+Args:
+samplingFrequency (double) : sampling frequency of the device, in Hz
+channelNames (String[]) : name of every recorded channel (e.g. electrode)
+units (String) : units of the values (e.g. "uV")
+freqBins (double[]) : frequency of every PSD bin in Hz (FFT.getFreqBins()), or an empty array for
+time series
+deviceModel (String) : headband the data was recorded with
+*/
+public class RecordingHeader {
+
+    // ------------------------------------------------------------------------
+    // Variables
+
+    static final byte[] MAGIC = {'E', 'E', 'G', 'B'};
+    static final int VERSION = 1;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final double samplingFrequency;
+    private final String[] channelNames;
+    private final String units;
+    private final double[] freqBins;
+    private final String deviceModel;
+
+    // ------------------------------------------------------------------------
+    // Constructor
+
+    public RecordingHeader(double samplingFrequency, String[] channelNames, String units, double[] freqBins,
+                           String deviceModel) {
+        if (channelNames.length == 0) {
+            throw new IllegalArgumentException("A recording needs at least one channel.");
+        }
+        this.samplingFrequency = samplingFrequency;
+        this.channelNames = channelNames.clone();
+        this.units = units;
+        this.freqBins = freqBins.clone();
+        this.deviceModel = deviceModel;
+    }
+
+    // ------------------------------------------------------------------------
+    // Methods
+
+    public int getNbColumns() {
+        return channelNames.length * Math.max(1, freqBins.length);
+    }
+
+    // Column titles, in the style of EEGFileWriter's csv files
+    public String getCsvHeader() {
+        StringBuilder builder = new StringBuilder("Timestamp (ms),");
+        for (String channel : channelNames) {
+            if (freqBins.length == 0) {
+                builder.append(channel).append(',');
+            } else {
+                for (double f : freqBins) {
+                    if (channelNames.length > 1) {
+                        builder.append(channel).append(' ');
+                    }
+                    builder.append(f).append(" hz,");
+                }
+            }
+        }
+        return builder.toString();
+    }
+
+    public double getSamplingFrequency() {
+        return samplingFrequency;
+    }
+
+    public String[] getChannelNames() {
+        return channelNames.clone();
+    }
+
+    public String getUnits() {
+        return units;
+    }
+
+    public double[] getFreqBins() {
+        return freqBins.clone();
+    }
+
+    public String getDeviceModel() {
+        return deviceModel;
+    }
+
+    void write(OutputStream out) throws IOException {
+        byte[][] names = new byte[channelNames.length][];
+        int size = MAGIC.length + 2 + 8 + 4 + 4 + 4*freqBins.length;
+        byte[] model = deviceModel.getBytes(UTF_8);
+        byte[] unitBytes = units.getBytes(UTF_8);
+        size += 2 + model.length + 2 + unitBytes.length;
+        for (int c = 0; c < channelNames.length; c++) {
+            names[c] = channelNames[c].getBytes(UTF_8);
+            size += 2 + names[c].length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(MAGIC);
+        buffer.putShort((short) VERSION);
+        buffer.putDouble(samplingFrequency);
+        putString(buffer, model);
+        putString(buffer, unitBytes);
+        buffer.putInt(names.length);
+        for (byte[] name : names) {
+            putString(buffer, name);
+        }
+        buffer.putInt(freqBins.length);
+        for (double f : freqBins) {
+            buffer.putFloat((float) f);
+        }
+        out.write(buffer.array());
+    }
+
+    static RecordingHeader read(DataInputStream in) throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (magic[i] != MAGIC[i]) {
+                throw new IOException("Not a binary EEG recording.");
+            }
+        }
+        int version = readShort(in);
+        if (version != VERSION) {
+            throw new IOException("Unsupported recording version " + version + ".");
+        }
+        double samplingFrequency = Double.longBitsToDouble(readLong(in));
+        String deviceModel = readString(in);
+        String units = readString(in);
+        String[] channelNames = new String[readInt(in)];
+        for (int c = 0; c < channelNames.length; c++) {
+            channelNames[c] = readString(in);
+        }
+        double[] freqBins = new double[readInt(in)];
+        for (int i = 0; i < freqBins.length; i++) {
+            freqBins[i] = Float.intBitsToFloat(readInt(in));
+        }
+        return new RecordingHeader(samplingFrequency, channelNames, units, freqBins, deviceModel);
+    }
+
+    private static void putString(ByteBuffer buffer, byte[] bytes) {
+        if (bytes.length > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("Header string is too long.");
+        }
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+    // DataInputStream reads big-endian, so little-endian values are read byte by byte
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[readShort(in)];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static int readShort(DataInputStream in) throws IOException {
+        return Short.reverseBytes(in.readShort()) & 0xffff;
+    }
+
+    private static int readInt(DataInputStream in) throws IOException {
+        return Integer.reverseBytes(in.readInt());
+    }
+
+    private static long readLong(DataInputStream in) throws IOException {
+        return Long.reverseBytes(in.readLong());
+    }
+}
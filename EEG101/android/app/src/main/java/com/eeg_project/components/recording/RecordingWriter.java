@@ -0,0 +1,13 @@
+package com.eeg_project.components.recording;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+
+// Output format of a StreamingRecorder. Rows are only written from the recorder's writer thread,
+// so implementations do not need to be thread-safe
+public interface RecordingWriter extends Closeable, Flushable {
+
+    // Write one row: a timestamp in ms and `width` values starting at values[offset]
+    void writeRow(long timestamp, double[] values, int offset, int width) throws IOException;
+}
@@ -0,0 +1,300 @@
+package com.eeg_project.components.recording;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+Records rows of samples to a file while they are streaming
+
+The producer (a graph data thread) pushes timestamped rows of doubles into a bounded queue of
+primitive arrays, and a dedicated writer thread formats them and writes them to disk as they
+arrive. Memory use is fixed by the queue capacity whatever the length of the session, and the
+producer never waits for the disk: if the writer falls behind and the queue is full, the row is
+dropped and counted (see getDroppedRows()).
+
+The queue has a single producer and a single consumer (the writer thread) and takes no lock: the
+producer fills a slot and then publishes the new head, the writer formats the slots below it and
+then publishes the new tail.
+
+Rows are written by a RecordingWriter: csv lines ("timestamp,value1,value2,...", like
+EEGFileWriter always did) by default, or a BinaryRecordingWriter for compact recordings.
+
+Args:
+writer (RecordingWriter) : output format and file, closed by stop()
+maxRowWidth (int) : maximum number of values per row
+capacity (int) : number of rows the queue can hold
+*/
+public class StreamingRecorder {
+
+    // ------------------------------------------------------------------------
+    // Variables
+
+    // How long the writer sleeps when the queue is empty, in ms
+    private static final long POLL_INTERVAL = 20;
+    // Written rows are pushed to disk at least this often, in ms
+    private static final long FLUSH_INTERVAL = 1000;
+
+    private final int maxRowWidth;
+    private final int capacity;
+    private final long[] timestamps;
+    private final int[] widths;
+    private final double[] values; // row slot i occupies [i * maxRowWidth, (i + 1) * maxRowWidth)
+
+    // Rows pushed (written by the producer) and rows written (written by the writer thread)
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final RecordingWriter writer;
+    private final Thread writerThread;
+    private volatile boolean keepRunning;
+    private volatile IOException error;
+
+    // ------------------------------------------------------------------------
+    // Constructors
+
+    public StreamingRecorder(File file, String header, int maxRowWidth, int capacity) throws IOException {
+        this(new FileOutputStream(file), header, maxRowWidth, capacity);
+    }
+
+    // Csv recorder, with `header` (or nothing if null) as the first line
+    public StreamingRecorder(OutputStream out, String header, int maxRowWidth, int capacity) throws IOException {
+        this(new CsvRecordingWriter(out, header), maxRowWidth, capacity);
+    }
+
+    public StreamingRecorder(RecordingWriter writer, int maxRowWidth, int capacity) {
+        if (maxRowWidth <= 0 || capacity <= 0) {
+            throw new IllegalArgumentException("Row width and capacity must be positive.");
+        }
+        this.maxRowWidth = maxRowWidth;
+        this.capacity = capacity;
+        timestamps = new long[capacity];
+        widths = new int[capacity];
+        values = new double[capacity * maxRowWidth];
+        this.writer = writer;
+
+        writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "StreamingRecorder");
+    }
+
+    // ------------------------------------------------------------------------
+    // Methods
+
+    public void start() {
+        keepRunning = true;
+        writerThread.start();
+    }
+
+    public boolean addRow(double[] data) {
+        return addRow(System.currentTimeMillis(), data, data.length);
+    }
+
+    public boolean addRow(long timestamp, double[] data, int width) {
+        // Queue the first `width` values of data. Returns false if the row was dropped because the
+        // queue is full, the recorder failed or is not running (before start() or after stop()).
+        // Must only be called from a single producer thread
+
+        if (width > maxRowWidth) {
+            throw new IllegalArgumentException("Row has " + width + " values, at most " + maxRowWidth + " are allowed.");
+        }
+        long h = head.get();
+        if (h - tail.get() >= capacity || error != null || !keepRunning) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        int slot = (int) (h % capacity);
+        timestamps[slot] = timestamp;
+        widths[slot] = width;
+        System.arraycopy(data, 0, values, slot * maxRowWidth, width);
+        // Ordered store: the slot is filled before the writer can see it
+        head.lazySet(h + 1);
+        return true;
+    }
+
+    public void stop() throws IOException {
+        // Write the rows still queued, close the output and wait for the writer thread. Rows added
+        // after stop() are dropped and counted in getDroppedRows(). The producer should be stopped
+        // first: a row added while stop() runs may be left unwritten without being counted
+
+        keepRunning = false;
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    // Rows that could not be queued because the writer was behind (or had failed)
+    public long getDroppedRows() {
+        return dropped.get();
+    }
+
+    public long getWrittenRows() {
+        return tail.get();
+    }
+
+    // Rows waiting to be written
+    public int getQueuedRows() {
+        return (int) (head.get() - tail.get());
+    }
+
+    private void writeLoop() {
+        try {
+            long lastFlush = System.currentTimeMillis();
+            while (true) {
+                // Read keepRunning before the head, so every row pushed before stop() is written
+                boolean running = keepRunning;
+                long h = head.get();
+                long t = tail.get();
+                for (; t < h; t++) {
+                    int slot = (int) (t % capacity);
+                    writer.writeRow(timestamps[slot], values, slot * maxRowWidth, widths[slot]);
+                    // The slot can be reused once its row has been handed to the writer
+                    tail.lazySet(t + 1);
+                }
+
+                if (!running) {
+                    break;
+                }
+                long now = System.currentTimeMillis();
+                if (now - lastFlush >= FLUSH_INTERVAL) {
+                    writer.flush();
+                    lastFlush = now;
+                }
+                if (t == head.get()) {
+                    Thread.sleep(POLL_INTERVAL);
+                }
+            }
+        } catch (IOException e) {
+            error = e;
+        } catch (InterruptedException e) {
+            // Stop writing, the rows already formatted are still closed below
+        } finally {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                if (error == null) {
+                    error = e;
+                }
+            }
+        }
+    }
+
+    // Example main for testing: records a simulated 8-hour, 4-channel session at 256 Hz (12-row
+    // packets, as fast as the writer accepts them) to a sink that discards the bytes, and samples
+    // the heap every simulated 30 minutes. Then records to a sink slower than the stream to check
+    // that the rows the writer cannot keep up with are dropped and counted, with the same memory
+    public static void main(String[] args) throws IOException, InterruptedException {
+        soakTest();
+        slowSinkTest();
+    }
+
+    private static void soakTest() throws IOException, InterruptedException {
+        final int fs = 256;
+        final long nbRows = 8L * 3600 * fs;
+        final int capacity = 2048;
+        CountingSink sink = new CountingSink(0);
+        StreamingRecorder recorder = new StreamingRecorder(sink, "Timestamp (ms),Electrode 1,Electrode 2,"
+                + "Electrode 3,Electrode 4,", 4, capacity);
+        recorder.start();
+
+        double[] row = new double[4];
+        long minHeap = Long.MAX_VALUE;
+        long maxHeap = 0;
+        long start = System.nanoTime();
+        for (long i = 0; i < nbRows; i++) {
+            for (int c = 0; c < 4; c++) {
+                row[c] = 800 + 40*Math.sin(2*Math.PI*10*i/fs + c);
+            }
+            recorder.addRow(1500000000000L + i * 1000 / fs, row, 4);
+
+            if (i % 12 == 11) {
+                // The real stream is far slower than the writer: wait for room instead of dropping
+                while (recorder.getQueuedRows() > capacity - 24) {
+                    Thread.sleep(1);
+                }
+            }
+            if (i % (1800L * fs) == 0) {
+                long used = usedHeap();
+                minHeap = Math.min(minHeap, used);
+                maxHeap = Math.max(maxHeap, used);
+            }
+        }
+        recorder.stop();
+        long used = usedHeap();
+        minHeap = Math.min(minHeap, used);
+        maxHeap = Math.max(maxHeap, used);
+
+        System.out.println(String.format("Soak: %d rows (8 h at %d Hz) in %.1f s, %d written, %d dropped, %d MB of csv, "
+                + "heap in use %.2f-%.2f MB", nbRows, fs, (System.nanoTime() - start) / 1e9, recorder.getWrittenRows(),
+                recorder.getDroppedRows(), sink.count / (1024 * 1024), minHeap / 1048576., maxHeap / 1048576.));
+    }
+
+    private static void slowSinkTest() throws IOException, InterruptedException {
+        // 10 s of data at 256 Hz in real time, to a sink that needs 100 ms per kB
+        final int fs = 256;
+        CountingSink sink = new CountingSink(100);
+        StreamingRecorder recorder = new StreamingRecorder(sink, null, 4, 256);
+        recorder.start();
+
+        double[] row = new double[4];
+        int nbRows = 10 * fs;
+        for (int i = 0; i < nbRows; i++) {
+            for (int c = 0; c < 4; c++) {
+                row[c] = 800 + 10*Math.sin(2*Math.PI*10*i/fs + c);
+            }
+            recorder.addRow(row);
+            if (i % 12 == 11) {
+                Thread.sleep(47);
+            }
+        }
+        recorder.stop();
+
+        System.out.println(String.format("Slow sink: %d rows, %d written, %d dropped, written + dropped = %d",
+                nbRows, recorder.getWrittenRows(), recorder.getDroppedRows(),
+                recorder.getWrittenRows() + recorder.getDroppedRows()));
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // Discards the bytes, counting them, optionally taking `millisPerKB` to accept each kB
+    private static final class CountingSink extends OutputStream {
+        final long millisPerKB;
+        long count;
+
+        CountingSink(long millisPerKB) {
+            this.millisPerKB = millisPerKB;
+        }
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            count += len;
+            if (millisPerKB > 0) {
+                try {
+                    Thread.sleep(len * millisPerKB / 1024);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,531 @@
+package com.eeg_project.components.replay;
+
+import com.eeg_project.components.acquisition.AcquisitionHub;
+import com.eeg_project.components.recording.BinaryRecordingReader;
+import com.eeg_project.components.recording.BinaryRecordingWriter;
+import com.eeg_project.components.recording.CompressedRecordingReader;
+import com.eeg_project.components.recording.RecordingHeader;
+import com.eeg_project.components.recording.RecordingWriter;
+import com.eeg_project.components.signal.BandPowerTracker;
+import com.eeg_project.components.signal.CircularBuffer;
+import com.eeg_project.components.signal.DspRuntime;
+import com.eeg_project.components.signal.EEGProcessor;
+import com.eeg_project.components.signal.FilterDesign;
+import com.eeg_project.components.signal.FilterProcessor;
+import com.eeg_project.components.signal.PSDProcessor;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+Replays a recorded session into SampleListeners, in place of a connected Muse
+
+The recording can be a csv (.csv), binary (.eeg) or compressed (.eegz) file written by
+EEGFileWriter. Every row is handed to every listener in order, on the replay thread, exactly like
+libmuse calls receiveMuseDataPacket: the AcquisitionHub implements SampleListener, so a replay into
+AcquisitionHub.getInstance() drives every graph's chain (hub buffer -> data thread -> filter or FFT)
+exactly like the headband. Listeners may modify
+the sample they are given (the filters work in place), so each one gets its own copy of the row.
+
+In REAL_TIME mode samples are released at the recording's sampling frequency, in packets of
+PACKET_SIZE samples like the headband's Bluetooth packets. In AS_FAST_AS_POSSIBLE mode they are
+released as fast as the listeners accept them, which measures the throughput of the processing
+chain (getSamplesPerSecond()). Csv files have no header with the sampling frequency, so it must be
+given for them (DEFAULT_SAMPLING_FREQUENCY otherwise).
+
+Args:
+file (File) : recorded session
+samplingFrequency (double) : sampling frequency of a csv recording, in Hz (binary recordings use
+the one in their header)
+*/
+public class ReplaySource {
+
+    // ------------------------------------------------------------------------
+    // Variables
+
+    public enum Mode { REAL_TIME, AS_FAST_AS_POSSIBLE }
+
+    public static final double DEFAULT_SAMPLING_FREQUENCY = 256;
+    public static final int PACKET_SIZE = 12;
+
+    private final RowReader reader;
+    private final int nbColumns;
+    private final double samplingFrequency;
+    private final List<SampleListener> listeners = new ArrayList<SampleListener>();
+    private Mode mode = Mode.REAL_TIME;
+
+    private Thread replayThread;
+    private volatile boolean keepRunning;
+    private volatile IOException error;
+
+    // Progress, readable from any thread
+    private final AtomicLong nbSamples = new AtomicLong();
+    private volatile long startTime;
+    private volatile long endTime;
+
+    // ------------------------------------------------------------------------
+    // Constructors
+
+    public ReplaySource(File file) throws IOException {
+        this(file, DEFAULT_SAMPLING_FREQUENCY);
+    }
+
+    public ReplaySource(File file, double samplingFrequency) throws IOException {
+        String name = file.getName();
+        if (name.endsWith(".eegz")) {
+            reader = new CompressedReader(file);
+        } else if (name.endsWith(".eeg")) {
+            reader = new BinaryReader(file);
+        } else {
+            reader = new CsvReader(file, samplingFrequency);
+        }
+        nbColumns = reader.getNbColumns();
+        this.samplingFrequency = reader.getSamplingFrequency();
+        if (!(this.samplingFrequency > 0)) {
+            throw new IllegalArgumentException("Sampling frequency must be positive.");
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // Methods
+
+    // Listeners must be added before the replay starts
+    public void addListener(SampleListener listener) {
+        listeners.add(listener);
+    }
+
+    public void setMode(Mode mode) {
+        this.mode = mode;
+    }
+
+    public int getNbChannels() {
+        return nbColumns;
+    }
+
+    public double getSamplingFrequency() {
+        return samplingFrequency;
+    }
+
+    // Replays on a background thread. Refuses to replay into the AcquisitionHub while a Muse is
+    // attached to it: its buffer takes a single producer
+    public void start() {
+        for (SampleListener listener : listeners) {
+            if (listener instanceof AcquisitionHub && ((AcquisitionHub) listener).isAttached()) {
+                throw new IllegalStateException("Cannot replay into the AcquisitionHub while a Muse is attached.");
+            }
+        }
+        keepRunning = true;
+        replayThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    replay();
+                } catch (IOException e) {
+                    error = e;
+                }
+            }
+        }, "ReplaySource");
+        replayThread.start();
+    }
+
+    // Stops the replay and waits for the replay thread. Rethrows a read error, if any
+    public void stop() throws IOException {
+        keepRunning = false;
+        awaitEnd();
+    }
+
+    // Waits until the whole recording has been replayed (or stop() is called)
+    public void awaitEnd() throws IOException {
+        if (replayThread != null) {
+            try {
+                replayThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    // Replays the recording on the replay thread, until its end or until stop() is called. keepRunning
+    // is only set by start(), so a stop() that comes before the thread runs is not lost
+    private void replay() throws IOException {
+        double[] rows = new double[reader.getMaxRows() * nbColumns];
+        double[] sample = new double[nbColumns];
+        long nanosPerPacket = (long) (PACKET_SIZE * 1e9 / samplingFrequency);
+        long sent = 0;
+
+        startTime = System.nanoTime();
+        endTime = 0;
+        try {
+            int nbRows;
+            while (keepRunning && (nbRows = reader.read(rows)) > 0) {
+                for (int i = 0; i < nbRows && keepRunning; i++) {
+                    for (int l = 0; l < listeners.size(); l++) {
+                        System.arraycopy(rows, i * nbColumns, sample, 0, nbColumns);
+                        listeners.get(l).receiveSample(sample);
+                    }
+                    sent++;
+                    nbSamples.lazySet(sent);
+
+                    if (mode == Mode.REAL_TIME && sent % PACKET_SIZE == 0) {
+                        // Sleep until the next packet is due. Deadlines are absolute, so time lost
+                        // by one packet is made up by the next ones
+                        long wait = startTime + sent / PACKET_SIZE * nanosPerPacket - System.nanoTime();
+                        if (wait > 0) {
+                            LockSupport.parkNanos(wait);
+                        }
+                    }
+                }
+            }
+        } finally {
+            endTime = System.nanoTime();
+            keepRunning = false;
+            reader.close();
+        }
+    }
+
+    public boolean isRunning() {
+        return keepRunning;
+    }
+
+    // Samples handed to the listeners so far
+    public long getNbSamples() {
+        return nbSamples.get();
+    }
+
+    // Samples replayed per second of wall-clock time, since the start of the replay
+    public double getSamplesPerSecond() {
+        long end = (endTime != 0) ? endTime : System.nanoTime();
+        return nbSamples.get() / ((end - startTime) / 1e9);
+    }
+
+    // ------------------------------------------------------------------------
+    // Recording readers
+
+    // Reads a recording in batches of rows
+    private interface RowReader extends Closeable {
+        int getNbColumns();
+
+        double getSamplingFrequency();
+
+        // Maximum number of rows returned by read()
+        int getMaxRows();
+
+        // Reads the next rows into values (row-major). Returns the number of rows, or -1 at the end
+        int read(double[] values) throws IOException;
+    }
+
+    private static final class BinaryReader implements RowReader {
+        private final BinaryRecordingReader reader;
+        private final RecordingHeader header;
+        private final long[] timestamps = new long[BinaryRecordingWriter.MAX_ROWS_PER_BLOCK];
+        private final float[] block;
+
+        BinaryReader(File file) throws IOException {
+            reader = new BinaryRecordingReader(new FileInputStream(file));
+            header = reader.getHeader();
+            block = new float[BinaryRecordingWriter.MAX_ROWS_PER_BLOCK * header.getNbColumns()];
+        }
+
+        public int getNbColumns() { return header.getNbColumns(); }
+
+        public double getSamplingFrequency() { return header.getSamplingFrequency(); }
+
+        public int getMaxRows() { return BinaryRecordingWriter.MAX_ROWS_PER_BLOCK; }
+
+        public int read(double[] values) throws IOException {
+            int nbRows = reader.readBlock(timestamps, block);
+            for (int i = 0; i < nbRows * header.getNbColumns(); i++) {
+                values[i] = block[i];
+            }
+            return nbRows;
+        }
+
+        public void close() throws IOException { reader.close(); }
+    }
+
+    private static final class CompressedReader implements RowReader {
+        private final CompressedRecordingReader reader;
+        private final long[] timestamps;
+
+        CompressedReader(File file) throws IOException {
+            reader = new CompressedRecordingReader(new FileInputStream(file));
+            timestamps = new long[reader.getChunkRows()];
+        }
+
+        public int getNbColumns() { return reader.getHeader().getNbColumns(); }
+
+        public double getSamplingFrequency() { return reader.getHeader().getSamplingFrequency(); }
+
+        public int getMaxRows() { return reader.getChunkRows(); }
+
+        public int read(double[] values) throws IOException {
+            return reader.readChunk(timestamps, values);
+        }
+
+        public void close() throws IOException { reader.close(); }
+    }
+
+    // Timestamp in the first column, then one value per column. The first line holds the column
+    // titles when it does not start with a number
+    private static final class CsvReader implements RowReader {
+        private static final int MAX_ROWS = 64;
+
+        private final BufferedReader reader;
+        private final double samplingFrequency;
+        private final int nbColumns;
+        private String pendingLine;
+
+        CsvReader(File file, double samplingFrequency) throws IOException {
+            reader = new BufferedReader(new FileReader(file), 64 * 1024);
+            this.samplingFrequency = samplingFrequency;
+            String first = reader.readLine();
+            if (first == null) {
+                reader.close();
+                throw new IOException("Empty recording.");
+            }
+            nbColumns = first.split(",").length - 1;
+            char c = first.charAt(0);
+            if (c == '-' || (c >= '0' && c <= '9')) {
+                pendingLine = first;
+            }
+        }
+
+        public int getNbColumns() { return nbColumns; }
+
+        public double getSamplingFrequency() { return samplingFrequency; }
+
+        public int getMaxRows() { return MAX_ROWS; }
+
+        public int read(double[] values) throws IOException {
+            int nbRows = 0;
+            while (nbRows < MAX_ROWS) {
+                String line = (pendingLine != null) ? pendingLine : reader.readLine();
+                pendingLine = null;
+                if (line == null) {
+                    break;
+                }
+                if (line.isEmpty()) {
+                    continue;
+                }
+                String[] fields = line.split(",");
+                if (fields.length - 1 < nbColumns) {
+                    throw new IOException("Row of " + (fields.length - 1) + " values, expected " + nbColumns + ".");
+                }
+                for (int j = 0; j < nbColumns; j++) {
+                    values[nbRows*nbColumns + j] = Double.parseDouble(fields[j + 1]);
+                }
+                nbRows++;
+            }
+            return (nbRows > 0) ? nbRows : -1;
+        }
+
+        public void close() throws IOException { reader.close(); }
+    }
+
+    // ------------------------------------------------------------------------
+    // Headless replay
+
+    // Example main for testing: replays a recording (the file given as argument, or 10 minutes of
+    // synthetic 4-channel EEG at 256 Hz) through the processing chains of EEGGraph (60 Hz
+    // bandstop), FilterGraph (2-35 Hz bandpass) and PSDGraph (band powers, and the 4-channel PSD
+    // every 26 samples), each on its own data thread reading one shared buffer like the
+    // AcquisitionHub's, built from the same signal classes and parameters as the graphs, which are
+    // Android Views and cannot be created here. Runs once as fast as possible and
+    // then 5 s in real time, and reports the throughput in samples/s and how many updates the
+    // graphs' threads managed to compute (FilterGraph plots 2 points per 6 samples)
+    public static void main(String[] args) throws IOException, InterruptedException {
+        File file;
+        if (args.length > 0) {
+            file = new File(args[0]);
+        } else {
+            file = File.createTempFile("replay", ".eeg");
+            file.deleteOnExit();
+            writeSyntheticRecording(file, 256, 600);
+        }
+
+        for (Mode mode : Mode.values()) {
+            ReplaySource source = new ReplaySource(file);
+            source.setMode(mode);
+            Pipelines pipelines = new Pipelines(source.getSamplingFrequency());
+            source.addListener(pipelines.hubListener);
+
+            pipelines.start();
+            source.start();
+            if (mode == Mode.REAL_TIME) {
+                Thread.sleep(5000);
+                source.stop();
+            } else {
+                source.awaitEnd();
+            }
+            pipelines.stop();
+
+            long n = source.getNbSamples();
+            System.out.println(String.format("%s: %d samples (%.1f s of EEG) at %.0f samples/s (%.1fx real time); "
+                    + "EEG graph points %d and filter graph points %d of %d, PSD updates %d of %d, %d samples "
+                    + "dropped by the slowest thread; alpha power on TP9 %.2f", mode, n, n / source.getSamplingFrequency(),
+                    source.getSamplesPerSecond(), source.getSamplesPerSecond() / source.getSamplingFrequency(),
+                    pipelines.eegPoints, pipelines.filterPoints, n / 3, pipelines.psdUpdates,
+                    n / pipelines.psd.getStepSize(), pipelines.getDropped(),
+                    pipelines.psd.getBandPowerTracker().getBandPower(0, BandPowerTracker.ALPHA)));
+        }
+    }
+
+    // The graphs' chains (the processors their pipelines run), fed like the AcquisitionHub feeds
+    // them: one shared buffer written by the replay thread, read by every data pipeline (on the
+    // DspRuntime, like the graphs') through its own cursor
+    private static final class Pipelines {
+        // AcquisitionHub
+        static final int HUB_BUFFER_LENGTH = 1024;
+        final CircularBuffer hubBuffer = new CircularBuffer(HUB_BUFFER_LENGTH, 4);
+
+        // Same samples per plotted bucket as EEGGraph and FilterGraph
+        static final int SAMPLES_PER_BUCKET = 6;
+        final EEGProcessor eeg;
+        final FilterProcessor filter = new FilterProcessor(4, SAMPLES_PER_BUCKET);
+        final PSDProcessor psd;
+
+        volatile boolean keepRunning;
+        volatile long eegPoints;
+        volatile long filterPoints;
+        volatile long psdUpdates;
+        private final List<DspRuntime.Task> tasks = new ArrayList<DspRuntime.Task>();
+        private final List<CircularBuffer.Cursor> cursors = new CopyOnWriteArrayList<CircularBuffer.Cursor>();
+
+        // Same as AcquisitionHub.receiveSample, except that it waits for the slowest data thread
+        // rather than overwrite a sample it has not read: a headband cannot wait, but this way
+        // AS_FAST_AS_POSSIBLE measures the throughput of the slowest chain
+        final SampleListener hubListener = new SampleListener() {
+            @Override
+            public void receiveSample(double[] sample) {
+                // The newest slot is being written and the oldest may be being copied by a reader
+                while (keepRunning && getMaxPending() >= HUB_BUFFER_LENGTH - 2) {
+                    LockSupport.parkNanos(10000);
+                }
+                hubBuffer.update(sample, System.nanoTime());
+            }
+        };
+
+        Pipelines(double samplingFrequency) {
+            // Like the graphs for a Muse 2016 (256hz), which has line noise
+            eeg = new EEGProcessor(4, samplingFrequency, samplingFrequency == 256, SAMPLES_PER_BUCKET);
+            filter.setFilter(FilterDesign.get(samplingFrequency, "bandpass", 5, 2, 35));
+            psd = new PSDProcessor(4, samplingFrequency);
+        }
+
+        void start() {
+            keepRunning = true;
+            DspRuntime runtime = DspRuntime.getInstance();
+            final CircularBuffer.Cursor eegCursor = subscribe();
+            tasks.add(runtime.start("EEGDataSource", new DspRuntime.Pipeline() {
+                private final double[][] chunk = new double[4][64];
+                private final double[] points = new double[eeg.getMaxPoints(64)];
+
+                @Override
+                public void step() throws InterruptedException {
+                    if (hubBuffer.awaitPts(eegCursor, SAMPLES_PER_BUCKET, 100)) {
+                        int nbSamples = hubBuffer.readSince(eegCursor, chunk);
+                        eeg.process(chunk, nbSamples);
+                        eegPoints += eeg.decimate(chunk, nbSamples, 0, points);
+                    }
+                }
+            }));
+
+            final CircularBuffer.Cursor filterCursor = subscribe();
+            tasks.add(runtime.start("FilterDataSource", new DspRuntime.Pipeline() {
+                private final double[][] chunk = new double[4][64];
+                private final double[] points = new double[filter.getMaxPoints(64)];
+
+                @Override
+                public void step() throws InterruptedException {
+                    if (hubBuffer.awaitPts(filterCursor, SAMPLES_PER_BUCKET, 100)) {
+                        int nbSamples = hubBuffer.readSince(filterCursor, chunk);
+                        filter.process(chunk, nbSamples);
+                        filterPoints += filter.decimate(chunk, nbSamples, 0, points);
+                    }
+                }
+            }));
+
+            final CircularBuffer.Cursor psdCursor = subscribe();
+            tasks.add(runtime.start("PSDDataSource", new DspRuntime.Pipeline() {
+                private final double[][] chunk = new double[4][64];
+
+                @Override
+                public void step() throws InterruptedException {
+                    if (hubBuffer.awaitPts(psdCursor, psd.getStepSize(), 100)) {
+                        int nbSamples;
+                        while ((nbSamples = hubBuffer.readSince(psdCursor, chunk)) > 0) {
+                            psd.addSamples(chunk, nbSamples);
+                        }
+                        psd.update(hubBuffer);
+                        psdUpdates++;
+                    }
+                }
+            }));
+        }
+
+        void stop() {
+            keepRunning = false;
+            for (DspRuntime.Task task : tasks) {
+                task.stopAndAwait(1000);
+            }
+        }
+
+        private CircularBuffer.Cursor subscribe() {
+            CircularBuffer.Cursor cursor = hubBuffer.newCursor();
+            cursors.add(cursor);
+            return cursor;
+        }
+
+        private int getMaxPending() {
+            int pending = 0;
+            for (CircularBuffer.Cursor cursor : cursors) {
+                pending = Math.max(pending, hubBuffer.getPts(cursor));
+            }
+            return pending;
+        }
+
+        // Samples lost by the slowest data thread, which fell more than the buffer's length behind
+        long getDropped() {
+            long dropped = 0;
+            for (CircularBuffer.Cursor cursor : cursors) {
+                dropped = Math.max(dropped, cursor.getDropped());
+            }
+            return dropped;
+        }
+    }
+
+    // Muse-like EEG (offset, 1/f-like background, 10 Hz alpha, 60 Hz line noise) in the binary format
+    private static void writeSyntheticRecording(File file, int fs, int seconds) throws IOException {
+        RecordingHeader header = new RecordingHeader(fs, new String[] {"TP9", "AF7", "AF8", "TP10"}, "uV",
+                new double[0], "MU_02");
+        RecordingWriter writer = new BinaryRecordingWriter(new FileOutputStream(file), header);
+        Random random = new Random(42);
+        double[] row = new double[4];
+        double[] background = new double[4];
+        try {
+            for (int i = 0; i < seconds * fs; i++) {
+                for (int c = 0; c < 4; c++) {
+                    background[c] = 0.98*background[c] + 3*random.nextGaussian();
+                    row[c] = 800 + background[c] + 15*Math.sin(2*Math.PI*10*i/fs + c) + 5*Math.sin(2*Math.PI*60*i/fs);
+                }
+                writer.writeRow(1500000000000L + i * 1000L / fs, row, 0, 4);
+            }
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,9 @@
+package com.eeg_project.components.replay;
+
+// Receives EEG samples one frame (one value per channel) at a time, whether they come from the
+// headband (the AcquisitionHub's Muse listener) or from a recorded session (ReplaySource). The array is
+// reused by the caller, so it must be copied if it is kept
+public interface SampleListener {
+
+    void receiveSample(double[] sample);
+}
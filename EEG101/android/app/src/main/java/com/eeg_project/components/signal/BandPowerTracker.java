@@ -0,0 +1,386 @@
+package com.eeg_project.components.signal;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+Streaming band-power tracker based on a sliding DFT.
+
+Tracks the power of the FFT bins that fall inside a few frequency bands (by default the usual EEG
+bands) over the last `windowLength` samples. Each sample passed to update() costs O(number of tracked
+bins), instead of a full FFT every hop.
+
+The bin values are the same as FFT.computePSD() on the last windowLength samples (de-meaned,
+symmetric Hamming window, fftLength == windowLength). The Hamming window is a sum of three complex
+exponentials, w[n] = 0.54 - 0.23*e^(j*b*n) - 0.23*e^(-j*b*n) with b = 2*pi/(N-1), so each windowed
+bin is a combination of three unwindowed sliding sums at w_k and w_k -/+ b. Each sum is updated with
+    A(m+1) = e^(j*w) * (A(m) - x_old + x_new*e^(-j*w*N))
+and the window mean is removed with the precomputed window spectrum. The rounding errors of the
+recursion grow very slowly; they are cleared by recomputing the sums from the sample history every
+RESYNC_WINDOWS windows.
+
+Before windowLength samples have been received the missing samples count as zeros, as they do in
+CircularBuffer.
+
+update() must be called from a single thread. In the app this is the PSD graph's pipeline on
+DspRuntime, which feeds it the samples received since its previous step in one batch, every
+stepSize samples (~0.1 s). Band powers are therefore only as recent as the last batch: they lag the
+headset by up to one step plus the pipeline's wake-up delay, not by one sample. Band powers can be
+read from any thread; each value is published atomically.
+
+Args:
+nbCh (int) : number of channels
+windowLength (int) : number of samples in the analysis window (and FFT length)
+samplingFrequency (double) : sampling frequency of the input signal, in Hz
+bands (double[][]) : {low, high} frequency limits of each band, in Hz. A band holds the bins
+with low <= f < high
+*/
+public class BandPowerTracker {
+
+    // ------------------------------------------------------------------------
+    // Bands
+
+    public static final int DELTA = 0;
+    public static final int THETA = 1;
+    public static final int ALPHA = 2;
+    public static final int BETA = 3;
+    public static final int GAMMA = 4;
+
+    // Delta starts at 1 Hz because the DC bin only holds what is left of the mean. Gamma stops
+    // at 44 Hz, like the PSD plot, which keeps the number of tracked bins (and the cost) low
+    public static final double[][] EEG_BANDS = {{1, 4}, {4, 8}, {8, 13}, {13, 30}, {30, 44}};
+
+    // A resync costs as much as windowLength updates, so it is kept rare
+    private static final int RESYNC_WINDOWS = 32;
+
+    // ------------------------------------------------------------------------
+    // Variables
+
+    private final int nbCh;
+    private final int windowLength;
+    private final int nbBands;
+    private final int[] bins;
+    private final int[] bandOfBin;
+
+    // Per accumulator (3 per bin: w, w - b and w + b) rotation e^(j*w) and tail factor e^(-j*w*N)
+    private final double[] rotRe;
+    private final double[] rotIm;
+    private final double[] tailRe;
+    private final double[] tailIm;
+
+    // Spectrum of the window at each tracked bin, used to remove the window mean
+    private final double[] winRe;
+    private final double[] winIm;
+
+    // State, only touched by the thread calling update()
+    private final double[][] history;
+    private final double[][] accRe;
+    private final double[][] accIm;
+    private final double[] sum;
+    private final double[][] binPower;
+    private final double[] bandSum;
+    private int head = 0;
+    private int sinceResync = 0;
+    private volatile boolean clearRequested = false;
+
+    // Published band powers (raw bits of the doubles), indexed [channel*nbBands + band]
+    private final AtomicLongArray bandPower;
+
+    // ------------------------------------------------------------------------
+    // Constructors
+
+    public BandPowerTracker(int nbCh, int windowLength, double samplingFrequency) {
+        this(nbCh, windowLength, samplingFrequency, EEG_BANDS);
+    }
+
+    public BandPowerTracker(int nbCh, int windowLength, double samplingFrequency, double[][] bands) {
+        this.nbCh = nbCh;
+        this.windowLength = windowLength;
+        this.nbBands = bands.length;
+
+        // Same bins as FFT.getFreqBins(); the last one does not hold a regular DFT bin in
+        // FFT.computePSD() and cannot be tracked
+        int nbFFTPoints = (windowLength % 2 == 0) ? windowLength/2 : windowLength/2 + 1;
+        int nbBins = 0;
+        int[] allBins = new int[nbFFTPoints];
+        int[] allBands = new int[nbFFTPoints];
+        for (int band = 0; band < nbBands; band++) {
+            if (bands[band][1] > samplingFrequency * (nbFFTPoints - 1) / windowLength) {
+                throw new IllegalArgumentException("Band " + band + " ends above the highest trackable frequency.");
+            }
+            for (int k = 0; k < nbFFTPoints - 1; k++) {
+                double f = samplingFrequency * k / windowLength;
+                if (f >= bands[band][0] && f < bands[band][1]) {
+                    allBins[nbBins] = k;
+                    allBands[nbBins] = band;
+                    nbBins++;
+                }
+            }
+        }
+        bins = new int[nbBins];
+        bandOfBin = new int[nbBins];
+        System.arraycopy(allBins, 0, bins, 0, nbBins);
+        System.arraycopy(allBands, 0, bandOfBin, 0, nbBins);
+
+        double b = 2*Math.PI / (windowLength - 1);
+        rotRe = new double[3*nbBins];
+        rotIm = new double[3*nbBins];
+        tailRe = new double[3*nbBins];
+        tailIm = new double[3*nbBins];
+        winRe = new double[nbBins];
+        winIm = new double[nbBins];
+        for (int j = 0; j < nbBins; j++) {
+            double w = 2*Math.PI*bins[j] / windowLength;
+            double[] thetas = {w, w - b, w + b};
+            for (int i = 0; i < 3; i++) {
+                rotRe[3*j + i] = Math.cos(thetas[i]);
+                rotIm[3*j + i] = Math.sin(thetas[i]);
+                tailRe[3*j + i] = Math.cos(thetas[i]*windowLength);
+                tailIm[3*j + i] = -Math.sin(thetas[i]*windowLength);
+            }
+            for (int n = 0; n < windowLength; n++) {
+                double hamming = 0.54 - 0.46*Math.cos(b*n);
+                winRe[j] += hamming*Math.cos(w*n);
+                winIm[j] -= hamming*Math.sin(w*n);
+            }
+        }
+
+        history = new double[nbCh][windowLength];
+        accRe = new double[nbCh][3*nbBins];
+        accIm = new double[nbCh][3*nbBins];
+        sum = new double[nbCh];
+        binPower = new double[nbCh][nbBins];
+        bandSum = new double[nbBands];
+        bandPower = new AtomicLongArray(nbCh*nbBands);
+    }
+
+    // ------------------------------------------------------------------------
+    // Methods
+
+    public void update(double[] newData) {
+        // Add one sample of every channel and update the power of every band
+
+        if (clearRequested) {
+            reset();
+        }
+
+        for (int c = 0; c < nbCh; c++) {
+            double x = newData[c];
+            double old = history[c][head];
+            history[c][head] = x;
+            sum[c] += x - old;
+
+            double[] re = accRe[c];
+            double[] im = accIm[c];
+            for (int i = 0; i < re.length; i++) {
+                double tr = re[i] - old + x*tailRe[i];
+                double ti = im[i] + x*tailIm[i];
+                re[i] = tr*rotRe[i] - ti*rotIm[i];
+                im[i] = tr*rotIm[i] + ti*rotRe[i];
+            }
+        }
+        head = (head + 1) % windowLength;
+
+        if (++sinceResync == RESYNC_WINDOWS*windowLength) {
+            resync();
+        }
+
+        for (int c = 0; c < nbCh; c++) {
+            computeBandPowers(c);
+        }
+    }
+
+    // Power in one band of one channel over the last windowLength samples
+    public double getBandPower(int channel, int band) {
+        return Double.longBitsToDouble(bandPower.get(channel*nbBands + band));
+    }
+
+    // Power in every band of one channel, written into out[nbBands]
+    public void getBandPowers(int channel, double[] out) {
+        for (int band = 0; band < nbBands; band++) {
+            out[band] = getBandPower(channel, band);
+        }
+    }
+
+    // Power of every tracked bin of one channel, in the order of getBins(). Must be called from
+    // the thread calling update()
+    public void getBinPowers(int channel, double[] out) {
+        System.arraycopy(binPower[channel], 0, out, 0, bins.length);
+    }
+
+    // Indices of the tracked bins in FFT.getFreqBins()
+    public int[] getBins() {
+        return bins;
+    }
+
+    public int getNbBands() {
+        return nbBands;
+    }
+
+    // Forget all samples received so far. Takes effect at the next update(), so it can be
+    // called from any thread
+    public void clear() {
+        clearRequested = true;
+    }
+
+    private void reset() {
+        clearRequested = false;
+        for (int c = 0; c < nbCh; c++) {
+            for (int n = 0; n < windowLength; n++) {
+                history[c][n] = 0;
+            }
+            for (int i = 0; i < accRe[c].length; i++) {
+                accRe[c][i] = 0;
+                accIm[c][i] = 0;
+            }
+            sum[c] = 0;
+        }
+        head = 0;
+        sinceResync = 0;
+    }
+
+    // Recompute the sliding sums from the sample history (Horner's scheme, oldest sample first
+    // in the window) to clear the rounding errors accumulated by the recursion
+    private void resync() {
+        sinceResync = 0;
+        for (int c = 0; c < nbCh; c++) {
+            double[] h = history[c];
+            double s = 0;
+            for (double v : h) {
+                s += v;
+            }
+            sum[c] = s;
+
+            for (int i = 0; i < accRe[c].length; i++) {
+                // z = e^(-j*w) = conj(rot)
+                double zr = rotRe[i];
+                double zi = -rotIm[i];
+                double re = 0;
+                double im = 0;
+                // Newest to oldest: h[head - 1] ... h[0], then h[windowLength - 1] ... h[head]
+                for (int n = head - 1; n >= 0; n--) {
+                    double tr = re*zr - im*zi + h[n];
+                    im = re*zi + im*zr;
+                    re = tr;
+                }
+                for (int n = windowLength - 1; n >= head; n--) {
+                    double tr = re*zr - im*zi + h[n];
+                    im = re*zi + im*zr;
+                    re = tr;
+                }
+                accRe[c][i] = re;
+                accIm[c][i] = im;
+            }
+        }
+    }
+
+    private void computeBandPowers(int c) {
+        double mean = sum[c] / windowLength;
+        double[] re = accRe[c];
+        double[] im = accIm[c];
+        double[] power = binPower[c];
+
+        for (int band = 0; band < nbBands; band++) {
+            bandSum[band] = 0;
+        }
+        for (int j = 0; j < bins.length; j++) {
+            double xr = 0.54*re[3*j] - 0.23*(re[3*j + 1] + re[3*j + 2]) - mean*winRe[j];
+            double xi = 0.54*im[3*j] - 0.23*(im[3*j + 1] + im[3*j + 2]) - mean*winIm[j];
+            if (bins[j] == 0) {
+                xi = 0; // as in FFT.computePSD()
+            }
+            power[j] = xr*xr + xi*xi;
+            bandSum[bandOfBin[j]] += power[j];
+        }
+        for (int band = 0; band < nbBands; band++) {
+            bandPower.lazySet(c*nbBands + band, Double.doubleToRawLongBits(bandSum[band]));
+        }
+    }
+
+    // Example main for testing: bin powers must match FFT.computePSD() on the same window
+    public static void main(String[] args) {
+        int nbCh = 4;
+        int windowLength = 256;
+        double fs = 256.;
+        int stepSize = 26;
+        BandPowerTracker tracker = new BandPowerTracker(nbCh, windowLength, fs);
+        FFT fft = new FFT(windowLength, windowLength, fs);
+        int[] bins = tracker.getBins();
+        double[] trackedPower = new double[bins.length];
+        double[] fftPower = new double[fft.getFreqBins().length];
+
+        // Raw samples of every channel, to check against the FFT
+        int nbSamples = 256 * 120;
+        double[][] raw = new double[nbCh][nbSamples];
+        Random random = new Random(42);
+        for (int i = 0; i < nbSamples; i++) {
+            for (int c = 0; c < nbCh; c++) {
+                raw[c][i] = 800 + 30*Math.sin(2*Math.PI*(6 + 5*c)*i/fs) + 10*random.nextGaussian();
+            }
+        }
+
+        double[] sample = new double[nbCh];
+        double maxRelError = 0;
+        for (int i = 0; i < nbSamples; i++) {
+            for (int c = 0; c < nbCh; c++) {
+                sample[c] = raw[c][i];
+            }
+            tracker.update(sample);
+
+            // Compare every tracked bin with the FFT once the window is full
+            if (i >= windowLength - 1 && i % stepSize == 0) {
+                for (int c = 0; c < nbCh; c++) {
+                    fft.computePSD(raw[c], i - windowLength + 1, fftPower);
+                    tracker.getBinPowers(c, trackedPower);
+                    double total = 0;
+                    for (int j = 0; j < bins.length; j++) {
+                        total += fftPower[bins[j]];
+                    }
+                    for (int j = 0; j < bins.length; j++) {
+                        // Relative to the mean bin power, so near-empty bins do not dominate
+                        double error = Math.abs(trackedPower[j] - fftPower[bins[j]]) / (total / bins.length);
+                        maxRelError = Math.max(maxRelError, error);
+                    }
+                }
+            }
+        }
+
+        String[] names = {"delta", "theta", "alpha", "beta", "gamma"};
+        for (int c = 0; c < nbCh; c++) {
+            StringBuilder line = new StringBuilder("Channel " + c + " (" + (6 + 5*c) + " Hz):");
+            for (int band = 0; band < tracker.getNbBands(); band++) {
+                line.append(String.format(" %s %.3g", names[band], tracker.getBandPower(c, band)));
+            }
+            System.out.println(line);
+        }
+        System.out.println(bins.length + " bins tracked, max relative error vs FFT.computePSD " + maxRelError
+                + (maxRelError < 1e-6 ? " (OK)" : " (FAILED)"));
+
+        // Cost of one update of all channels: one sample for the tracker, one hop (a PSD per
+        // channel) for the FFT path as PSDGraph runs it
+        long trackerNanos = 0;
+        long fftNanos = 0;
+        for (int pass = 0; pass < 3; pass++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < nbSamples; i++) {
+                for (int c = 0; c < nbCh; c++) {
+                    sample[c] = raw[c][i];
+                }
+                tracker.update(sample);
+            }
+            trackerNanos = (System.nanoTime() - start) / nbSamples;
+
+            int hops = 0;
+            start = System.nanoTime();
+            for (int i = windowLength - 1; i < nbSamples; i += stepSize) {
+                for (int c = 0; c < nbCh; c++) {
+                    fft.computePSD(raw[c], i - windowLength + 1, fftPower);
+                }
+                hops++;
+            }
+            fftNanos = (System.nanoTime() - start) / hops;
+        }
+        System.out.println("Sliding DFT " + trackerNanos + " ns per update (every sample), FFT "
+                + fftNanos + " ns per update (every " + stepSize + " samples)");
+    }
+}
@@ -1,20 +1,60 @@
 package com.eeg_project.components.signal;
 
-import android.util.Log;
-
 import java.util.Arrays; // For printing arrays when debugging
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
 // A pure Java implementation of a circular buffer
+//
+// The buffer has a single producer (the libmuse listener thread calling update()) and any number
+// of consumer threads. No locks are taken: the producer writes a row and then publishes a new
+// sequence number, and readers only copy rows below the published sequence. Rows the producer
+// may have overwritten while they were being copied are detected afterwards and re-read or
+// discarded. That re-check reads the sequence again after a load fence (see reloadSequence()), so
+// the copy cannot be reordered after it and a torn row is never mistaken for an intact one.
+//
+// Each consumer can hold its own Cursor and read every sample exactly once with readSince(),
+// independently of the other consumers. getPts() and resetPts() without a cursor act on a
+// shared default cursor and are kept for the existing callers.
+//
+// Samples are stored channel-major in one flat array (channel c occupies
+// buffer[c * bufferLength, (c + 1) * bufferLength)), so a channel's latest samples are at most two
+// contiguous spans and the extractInto() methods copy them with System.arraycopy into arrays owned
+// by the caller, without allocating.
+//
+// Readers that have nothing else to do should block in awaitPts() rather than poll getPts():
+// the producer only takes a lock to wake a reader once enough samples have arrived for it.
 public class CircularBuffer {
 
     // ------------------------------------------------------------------------
     // Variables
 
-    private int bufferLength;
-    private int nbCh;
-    private int index;
-    private int pts;
-    private double[][] buffer;
+    private final int bufferLength;
+    private final int nbCh;
+    private final double[] buffer;
+
+    // Ingest time (System.nanoTime()) of every sample, for latency tracing. 0 when not given
+    private final long[] timestamps;
+
+    // Total number of samples written. Only the producer writes it; rows below it are readable
+    private final AtomicLong published = new AtomicLong();
+
+    // Only written by readers, as the store half of their load fence (see reloadSequence())
+    private volatile int readFence;
+
+    // Samples with a sequence number below floor were cleared and read back as zeros
+    private volatile long floor;
+
+    private final Cursor defaultCursor = new Cursor(0);
+
+    // Blocking readers park on samplesArrived until the published sequence reaches wakeAt
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition samplesArrived = lock.newCondition();
+    private volatile long wakeAt = Long.MAX_VALUE;
 
     // ------------------------------------------------------------------------
     // Constructor
@@ -22,34 +62,87 @@ public class CircularBuffer {
     public CircularBuffer(int bufferLength, int nChannels) {
         this.bufferLength = bufferLength;
         this.nbCh = nChannels;
-        index = 0;
-        pts = 0;
-        buffer = new double[bufferLength][nbCh];
+        buffer = new double[nbCh * bufferLength];
+        timestamps = new long[bufferLength];
+    }
+
+    // ------------------------------------------------------------------------
+    // Cursor
+
+    // Read position of a single consumer. A cursor must only be used by one thread at a time
+    public static final class Cursor {
+        private volatile long position;
+        private long dropped;
+
+        private Cursor(long position) {
+            this.position = position;
+        }
+
+        // Number of samples this reader lost because the producer lapped it
+        public long getDropped() { return dropped; }
+
+        // Sequence number of the next sample readSince() will return: the last sample read is
+        // getPosition() - 1 (see getTimestamp())
+        public long getPosition() { return position; }
+    }
+
+    // Returns a cursor positioned at the most recent sample: only samples written after this call
+    // will be returned by readSince()
+    public Cursor newCursor() {
+        return new Cursor(published.get());
     }
 
     // ------------------------------------------------------------------------
     // Methods
 
-    // Updates the 2D buffer array with the 1D newData array at the current index. When index reaches the maximum bufferLength it returns to 0.
+    // Updates the buffer with the 1D newData array at the current index. When index reaches the maximum bufferLength it returns to 0.
+    // Must only be called from a single producer thread
     public void update(double[] newData) {
+        update(newData, 0);
+    }
+
+    // Same as update(newData), also storing the time the sample was received (System.nanoTime()) so
+    // readers can measure how long it took to reach them
+    public void update(double[] newData, long timestamp) {
+        long seq = published.get();
+        int index = (int) (seq % bufferLength);
         for(int i = 0; i < nbCh; i++) {
-            buffer[index][i] = newData[i];
+            buffer[i * bufferLength + index] = newData[i];
+        }
+        timestamps[index] = timestamp;
+        // Volatile store: the row above is visible to any reader that sees seq + 1, and the read
+        // of wakeAt below cannot move before it (so a reader registering concurrently either
+        // sees the new sample or gets signalled)
+        published.set(seq + 1);
+
+        if (seq + 1 >= wakeAt) {
+            lock.lock();
+            try {
+                wakeAt = Long.MAX_VALUE;
+                samplesArrived.signalAll();
+            } finally {
+                lock.unlock();
+            }
         }
-        index = (index + 1) % bufferLength;
-        pts++;
     }
 
     // Extracts an array containing the last nbSamples from the buffer. If the loop that fills the extracted samples encounters the beginning of the buffer, it will begin to take samples from the end of the buffer
     public double[][] extract(int nbSamples) {
-        int extractIndex;
+        checkLength(nbSamples);
         double[][] extractedArray = new double[nbSamples][nbCh];
+        long first;
 
-        for(int i = 0; i < nbSamples; i++) {
-            extractIndex = mod(index - nbSamples + i, bufferLength);
-            for(int j = 0; j < nbCh; j++) {
-                extractedArray[i][j] = buffer[extractIndex][j];
+        do {
+            first = published.get() - nbSamples;
+            long floor = this.floor;
+            for(int i = 0; i < nbSamples; i++) {
+                long seq = first + i;
+                int index = (int) (seq % bufferLength);
+                for (int j = 0; j < nbCh; j++) {
+                    extractedArray[i][j] = (seq < floor || seq < 0) ? 0 : buffer[j * bufferLength + index];
+                }
             }
-        }
+        } while (isOverwritten(first));
 
         return extractedArray;
     }
@@ -64,18 +157,10 @@ public class CircularBuffer {
         // through the returned array when computing FFT (the looping is
         // instead done here.)
         //
-        // TODO: find more efficient way to do that (use EJML?)
+        // Use extractInto() to avoid allocating a new array on every call.
 
-        int extractIndex;
         double[][] extractedArray = new double[nbCh][nbSamples];
-
-        for (int c = 0; c < nbCh; c++) {
-            for(int i = 0; i < nbSamples; i++) {
-                extractIndex = mod(index - nbSamples + i, bufferLength);
-                extractedArray[c][i] = buffer[extractIndex][c];
-            }
-        }
-
+        extractInto(extractedArray, nbSamples);
         return extractedArray;
     }
 
@@ -89,39 +174,439 @@ public class CircularBuffer {
         // through the returned array when computing FFT (the looping is
         // instead done here.)
 
-        int extractIndex;
         double[] extractedArray = new double[nbSamples];
+        extractInto(extractedArray, channelofinterest, nbSamples);
+        return extractedArray;
+    }
 
-        for(int i = 0; i < nbSamples; i++) {
-            extractIndex = mod(index - nbSamples + i, bufferLength);
-            extractedArray[i] = buffer[extractIndex][channelofinterest];
+    public void extractInto(double[] dst, int channel, int nbSamples) {
+        // Copy the last `nbSamples` samples of `channel` into dst[0, nbSamples), oldest first.
+        //
+        // Same result as extractSingleChannelTransposed() but written into an array owned by
+        // the caller, with at most two System.arraycopy calls.
+
+        checkLength(nbSamples);
+        long first;
+
+        do {
+            first = published.get() - nbSamples;
+            copyChannel(first, nbSamples, channel, dst, 0);
+        } while (isOverwritten(first));
+    }
+
+    public void extractInto(double[][] dst, int nbSamples) {
+        // Copy the last `nbSamples` samples of every channel into dst, which has the shape
+        // [nbCh, >= nbSamples]. Same result as extractTransposed() without allocating.
+
+        checkLength(nbSamples);
+        long first;
+
+        do {
+            first = published.get() - nbSamples;
+            for (int c = 0; c < nbCh; c++) {
+                copyChannel(first, nbSamples, c, dst[c], 0);
+            }
+        } while (isOverwritten(first));
+    }
+
+    public boolean extractRangeInto(double[] dst, int dstOffset, int channel, long first, int nbSamples) {
+        // Copy samples [first, first + nbSamples) of `channel` into dst[dstOffset...], where
+        // sample numbers count every sample received (see getSequence()).
+        //
+        // Lets a reader take several overlapping slices relative to one getSequence() snapshot
+        // while new samples keep arriving. Returns false, leaving dst undefined, if any of the
+        // samples has already been overwritten or has not been received yet.
+
+        if (first + nbSamples > published.get()) {
+            return false;
         }
+        copyChannel(first, nbSamples, channel, dst, dstOffset);
+        return !isOverwritten(first);
+    }
 
-        return extractedArray;
+    // Number of samples received so far; the newest sample is number getSequence() - 1
+    public long getSequence() {
+        return published.get();
+    }
+
+    public int getBufferLength() {
+        return bufferLength;
+    }
+
+    public long extractLatestInto(double[] dst) {
+        // Copy the most recent sample of every channel into dst[nbCh]. Returns the timestamp it
+        // was stored with (0 if none)
+        long latest;
+        long timestamp;
+
+        do {
+            latest = published.get() - 1;
+            int index = (int) (latest % bufferLength);
+            boolean cleared = latest < floor || latest < 0;
+            for (int c = 0; c < nbCh; c++) {
+                dst[c] = cleared ? 0 : buffer[c * bufferLength + index];
+            }
+            timestamp = cleared ? 0 : timestamps[index];
+        } while (isOverwritten(latest));
+        return timestamp;
+    }
+
+    // Timestamp stored with sample number `sequence`, or 0 if it was not given, has not been
+    // received yet or was already overwritten
+    public long getTimestamp(long sequence) {
+        if (sequence < 0 || sequence >= published.get()) {
+            return 0;
+        }
+        long timestamp = timestamps[(int) (sequence % bufferLength)];
+        return isOverwritten(sequence) ? 0 : timestamp;
     }
 
-    public int getPts() { return pts; }
+    public int readSince(Cursor cursor, double[][] dst) {
+        // Copy the samples received since the cursor's last read into dst, oldest first,
+        // and advance the cursor past them.
+        //
+        // The shape of dst is [nbCh, maxSamples]. At most maxSamples samples are read per call;
+        // call again (or check getPts(cursor)) to get the rest.
+        //
+        // Returns the number of samples written in dst. If the reader fell more than
+        // bufferLength samples behind, the lost samples are skipped and counted in
+        // cursor.getDropped() instead of being returned twice or torn.
+
+        long last = published.get();
+        long first = Math.max(cursor.position, floor);
+
+        // The slot following `last` may be being overwritten right now
+        long oldest = last - bufferLength + 1;
+        if (first < oldest) {
+            cursor.dropped += oldest - first;
+            first = oldest;
+        }
+
+        int nbSamples = (int) Math.min(last - first, dst[0].length);
+        for (int c = 0; c < nbCh; c++) {
+            copyChannel(first, nbSamples, c, dst[c], 0);
+        }
+
+        // Rows the producer reached while we were copying are discarded
+        long lapped = reloadSequence() - bufferLength + 1 - first;
+        if (lapped > 0) {
+            int torn = (int) Math.min(lapped, nbSamples);
+            for (int c = 0; c < nbCh; c++) {
+                System.arraycopy(dst[c], torn, dst[c], 0, nbSamples - torn);
+            }
+            cursor.dropped += torn;
+            cursor.position = first + nbSamples;
+            return nbSamples - torn;
+        }
+
+        cursor.position = first + nbSamples;
+        return nbSamples;
+    }
+
+    public boolean awaitPts(Cursor cursor, int nbSamples, long timeout) throws InterruptedException {
+        // Block until at least nbSamples samples were received since the cursor's last read,
+        // or until `timeout` milliseconds have elapsed.
+        //
+        // Returns true if the samples are available, false on timeout. The thread is parked
+        // while waiting and is woken by update() only once its target is reached, so a data
+        // thread stepping every 3 samples wakes ~85 times per second instead of spinning.
+
+        long target = cursor.position + nbSamples;
+        if (published.get() >= target) {
+            return true;
+        }
+
+        long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+        lock.lock();
+        try {
+            while (true) {
+                // Register before re-checking so update() cannot miss us
+                if (target < wakeAt) {
+                    wakeAt = target;
+                }
+                if (published.get() >= target) {
+                    return true;
+                }
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = samplesArrived.awaitNanos(nanos);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean awaitPts(int nbSamples, long timeout) throws InterruptedException {
+        return awaitPts(defaultCursor, nbSamples, timeout);
+    }
+
+    // Number of samples received since the cursor's last read
+    public int getPts(Cursor cursor) {
+        return (int) Math.min(published.get() - cursor.position, Integer.MAX_VALUE);
+    }
+
+    // Marks every sample received so far as read by this cursor
+    public void resetPts(Cursor cursor) {
+        cursor.position = published.get();
+    }
+
+    public int getPts() { return getPts(defaultCursor); }
 
     public void resetPts() {
-        pts = 0;
+        resetPts(defaultCursor);
     }
 
     public void print() {
-        System.out.println(Arrays.deepToString(buffer));
+        for (int c = 0; c < nbCh; c++) {
+            System.out.println(Arrays.toString(Arrays.copyOfRange(buffer, c * bufferLength, (c + 1) * bufferLength)));
+        }
     }
 
-    public int getIndex() { return index; }
+    public int getIndex() { return (int) (published.get() % bufferLength); }
 
-    private int mod(int a, int b) {
-        // Modulo operation that always return a positive number
-        int c = a % b;
-        return (c < 0) ? c + b : c;
+    public void clear() {
+        // Samples received so far are read back as zeros and skipped by cursors. The producer
+        // is not disturbed, so this is safe to call from a reader thread
+        this.floor = published.get();
+        resetPts();
     }
 
-    public void clear() {
-        this.buffer = new double[this.bufferLength][this.nbCh];
-        this.index = 0;
-        this.pts = 0;
+    // Copies nbSamples samples of one channel starting at sequence `first` into dst[offset...].
+    // Samples that were cleared (or never written) are copied as zeros
+    private void copyChannel(long first, int nbSamples, int channel, double[] dst, int offset) {
+        long validFrom = Math.max(floor, 0);
+        int zeros = (int) Math.max(0, Math.min(nbSamples, validFrom - first));
+        if (zeros > 0) {
+            Arrays.fill(dst, offset, offset + zeros, 0);
+        }
+
+        int length = nbSamples - zeros;
+        if (length == 0) {
+            return;
+        }
+
+        // The samples wrap around the end of the channel's span at most once
+        int start = (int) ((first + zeros) % bufferLength);
+        int base = channel * bufferLength;
+        int firstSpan = Math.min(length, bufferLength - start);
+        System.arraycopy(buffer, base + start, dst, offset + zeros, firstSpan);
+        if (firstSpan < length) {
+            System.arraycopy(buffer, base, dst, offset + zeros + firstSpan, length - firstSpan);
+        }
+    }
+
+    // True if the producer may have overwritten sample `first` (or later ones) while it was
+    // being copied, in which case the copy must be redone
+    private boolean isOverwritten(long first) {
+        long oldestCopied = Math.max(first, floor);
+        return oldestCopied <= reloadSequence() - bufferLength;
+    }
+
+    // Reads the published sequence again after a copy, to check which rows the producer may have
+    // overwritten meanwhile. A volatile read alone is only an acquire: the plain reads of buffer[]
+    // before it could still be performed after it (the JMM and ARM both allow it), and a row torn
+    // by the producer would then pass the check. The volatile store before it makes the pair a load
+    // fence: earlier reads cannot move after a volatile store, and a volatile read cannot move
+    // before a volatile store (ART emits stlr then ldar on ARMv8, dmb barriers on ARMv7).
+    // Unsafe.loadFence() would do the same but is not available on every supported Android version
+    private long reloadSequence() {
+        readFence = 1;
+        return published.get();
+    }
+
+    private void checkLength(int nbSamples) {
+        // One slot is kept free for the sample being written by the producer
+        if (nbSamples >= bufferLength) {
+            throw new IllegalArgumentException("Cannot extract " + nbSamples + " samples from a buffer of length " + bufferLength + ".");
+        }
+    }
+
+    // Main with a concurrency stress test: one producer hammers the buffer while several readers
+    // check that they see every sample once, in order and never half-written. The first run
+    // writes as fast as possible (readers are expected to be lapped and report drops), the
+    // second writes 12-sample bursts every millisecond (~45x real time) and must not drop anything
+    //
+    // It then streams at the Muse rate (256 Hz, in 12-sample packets) to three readers stepping
+    // like the graph data threads, first by polling getPts() and then by blocking in awaitPts(),
+    // and reports how busy the readers were per second of streamed data
+    public static void main(String[] args) throws InterruptedException {
+        stressTest(2000000, 0);
+        stressTest(60000, 1000000);
+
+        readerLoadBenchmark(false, 3);
+        readerLoadBenchmark(true, 3);
+    }
+
+    private static void readerLoadBenchmark(final boolean blocking, int seconds) throws InterruptedException {
+        // Busy time is the wall-clock time a reader spends outside awaitPts(); java.lang.management
+        // is not part of the Android SDK, so per-thread CPU time cannot be read from here. A
+        // polling reader never blocks and is therefore busy 100% of the time.
+        final int nbCh = 4;
+        final int[] stepSizes = {3, 3, 26};
+        final CircularBuffer buffer = new CircularBuffer(512, nbCh);
+        final AtomicBoolean done = new AtomicBoolean();
+        final long[] busyNanos = new long[stepSizes.length];
+        final long[] loops = new long[stepSizes.length];
+        final long[] steps = new long[stepSizes.length];
+
+        Thread[] readers = new Thread[stepSizes.length];
+        for (int r = 0; r < stepSizes.length; r++) {
+            final int id = r;
+            readers[r] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Cursor cursor = buffer.newCursor();
+                    int stepSize = stepSizes[id];
+                    long start = System.nanoTime();
+                    long waited = 0;
+                    try {
+                        while (!done.get()) {
+                            loops[id]++;
+                            boolean ready;
+                            if (blocking) {
+                                long t = System.nanoTime();
+                                ready = buffer.awaitPts(cursor, stepSize, 100);
+                                waited += System.nanoTime() - t;
+                            } else {
+                                ready = buffer.getPts(cursor) >= stepSize;
+                            }
+                            if (ready) {
+                                buffer.extractTransposed(stepSize);
+                                buffer.resetPts(cursor);
+                                steps[id]++;
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    busyNanos[id] = System.nanoTime() - start - waited;
+                }
+            });
+            readers[r].start();
+        }
+
+        int fs = 256;
+        int packetSize = 12;
+        long packetPeriod = TimeUnit.SECONDS.toNanos(1) * packetSize / fs;
+        double[] sample = new double[nbCh];
+        long next = System.nanoTime();
+        for (int p = 0; p < seconds * fs / packetSize; p++) {
+            for (int i = 0; i < packetSize; i++) {
+                buffer.update(sample);
+            }
+            next += packetPeriod;
+            LockSupport.parkNanos(next - System.nanoTime());
+        }
+        done.set(true);
+        for (Thread t : readers) {
+            t.join();
+        }
+
+        System.out.println((blocking ? "awaitPts()" : "getPts() polling") + ", " + seconds + " s streamed at " + fs + " Hz:");
+        for (int r = 0; r < stepSizes.length; r++) {
+            System.out.println("  reader stepping every " + stepSizes[r] + " samples: busy "
+                    + busyNanos[r] / seconds / 1000 + " us per second of data, "
+                    + loops[r] / seconds + " loop iterations/s, " + steps[r] / seconds + " steps/s");
+        }
+    }
+
+    private static void stressTest(final int nbSamples, long burstPeriodNanos) throws InterruptedException {
+        final int nbCh = 4;
+        final int nbReaders = 4;
+        final CircularBuffer buffer = new CircularBuffer(1024, nbCh);
+
+        final Cursor[] cursors = new Cursor[nbReaders];
+        final long[] received = new long[nbReaders];
+        final long[] errors = new long[nbReaders + 1];
+        for (int r = 0; r < nbReaders; r++) {
+            cursors[r] = buffer.newCursor();
+        }
+        final AtomicBoolean done = new AtomicBoolean();
+
+        Thread[] readers = new Thread[nbReaders + 1];
+        for (int r = 0; r < nbReaders; r++) {
+            final int id = r;
+            readers[r] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    double[][] dst = new double[nbCh][64];
+                    Cursor cursor = cursors[id];
+                    long expected = 0;
+                    while (true) {
+                        boolean finished = done.get();
+                        long droppedBefore = cursor.getDropped();
+                        int n = buffer.readSince(cursor, dst);
+                        expected += cursor.getDropped() - droppedBefore;
+                        for (int i = 0; i < n; i++) {
+                            for (int c = 0; c < nbCh; c++) {
+                                if (dst[c][i] != expected * nbCh + c) {
+                                    errors[id]++;
+                                }
+                            }
+                            expected++;
+                        }
+                        received[id] += n;
+                        if (finished && n == 0) {
+                            break;
+                        }
+                    }
+                }
+            });
+        }
+
+        // One more reader using the legacy API checks extracted rows are never torn
+        readers[nbReaders] = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long previous = -1;
+                while (!done.get()) {
+                    double[][] rows = buffer.extractTransposed(256);
+                    for (int i = 0; i < 256; i++) {
+                        long seq = (long) rows[0][i] / nbCh;
+                        for (int c = 0; c < nbCh; c++) {
+                            if (rows[c][i] != 0 && rows[c][i] != seq * nbCh + c) {
+                                errors[nbReaders]++;
+                            }
+                        }
+                    }
+                    long latest = (long) rows[0][255] / nbCh;
+                    if (latest < previous) {
+                        errors[nbReaders]++;
+                    }
+                    previous = latest;
+                }
+            }
+        });
+
+        for (Thread t : readers) {
+            t.start();
+        }
+
+        long start = System.nanoTime();
+        double[] sample = new double[nbCh];
+        for (long s = 0; s < nbSamples; s++) {
+            for (int c = 0; c < nbCh; c++) {
+                sample[c] = s * nbCh + c;
+            }
+            buffer.update(sample);
+            if (burstPeriodNanos > 0 && s % 12 == 11) {
+                LockSupport.parkNanos(burstPeriodNanos);
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        done.set(true);
+        for (Thread t : readers) {
+            t.join();
+        }
+
+        System.out.println("Wrote " + nbSamples + " samples in " + elapsed / 1000000 + " ms");
+        for (int r = 0; r < nbReaders; r++) {
+            long missing = nbSamples - received[r] - cursors[r].getDropped();
+            System.out.println("Reader " + r + ": received " + received[r] + ", dropped "
+                    + cursors[r].getDropped() + ", missing " + missing + ", errors " + errors[r]);
+        }
+        System.out.println("Extracting reader: errors " + errors[nbReaders]);
     }
 
-}
\ No newline at end of file
+}
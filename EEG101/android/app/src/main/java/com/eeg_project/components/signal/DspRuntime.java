@@ -0,0 +1,432 @@
+package com.eeg_project.components.signal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+Fixed pool of worker threads running every graph's data processing, in place of one new Thread per
+graph each time it becomes visible
+
+A graph's processing loop is a Pipeline, started with start(name, pipeline). The runtime calls its
+step() over and over on a pool thread until the returned Task is stopped. step() handles the samples
+available and blocks for at most a short timeout, so a stop is seen within one step; stop() also
+interrupts the step, so a step parked waiting for samples ends at once. task.await() returns when
+the pipeline has left the pool thread: a graph that calls stop() then await() when it is hidden or
+dropped knows that nothing of it still runs, and the same thread serves the next pipeline. A step
+that throws ends its task, and the exception is kept (Task.getFailure()).
+
+If await() times out (e.g. a step blocked on storage), that step is the task's last one, and
+Task.isStopping() is true until it returns. The graphs log the timeout, and wait for the task to end
+before starting a new pipeline on the same data source, which must never run on two threads at once.
+
+Short computations (e.g. MultiChannelPSD's per-channel FFTs) are submitted to getExecutor(), the
+same pool. The pool starts with one thread per core, and at least MIN_THREADS so that the three
+graphs can have their pipelines running and one thread is still free for the computations. When
+more pipelines run at once (e.g. a screen mounting several graphs), start() grows the pool so that
+one thread is always left free: a pipeline is never refused or left waiting behind another. As
+pipelines end, the pool shrinks back, never below its initial size, and the extra threads exit.
+
+Metrics, exposed to JS by LatencyModule.getProcessingMetrics(): the number of live and busy pool
+threads, the running pipelines, the tasks queued and completed, and the utilisation of the pool
+(fraction of its thread time spent running tasks since resetMetrics()). A running pipeline keeps its
+thread even while it waits for samples, so utilisation counts threads taken, not CPU time.
+*/
+public final class DspRuntime {
+
+    // ------------------------------------------------------------------------
+    // Variables
+
+    // The three graphs' pipelines and one thread for the computations they submit
+    public static final int MIN_THREADS = 4;
+
+    private static DspRuntime instance;
+
+    private final int basePoolSize;
+    private int poolSize; // guarded by pipelines
+    private final ThreadPoolExecutor pool;
+    private final List<Task> pipelines = new CopyOnWriteArrayList<Task>();
+    private final AtomicInteger liveThreads = new AtomicInteger();
+
+    // Metrics: integrals over time of the number of busy threads and of the pool size, since
+    // resetMetrics()
+    private final AtomicLong completedPipelines = new AtomicLong();
+    private int busyThreads;
+    private int threads;
+    private long busyNanos;
+    private long threadNanos;
+    private long lastChangeTime;
+
+    // ------------------------------------------------------------------------
+    // Constructor
+
+    private DspRuntime(int nbThreads) {
+        basePoolSize = nbThreads;
+        poolSize = nbThreads;
+        threads = nbThreads;
+        pool = new ThreadPoolExecutor(nbThreads, nbThreads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        liveThreads.incrementAndGet();
+                        try {
+                            r.run();
+                        } finally {
+                            liveThreads.decrementAndGet();
+                        }
+                    }
+                }, "DSP worker " + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        }) {
+            @Override
+            protected void beforeExecute(Thread t, Runnable r) {
+                busyChanged(1);
+            }
+
+            @Override
+            protected void afterExecute(Runnable r, Throwable t) {
+                busyChanged(-1);
+            }
+        };
+        pool.prestartAllCoreThreads();
+        resetMetrics();
+    }
+
+    public static synchronized DspRuntime getInstance() {
+        if (instance == null) {
+            instance = new DspRuntime(Math.max(MIN_THREADS, Runtime.getRuntime().availableProcessors()));
+        }
+        return instance;
+    }
+
+    // ------------------------------------------------------------------------
+    // Methods
+
+    // Runs pipeline.step() repeatedly on a pool thread until the returned task is stopped. `name`
+    // identifies it in the metrics. Adds a thread to the pool if the pipeline would take the last
+    // free one
+    public Task start(String name, Pipeline pipeline) {
+        Task task = new Task(name, pipeline);
+        synchronized (pipelines) {
+            pipelines.add(task);
+            resizePool();
+        }
+        pool.execute(task);
+        return task;
+    }
+
+    // One thread per running pipeline plus one, and at least basePoolSize. Called with the lock on
+    // pipelines held
+    private void resizePool() {
+        int size = Math.max(basePoolSize, pipelines.size() + 1);
+        if (size > poolSize) {
+            // Maximum first: the core size may not exceed it
+            pool.setMaximumPoolSize(size);
+            pool.setCorePoolSize(size);
+            pool.prestartAllCoreThreads();
+        } else if (size < poolSize) {
+            // Idle threads above the core size exit at once, busy ones after their task
+            pool.setCorePoolSize(size);
+            pool.setMaximumPoolSize(size);
+        } else {
+            return;
+        }
+        poolSize = size;
+        threadsChanged(size);
+    }
+
+    // Pool for short tasks, which must not block
+    public Executor getExecutor() {
+        return pool;
+    }
+
+    public int getPoolSize() {
+        synchronized (pipelines) {
+            return poolSize;
+        }
+    }
+
+    // Pool threads alive. They are started with the runtime, or when start() grows the pool, and
+    // exit when the pool shrinks back
+    public int getLiveThreadCount() {
+        return liveThreads.get();
+    }
+
+    // Pool threads running a pipeline or a short task right now
+    public int getActiveThreadCount() {
+        return pool.getActiveCount();
+    }
+
+    // Pipelines started and not yet ended
+    public List<Task> getPipelines() {
+        return Collections.unmodifiableList(pipelines);
+    }
+
+    // Tasks waiting for a free thread
+    public int getQueueLength() {
+        return pool.getQueue().size();
+    }
+
+    // Pipelines and short tasks run to completion since the runtime started
+    public long getCompletedTaskCount() {
+        return pool.getCompletedTaskCount();
+    }
+
+    public long getCompletedPipelineCount() {
+        return completedPipelines.get();
+    }
+
+    // Fraction of the pool's thread time spent running tasks since resetMetrics(), in [0, 1]
+    public synchronized double getUtilisation() {
+        long now = System.nanoTime();
+        double capacity = threadNanos + (double) threads * (now - lastChangeTime);
+        if (capacity <= 0) {
+            return 0;
+        }
+        return (busyNanos + (double) busyThreads * (now - lastChangeTime)) / capacity;
+    }
+
+    public synchronized void resetMetrics() {
+        lastChangeTime = System.nanoTime();
+        busyNanos = 0;
+        threadNanos = 0;
+    }
+
+    private synchronized void busyChanged(int delta) {
+        accumulate();
+        busyThreads += delta;
+    }
+
+    private synchronized void threadsChanged(int nbThreads) {
+        accumulate();
+        threads = nbThreads;
+    }
+
+    private void accumulate() {
+        long now = System.nanoTime();
+        busyNanos += (long) busyThreads * (now - lastChangeTime);
+        threadNanos += (long) threads * (now - lastChangeTime);
+        lastChangeTime = now;
+    }
+
+    // ------------------------------------------------------------------------
+    // Pipeline and Task
+
+    // Processing loop of a graph, run one step at a time
+    public interface Pipeline {
+        // Processes the samples available, waiting for them at most a short timeout (e.g. 100 ms).
+        // Must return promptly, or throw InterruptedException, once the thread is interrupted
+        void step() throws InterruptedException;
+    }
+
+    // A started pipeline
+    public final class Task implements Runnable {
+        private final String name;
+        private final Pipeline pipeline;
+        private final CountDownLatch ended = new CountDownLatch(1);
+        private final AtomicLong steps = new AtomicLong();
+        private volatile boolean stopRequested;
+        private volatile RuntimeException failure;
+        private Thread runner; // guarded by this
+
+        private Task(String name, Pipeline pipeline) {
+            this.name = name;
+            this.pipeline = pipeline;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        // Asks the pipeline to end after its current step, which is interrupted. Returns at once
+        public void stop() {
+            synchronized (this) {
+                stopRequested = true;
+                if (runner != null) {
+                    runner.interrupt();
+                }
+            }
+        }
+
+        // Blocks until the pipeline has ended, or `timeout` ms have elapsed. Returns false on timeout
+        public boolean await(long timeout) throws InterruptedException {
+            return ended.await(timeout, TimeUnit.MILLISECONDS);
+        }
+
+        // stop() then await(), for callers that cannot be interrupted (e.g. the UI thread)
+        public boolean stopAndAwait(long timeout) {
+            stop();
+            try {
+                return await(timeout);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        // True until the pipeline has ended, even after stop() was called
+        public boolean isRunning() {
+            return ended.getCount() > 0;
+        }
+
+        // True once stop() was called while the pipeline has not ended yet, e.g. after an
+        // await() that timed out
+        public boolean isStopping() {
+            return stopRequested && isRunning();
+        }
+
+        public long getStepCount() {
+            return steps.get();
+        }
+
+        // Exception thrown by step() that ended the pipeline, null otherwise
+        public RuntimeException getFailure() {
+            return failure;
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                runner = Thread.currentThread();
+            }
+            try {
+                while (!stopRequested) {
+                    pipeline.step();
+                    steps.incrementAndGet();
+                }
+            } catch (InterruptedException e) {
+                // Stopped while waiting for samples
+            } catch (RuntimeException e) {
+                failure = e;
+            } finally {
+                synchronized (this) {
+                    runner = null;
+                }
+                // An interrupt from a late stop() must not reach the next task of this thread
+                Thread.interrupted();
+                synchronized (pipelines) {
+                    pipelines.remove(this);
+                    resizePool();
+                }
+                completedPipelines.incrementAndGet();
+                ended.countDown();
+            }
+        }
+    }
+
+    // Example main for testing: three graph-like pipelines read a 256 Hz stream through a shared
+    // CircularBuffer, and are stopped and restarted 200 times as if the user switched screens.
+    // Counts the JVM's threads after the cycles (with one new Thread per start and a stop flag that
+    // is not awaited, leaked threads would pile up), measures how long stopping takes, checks that a
+    // failing step ends its task and keeps the exception, and that more pipelines than threads can
+    // run at once (several graphs on one screen)
+    public static void main(String[] args) throws InterruptedException {
+        final CircularBuffer buffer = new CircularBuffer(1024, 4);
+        Thread headset = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                double[] sample = new double[4];
+                try {
+                    while (true) {
+                        for (int i = 0; i < 12; i++) {
+                            buffer.update(sample, System.nanoTime());
+                        }
+                        Thread.sleep(47);
+                    }
+                } catch (InterruptedException e) {
+                }
+            }
+        });
+        headset.setDaemon(true);
+        headset.start();
+
+        DspRuntime runtime = DspRuntime.getInstance();
+        int threadsBefore = Thread.activeCount();
+        final AtomicLong samplesRead = new AtomicLong();
+        LatencyHistogram stopTime = new LatencyHistogram();
+        int nbCycles = 200;
+        for (int cycle = 0; cycle < nbCycles; cycle++) {
+            List<Task> tasks = new ArrayList<Task>();
+            for (String name : new String[] {"EEG", "Filter", "PSD"}) {
+                final CircularBuffer.Cursor cursor = buffer.newCursor();
+                final double[][] chunk = new double[4][64];
+                tasks.add(runtime.start(name, new Pipeline() {
+                    @Override
+                    public void step() throws InterruptedException {
+                        if (buffer.awaitPts(cursor, 6, 100)) {
+                            samplesRead.addAndGet(buffer.readSince(cursor, chunk));
+                        }
+                    }
+                }));
+            }
+            Thread.sleep(20);
+            for (Task task : tasks) {
+                long start = System.nanoTime();
+                if (!task.stopAndAwait(1000)) {
+                    System.out.println("Pipeline " + task.getName() + " did not stop");
+                }
+                stopTime.record(System.nanoTime() - start);
+            }
+        }
+
+        Task failing = runtime.start("Failing", new Pipeline() {
+            @Override
+            public void step() {
+                throw new IllegalStateException("step failed");
+            }
+        });
+        failing.await(1000);
+
+        System.out.println(String.format("%d start/stop cycles of 3 pipelines: %d threads before, %d after "
+                + "(%d pool threads), %d pipelines still running, %d samples read", nbCycles, threadsBefore,
+                Thread.activeCount(), runtime.getLiveThreadCount(), runtime.getPipelines().size(), samplesRead.get()));
+        System.out.println(String.format("stopAndAwait(): p50 %.3f ms, max %.3f ms; pool utilisation %.2f",
+                stopTime.getValueAtPercentile(50) / 1e6, stopTime.getMax() / 1e6, runtime.getUtilisation()));
+        System.out.println("Failing pipeline ended: " + !failing.isRunning() + ", kept: " + failing.getFailure());
+
+        // Twice as many pipelines as the pool has threads, each waiting for samples
+        int initialPoolSize = runtime.getPoolSize();
+        List<Task> graphs = new ArrayList<Task>();
+        for (int g = 0; g < 2 * initialPoolSize; g++) {
+            final CircularBuffer.Cursor cursor = buffer.newCursor();
+            final double[][] chunk = new double[4][64];
+            graphs.add(runtime.start("Graph " + g, new Pipeline() {
+                @Override
+                public void step() throws InterruptedException {
+                    if (buffer.awaitPts(cursor, 6, 100)) {
+                        buffer.readSince(cursor, chunk);
+                    }
+                }
+            }));
+        }
+        Thread.sleep(200);
+        int stepping = 0;
+        for (Task task : graphs) {
+            stepping += (task.getStepCount() > 0) ? 1 : 0;
+        }
+        int grownPoolSize = runtime.getPoolSize();
+        for (Task task : graphs) {
+            task.stopAndAwait(1000);
+        }
+        Thread.sleep(100);
+        System.out.println(String.format("%d pipelines at once: pool grown from %d to %d threads, %d of them "
+                + "stepping; after they ended, %d threads (%d alive)", graphs.size(), initialPoolSize,
+                grownPoolSize, stepping, runtime.getPoolSize(), runtime.getLiveThreadCount()));
+    }
+}
@@ -0,0 +1,70 @@
+package com.eeg_project.components.signal;
+
+/*
+Processing of the raw EEG graph, with no dependency on any View, so that EEGGraph's pipeline and
+ReplaySource run the same chain
+
+process() removes the 60hz noise of the Muse 2016 (bandstop) in place; the other Muses' samples
+are left as they are. decimate() then reduces each bucket of samplesPerBucket samples to its min and
+max (MinMaxDecimator), the points the graph plots. Both must be called from a single thread.
+
+Args:
+nbCh (int) : number of channels
+samplingFrequency (double) : sampling frequency of the input signal, in Hz
+removeLineNoise (boolean) : true for the Muse 2016, whose 60hz noise is filtered out
+samplesPerBucket (int) : number of samples reduced to POINTS_PER_BUCKET plotted points
+*/
+public class EEGProcessor {
+
+    // ------------------------------------------------------------------------
+    // Variables
+
+    // Null when the line noise is not removed
+    private final SOSFilter bandstopFilter;
+    private final MinMaxDecimator decimator;
+
+    // ------------------------------------------------------------------------
+    // Constructor
+
+    public EEGProcessor(int nbCh, double samplingFrequency, boolean removeLineNoise, int samplesPerBucket) {
+        bandstopFilter = removeLineNoise ? new SOSFilter(samplingFrequency, "bandstop", 5, 55, 65, nbCh) : null;
+        decimator = new MinMaxDecimator(nbCh, samplesPerBucket);
+    }
+
+    // ------------------------------------------------------------------------
+    // Methods
+
+    // Filters the first nbSamples samples of every channel in place
+    public void process(double[][] samples, int nbSamples) {
+        if (bandstopFilter != null) {
+            bandstopFilter.process(samples, samples, nbSamples);
+        }
+    }
+
+    // Adds the first nbSamples processed samples to the current bucket and writes the points of
+    // `channel` of every bucket completed to dst, which must hold getMaxPoints(nbSamples) values.
+    // Returns the number of points written
+    public int decimate(double[][] samples, int nbSamples, int channel, double[] dst) {
+        return decimate(decimator, samples, nbSamples, channel, dst);
+    }
+
+    public int getMaxPoints(int nbSamples) {
+        return getMaxPoints(decimator, nbSamples);
+    }
+
+    // Shared with FilterProcessor
+    static int decimate(MinMaxDecimator decimator, double[][] samples, int nbSamples, int channel, double[] dst) {
+        int nbPoints = 0;
+        for (int i = 0; i < nbSamples; i++) {
+            // Every sample reaches the plot, as the min and max of its bucket
+            if (decimator.update(samples, i)) {
+                nbPoints += decimator.getPoints(channel, dst, nbPoints);
+            }
+        }
+        return nbPoints;
+    }
+
+    static int getMaxPoints(MinMaxDecimator decimator, int nbSamples) {
+        return (nbSamples / decimator.getSamplesPerBucket() + 1) * MinMaxDecimator.POINTS_PER_BUCKET;
+    }
+}
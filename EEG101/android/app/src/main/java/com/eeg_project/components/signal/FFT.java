@@ -1,7 +1,5 @@
 package com.eeg_project.components.signal;
 
-import android.util.Log;
-
 import org.jtransforms.fft.DoubleFFT_1D;
 import java.lang.Math; // For log10
 import java.util.Arrays; // For printing arrays when debugging
@@ -38,6 +36,7 @@ public class FFT {
 	private double[] Y;
 	private double[] f;
 	private double[] hammingWin;
+	private double[] hammingSpectrum;
 	private double[] complexMagnitude;
 	private double samplingFrequency;
 	private DoubleFFT_1D fft_1D;
@@ -85,6 +84,13 @@ public class FFT {
 
 		// Initialize Hamming window
 		hammingWin = hamming(this.inputLength);
+
+		// DFT of the (truncated or zero-padded) window in the packed JTransforms layout. By
+		// linearity, DFT(w*(x - mean)) = DFT(w*x) - mean*DFT(w), which lets the allocation-free
+		// methods window the input and compute its mean in a single pass
+		hammingSpectrum = new double[this.fftLength];
+		System.arraycopy(hammingWin, 0, hammingSpectrum, 0, Math.min(this.inputLength, this.fftLength));
+		fft_1D.realForward(hammingSpectrum);
 	}
 
 	// ------------------------------------------------------------------------
@@ -192,6 +198,86 @@ public class FFT {
 		return logpower;
 	}
  
+	public void computePSD(double[] x, int offset, double[] out) {
+		// Compute PSD of x[offset, offset + inputLength) into out[nbFFTPoints]
+		//
+		// Allocation-free version of computePSD(double[]): gives the same values
+		// but writes them into an array owned by the caller.
+
+		double winMean = transformWindowed(x, offset, Y);
+
+		for (int i = 0; i < nbFFTPoints; i++) {
+			out[i] = binPower(Y, i, winMean);
+		}
+	}
+
+	public void computeLogPSD(double[] x, int offset, double[] out) {
+		// Compute log10(PSD) of x[offset, offset + inputLength) into out[nbFFTPoints]
+		//
+		// Allocation-free version of computeLogPSD(double[]): de-meaning, windowing and
+		// zero-padding are done in one pass over the input and the power is read straight
+		// out of the packed JTransforms output, without intermediate arrays.
+
+		computeLogPSD(x, offset, out, Y);
+	}
+
+	public void computeLogPSD(double[] x, int offset, double[] out, double[] scratch) {
+		// Same as computeLogPSD(x, offset, out), using `scratch` (fftLength elements) as the
+		// work array instead of the internal one. The FFT plan is read-only, so one FFT object
+		// can serve several threads as long as each passes its own scratch and out arrays.
+
+		double winMean = transformWindowed(x, offset, scratch);
+
+		for (int i = 0; i < nbFFTPoints; i++) {
+			out[i] = Math.log10(binPower(scratch, i, winMean));
+		}
+	}
+
+	private double transformWindowed(double[] x, int offset, double[] Y) {
+		// Window x[offset...] into Y, clear the zero-padding and compute the DFT in place.
+		// Returns the mean of the input window; it is removed later in binPower()
+
+		if (offset < 0 || x.length - offset < inputLength) {
+			throw new IllegalArgumentException("Input has " + (x.length - offset) + " elements after offset " + offset + " instead of " + inputLength + ".");
+		}
+
+		int windowed = Math.min(inputLength, fftLength);
+		double sum = 0;
+		for (int i = 0; i < windowed; i++) {
+			double v = x[offset + i];
+			sum += v;
+			Y[i] = hammingWin[i]*v;
+		}
+		for (int i = windowed; i < inputLength; i++) { // truncated samples still count in the mean
+			sum += x[offset + i];
+		}
+		for (int i = windowed; i < fftLength; i++) { // zero-padding
+			Y[i] = 0;
+		}
+
+		fft_1D.realForward(Y);
+		return sum / inputLength;
+	}
+
+	private double binPower(double[] Y, int i, double winMean) {
+		// Squared magnitude of bin i of the de-meaned, windowed input, read from the packed
+		// JTransforms layout with the same bin mapping as computePSD(double[])
+
+		double re;
+		double im;
+		if (i < nbFFTPoints - 1) {
+			re = Y[2*i] - winMean*hammingSpectrum[2*i];
+			im = (i == 0) ? 0 : Y[2*i + 1] - winMean*hammingSpectrum[2*i + 1];
+		} else if (even) {
+			re = Y[1] - winMean*hammingSpectrum[1];
+			im = 0;
+		} else {
+			re = Y[fftLength - 1] - winMean*hammingSpectrum[fftLength - 1];
+			im = Y[1] - winMean*hammingSpectrum[1];
+		}
+		return re*re + im*im;
+	}
+
 	private double[] hamming(int L) {
 		// Compute Hamming window coefficients.
 		//
@@ -209,6 +295,10 @@ public class FFT {
 		return f;
 	}
 
+	public int getFFTLength() {
+		return fftLength;
+	}
+
 	// Example main for testing and using this FFT class
 	public static void main(String[] args) {
 
@@ -232,6 +322,59 @@ public class FFT {
 		System.out.println(Arrays.toString(logpower));
 		System.out.println(Arrays.toString(fft.getFreqBins()));
 
+		// Compare the allocating and allocation-free versions for typical window sizes
+		for (int n : new int[] {256, 512, 1024}) {
+			compareLogPSD(n);
+		}
+	}
+
+	private static void compareLogPSD(int n) {
+		FFT fft = new FFT(n, n, 256.);
+		FFT paddedFft = new FFT(n / 2, n, 256.); // exercises the zero-padding path
+		double[] x = new double[n];
+		for (int i = 0; i < n; i++) {
+			x[i] = 800 + 50*Math.sin(2*Math.PI*10*i/256.) + 20*Math.random();
+		}
+		double[] out = new double[fft.getFreqBins().length];
+		double[] padded = Arrays.copyOf(x, n / 2);
+
+		// Check both versions agree
+		double maxDiff = 0;
+		double[] reference = fft.computeLogPSD(x).clone();
+		fft.computeLogPSD(x, 0, out);
+		for (int i = 0; i < out.length; i++) {
+			maxDiff = Math.max(maxDiff, Math.abs(out[i] - reference[i]));
+		}
+		reference = paddedFft.computeLogPSD(padded).clone();
+		paddedFft.computeLogPSD(padded, 0, out);
+		for (int i = 0; i < out.length; i++) {
+			maxDiff = Math.max(maxDiff, Math.abs(out[i] - reference[i]));
+		}
+
+		int iterations = 2000;
+		double sink = 0;
+		for (int warmup = 0; warmup < 2; warmup++) {
+			long start = System.nanoTime();
+			for (int k = 0; k < iterations; k++) {
+				sink += fft.computeLogPSD(x)[1] + paddedFft.computeLogPSD(padded)[1];
+			}
+			long current = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int k = 0; k < iterations; k++) {
+				fft.computeLogPSD(x, 0, out);
+				sink += out[1];
+				paddedFft.computeLogPSD(padded, 0, out);
+				sink += out[1];
+			}
+			long fused = System.nanoTime() - start;
+
+			if (warmup == 1) {
+				System.out.println(n + "-point FFT: computeLogPSD(x) " + current / iterations / 2 + " ns/op, "
+						+ "computeLogPSD(x, offset, out) " + fused / iterations / 2 + " ns/op, "
+						+ "max difference " + maxDiff + " (" + sink + ")");
+			}
+		}
 	}
 
-}
\ No newline at end of file
+}
@@ -1,25 +1,19 @@
 package com.eeg_project.components.signal;
 
-import biz.source_code.dsp.filter.FilterPassType;
-import biz.source_code.dsp.filter.FilterCharacteristicsType;
-import biz.source_code.dsp.filter.IirFilterCoefficients;
-import biz.source_code.dsp.filter.IirFilterDesignFisher;
-
 // import java.util.Arrays; // For printing arrays when debugging
 
-// Implements Butterworth filter coefficient generation and filter with DSP library
+// Implements Butterworth filter with DSP library coefficients (see FilterDesign)
 public class Filter {
 
     // ------------------------------------------------------------------------
     // Variables
 
-    private static FilterPassType filterPassType;
-    private static FilterCharacteristicsType filterCharacteristicsType;
-    private static IirFilterCoefficients coeffs;
-    private double[] b;
-    private double[] a;
-    private int nB;
-    private int nA;
+    // Shared, read-only coefficients of the cached design
+    private final FilterDesign design;
+    private final double[] b;
+    private final double[] a;
+    private final int nB;
+    private final int nA;
 
     // ------------------------------------------------------------------------
     // Constructor
@@ -27,28 +21,10 @@ public class Filter {
     public Filter(double samplingFrequency, String filterType, int filterOrder, double fc1, double
             fc2) {
 
-        filterCharacteristicsType = FilterCharacteristicsType.butterworth;
-
-        if (filterType.contains("lowpass")) {
-            filterPassType = FilterPassType.lowpass;
-
-        } else if (filterType.contains("highpass")) {
-            filterPassType = FilterPassType.highpass;
-
-        } else if (filterType.contains("bandstop")) {
-            filterPassType = FilterPassType.bandstop;
-        
-        } else if (filterType.contains("bandpass")) {
-            filterPassType = FilterPassType.bandpass;
+        design = FilterDesign.get(samplingFrequency, filterType, filterOrder, fc1, fc2);
 
-        } else {
-            throw new RuntimeException("Filter type not recognized.");
-        }  
-
-        coeffs = IirFilterDesignFisher.design(filterPassType, filterCharacteristicsType, filterOrder, 0., fc1/samplingFrequency, fc2/samplingFrequency);
-
-        b = coeffs.b;
-        a = coeffs.a;
+        b = design.b;
+        a = design.a;
 
         nB = b.length;
         nA = a.length;
@@ -131,4 +107,8 @@ public class Filter {
         return nA;
     }
 
+    public FilterDesign getDesign() {
+        return design;
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,396 @@
+package com.eeg_project.components.signal;
+
+import biz.source_code.dsp.filter.FilterCharacteristicsType;
+import biz.source_code.dsp.filter.FilterPassType;
+import biz.source_code.dsp.filter.IirFilterCoefficients;
+import biz.source_code.dsp.filter.IirFilterDesignFisher;
+import biz.source_code.dsp.math.Complex;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+/*
+Immutable Butterworth filter design, shared by every filter with the same settings
+
+Designs are obtained with get(), which caches them by (sampling frequency, type, order, cutoff
+frequencies). A design only holds coefficients: the state (past samples) belongs to each Filter or
+SOSFilter, so one design can be used by several filters on different threads, and switching back
+to a filter setting that was already used costs nothing.
+
+Two forms of the same filter are kept:
+- b and a: direct form coefficients from IirFilterDesignFisher (used by Filter)
+- b0, b1, b2, a1, a2: second-order sections (used by SOSFilter)
+
+The sections follow the IirFilterDesignFisher steps (Butterworth prototype, prewarped cutoff
+frequencies, bilinear transform, unit gain at DC for lowpass, at Nyquist for highpass, at the
+centre frequency for bandpass and on average at DC and Nyquist for bandstop). The library does
+not expose its poles and zeros, so they are recomputed here.
+
+Args:
+samplingFrequency (double) : sampling frequency of the input signal, in Hz
+filterType (String) : "lowpass", "highpass", "bandpass" or "bandstop"
+filterOrder (int) : order of the Butterworth prototype
+fc1 (double) : cutoff frequency (lower one for bandpass and bandstop), in Hz
+fc2 (double) : upper cutoff frequency for bandpass and bandstop, in Hz (ignored otherwise)
+*/
+public final class FilterDesign {
+
+    // ------------------------------------------------------------------------
+    // Variables
+
+    private static final ConcurrentHashMap<Key, FilterDesign> cache = new ConcurrentHashMap<Key, FilterDesign>();
+
+    private final FilterPassType passType;
+    private final double samplingFrequency;
+    private final int filterOrder;
+    private final double fc1;
+    private final double fc2;
+
+    // Direct form coefficients, a[0] = 1. Never modified after construction
+    final double[] b;
+    final double[] a;
+
+    // Second-order sections, a0 = 1. Never modified after construction
+    final int nbSections;
+    final double[] b0;
+    final double[] b1;
+    final double[] b2;
+    final double[] a1;
+    final double[] a2;
+
+    // ------------------------------------------------------------------------
+    // Factory
+
+    public static FilterDesign get(double samplingFrequency, String filterType, int filterOrder, double fc1, double fc2) {
+        FilterPassType passType = parsePassType(filterType);
+        if (passType == FilterPassType.lowpass || passType == FilterPassType.highpass) {
+            fc2 = 0; // unused, so every value gives the same design
+        }
+
+        Key key = new Key(passType, samplingFrequency, filterOrder, fc1, fc2);
+        FilterDesign design = cache.get(key);
+        if (design == null) {
+            // Two threads may design the same filter at once; only the first one is kept
+            cache.putIfAbsent(key, new FilterDesign(passType, samplingFrequency, filterOrder, fc1, fc2));
+            design = cache.get(key);
+        }
+        return design;
+    }
+
+    static FilterPassType parsePassType(String filterType) {
+        if (filterType.contains("lowpass")) {
+            return FilterPassType.lowpass;
+        } else if (filterType.contains("highpass")) {
+            return FilterPassType.highpass;
+        } else if (filterType.contains("bandstop")) {
+            return FilterPassType.bandstop;
+        } else if (filterType.contains("bandpass")) {
+            return FilterPassType.bandpass;
+        } else {
+            throw new RuntimeException("Filter type not recognized.");
+        }
+    }
+
+    // Cache key: the design settings
+    private static final class Key {
+        final FilterPassType passType;
+        final double samplingFrequency;
+        final int filterOrder;
+        final double fc1;
+        final double fc2;
+
+        Key(FilterPassType passType, double samplingFrequency, int filterOrder, double fc1, double fc2) {
+            this.passType = passType;
+            this.samplingFrequency = samplingFrequency;
+            this.filterOrder = filterOrder;
+            this.fc1 = fc1;
+            this.fc2 = fc2;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return passType == k.passType && filterOrder == k.filterOrder
+                    && Double.compare(samplingFrequency, k.samplingFrequency) == 0
+                    && Double.compare(fc1, k.fc1) == 0 && Double.compare(fc2, k.fc2) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            long h = passType.hashCode();
+            h = 31*h + filterOrder;
+            h = 31*h + Double.doubleToLongBits(samplingFrequency);
+            h = 31*h + Double.doubleToLongBits(fc1);
+            h = 31*h + Double.doubleToLongBits(fc2);
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // Constructor
+
+    private FilterDesign(FilterPassType passType, double samplingFrequency, int filterOrder, double fc1, double fc2) {
+        this.passType = passType;
+        this.samplingFrequency = samplingFrequency;
+        this.filterOrder = filterOrder;
+        this.fc1 = fc1;
+        this.fc2 = fc2;
+
+        double fcf1 = fc1/samplingFrequency;
+        double fcf2 = fc2/samplingFrequency;
+        boolean band = passType == FilterPassType.bandstop || passType == FilterPassType.bandpass;
+        if (fcf1 <= 0 || fcf1 >= 0.5) {
+            throw new IllegalArgumentException("Invalid cutoff frequency " + fc1 + " Hz.");
+        }
+        if (band && (fcf2 <= 0 || fcf2 >= 0.5)) {
+            throw new IllegalArgumentException("Invalid cutoff frequency " + fc2 + " Hz.");
+        }
+
+        // Direct form
+        IirFilterCoefficients coeffs = IirFilterDesignFisher.design(passType, FilterCharacteristicsType.butterworth,
+                filterOrder, 0., fcf1, fcf2);
+        b = coeffs.b;
+        a = coeffs.a;
+
+        // Butterworth prototype poles
+        Complex[] prototype = new Complex[filterOrder];
+        for (int i = 0; i < filterOrder; i++) {
+            prototype[i] = Complex.expj((filterOrder/2. + 0.5 + i)*Math.PI/filterOrder);
+        }
+
+        // Prewarped s-plane cutoff frequencies
+        double w1 = 2*Math.tan(Math.PI*fcf1);
+        double w2 = band ? 2*Math.tan(Math.PI*fcf2) : 0;
+
+        // Transform the prototype into s-plane poles and zeros of the requested type
+        List<Complex> sPoles = new ArrayList<Complex>();
+        List<Complex> sZeros = new ArrayList<Complex>();
+        Complex reference; // z at which the gain is normalized, null for bandstop (DC and Nyquist)
+        double w0 = Math.sqrt(w1*w2);
+        if (passType == FilterPassType.lowpass) {
+            for (Complex p : prototype) {
+                sPoles.add(p.mul(w1));
+            }
+            reference = Complex.ONE;
+
+        } else if (passType == FilterPassType.highpass) {
+            for (Complex p : prototype) {
+                sPoles.add(Complex.div(w1, p));
+                sZeros.add(Complex.ZERO);
+            }
+            reference = new Complex(-1);
+
+        } else if (passType == FilterPassType.bandstop) {
+            for (Complex p : prototype) {
+                addBandPoles(Complex.div((w2 - w1)/2, p), w0, sPoles);
+                sZeros.add(new Complex(0, w0));
+                sZeros.add(new Complex(0, -w0));
+            }
+            reference = null;
+
+        } else {
+            for (Complex p : prototype) {
+                addBandPoles(p.mul((w2 - w1)/2), w0, sPoles);
+                sZeros.add(Complex.ZERO);
+            }
+            reference = Complex.expj(Math.PI*(fcf1 + fcf2));
+        }
+
+        // Bilinear transform; zeros at infinity go to z = -1
+        List<Complex> poles = new ArrayList<Complex>();
+        List<Complex> zeros = new ArrayList<Complex>();
+        for (Complex s : sPoles) {
+            poles.add(bilinear(s));
+        }
+        for (Complex s : sZeros) {
+            zeros.add(bilinear(s));
+        }
+        while (zeros.size() < poles.size()) {
+            zeros.add(new Complex(-1));
+        }
+
+        // Group into sections
+        List<double[]> polePairs = pair(poles);
+        List<double[]> zeroPairs = pair(zeros);
+        nbSections = polePairs.size();
+        b0 = new double[nbSections];
+        b1 = new double[nbSections];
+        b2 = new double[nbSections];
+        a1 = new double[nbSections];
+        a2 = new double[nbSections];
+        for (int s = 0; s < nbSections; s++) {
+            double[] p = polePairs.get(s);
+            double[] z = takeZeros(zeroPairs, p[2] == 2);
+            a1[s] = p[0];
+            a2[s] = p[1];
+
+            // Normalize every section to unit gain at the reference frequency so that the
+            // signal level stays the same throughout the cascade
+            double gain = (reference != null) ? sectionGain(z, p, reference)
+                    : Math.sqrt(sectionGain(z, p, Complex.ONE)*sectionGain(z, p, new Complex(-1)));
+            b0[s] = 1/gain;
+            b1[s] = z[0]/gain;
+            b2[s] = z[1]/gain;
+        }
+
+    }
+
+    // ------------------------------------------------------------------------
+    // Methods
+
+    public FilterPassType getPassType() {
+        return passType;
+    }
+
+    public double getSamplingFrequency() {
+        return samplingFrequency;
+    }
+
+    public int getFilterOrder() {
+        return filterOrder;
+    }
+
+    public double getFc1() {
+        return fc1;
+    }
+
+    public double getFc2() {
+        return fc2;
+    }
+
+    public int getNbSections() {
+        return nbSections;
+    }
+
+    // Bandpass/bandstop transform of one (scaled) prototype pole into two s-plane poles
+    private static void addBandPoles(Complex hba, double w0, List<Complex> sPoles) {
+        Complex temp = Complex.sub(1, Complex.div(w0, hba).sqr()).sqrt();
+        sPoles.add(hba.mul(temp.add(1)));
+        sPoles.add(hba.mul(Complex.sub(1, temp)));
+    }
+
+    private static Complex bilinear(Complex s) {
+        return s.add(2).div(Complex.sub(2, s));
+    }
+
+    // Groups roots into second-order polynomials z^2 + c1*z + c2, returned as {c1, c2, degree}.
+    // Complex roots are paired with their conjugate; real roots are sorted and the smallest is
+    // paired with the largest (e.g. -1 with 1 for a bandpass), a leftover real root giving a
+    // first-order factor. Pairs are ordered by increasing root magnitude.
+    private static List<double[]> pair(List<Complex> roots) {
+        final double eps = 1e-10;
+        List<Complex> upper = new ArrayList<Complex>();
+        List<Double> real = new ArrayList<Double>();
+        for (Complex r : roots) {
+            if (Math.abs(r.im()) <= eps) {
+                real.add(r.re());
+            } else if (r.im() > 0) {
+                upper.add(r);
+            }
+        }
+
+        List<double[]> pairs = new ArrayList<double[]>();
+        for (Complex r : upper) {
+            pairs.add(new double[] {-2*r.re(), r.re()*r.re() + r.im()*r.im(), 2, r.abs()});
+        }
+        Collections.sort(real);
+        int lo = 0;
+        int hi = real.size() - 1;
+        while (lo < hi) {
+            double r1 = real.get(lo++);
+            double r2 = real.get(hi--);
+            pairs.add(new double[] {-(r1 + r2), r1*r2, 2, Math.max(Math.abs(r1), Math.abs(r2))});
+        }
+        if (lo == hi) {
+            double r = real.get(lo);
+            pairs.add(new double[] {-r, 0, 1, Math.abs(r)});
+        }
+
+        Collections.sort(pairs, new Comparator<double[]>() {
+            @Override
+            public int compare(double[] p, double[] q) {
+                return Double.compare(p[3], q[3]);
+            }
+        });
+        return pairs;
+    }
+
+    // Takes a pair of zeros for a second-order section, or a single one for a first-order section
+    private static double[] takeZeros(List<double[]> zeroPairs, boolean secondOrder) {
+        for (int i = 0; i < zeroPairs.size(); i++) {
+            if ((zeroPairs.get(i)[2] == 2) == secondOrder) {
+                return zeroPairs.remove(i);
+            }
+        }
+        // No factor of the right degree left: split a real pair or extend a single zero
+        double[] z = zeroPairs.remove(0);
+        if (secondOrder) {
+            return new double[] {z[0], 0, 2};
+        }
+        return new double[] {z[0], 0, 1};
+    }
+
+    // |(z^2 + b1*z + b2) / (z^2 + a1*z + a2)| at z (z^-2 scaled, as the section is computed)
+    private static double sectionGain(double[] zeros, double[] poles, Complex z) {
+        Complex zi = z.reciprocal();
+        Complex num = zi.mul(zeros[0]).add(zi.sqr().mul(zeros[1])).add(1);
+        Complex den = zi.mul(poles[0]).add(zi.sqr().mul(poles[1])).add(1);
+        return num.div(den).abs();
+    }
+
+    // Example main for testing: concurrent lookups share one design, and a cached lookup is
+    // much cheaper than designing the filter
+    public static void main(String[] args) throws InterruptedException {
+        final int nbThreads = 8;
+        final FilterDesign[] designs = new FilterDesign[nbThreads];
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[nbThreads];
+        for (int t = 0; t < nbThreads; t++) {
+            final int index = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    designs[index] = FilterDesign.get(256, "bandstop", 5, 55, 65);
+                }
+            });
+            threads[t].start();
+        }
+        start.countDown();
+        boolean shared = true;
+        for (int t = 0; t < nbThreads; t++) {
+            threads[t].join();
+            shared &= designs[t] == designs[0];
+        }
+        System.out.println(nbThreads + " concurrent lookups share one design: " + shared);
+
+        // Cost of the filter presets of FilterGraph, first use vs cached
+        String[] types = {"lowpass", "bandpass", "highpass"};
+        double[][] cutoffs = {{35, 0}, {2, 35}, {1, 0}};
+        int[] orders = {5, 5, 2};
+        for (int i = 0; i < types.length; i++) {
+            long t0 = System.nanoTime();
+            FilterDesign first = FilterDesign.get(220, types[i], orders[i], cutoffs[i][0], cutoffs[i][1]);
+            long t1 = System.nanoTime();
+            boolean same = true;
+            int lookups = 100000;
+            for (int k = 0; k < lookups; k++) {
+                same &= FilterDesign.get(220, types[i], orders[i], cutoffs[i][0], cutoffs[i][1]) == first;
+            }
+            long t2 = System.nanoTime();
+            System.out.println(types[i] + ": first use " + (t1 - t0)/1000 + " us, cached " + (t2 - t1)/lookups
+                    + " ns, same instance " + same + ", " + first.getNbSections() + " sections");
+        }
+    }
+}
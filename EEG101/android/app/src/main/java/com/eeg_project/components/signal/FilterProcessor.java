@@ -0,0 +1,54 @@
+package com.eeg_project.components.signal;
+
+/*
+Processing of the filtered EEG graph, with no dependency on any View, so that FilterGraph's pipeline
+and ReplaySource run the same chain
+
+process() filters the samples in place with the active filter, which setFilter() can replace while
+samples are streaming (see SwappableFilter): presets are warm-started from the last 512 raw samples.
+decimate() then reduces each bucket of samplesPerBucket samples to its min and max
+(MinMaxDecimator), the points the graph plots. process() and decimate() must be called from a
+single thread; setFilter() from any thread.
+
+Args:
+nbCh (int) : number of channels
+samplesPerBucket (int) : number of samples reduced to POINTS_PER_BUCKET plotted points
+*/
+public class FilterProcessor {
+
+    // ------------------------------------------------------------------------
+    // Variables
+
+    // Filters all channels and keeps their states (info about previous samples) internally
+    private final SwappableFilter activeFilter;
+    private final MinMaxDecimator decimator;
+
+    // ------------------------------------------------------------------------
+    // Constructor
+
+    public FilterProcessor(int nbCh, int samplesPerBucket) {
+        activeFilter = new SwappableFilter(nbCh, 1024, 512);
+        decimator = new MinMaxDecimator(nbCh, samplesPerBucket);
+    }
+
+    // ------------------------------------------------------------------------
+    // Methods
+
+    public void setFilter(FilterDesign design) {
+        activeFilter.setFilter(design);
+    }
+
+    // Filters the first nbSamples samples of every channel in place
+    public void process(double[][] samples, int nbSamples) {
+        activeFilter.process(samples, samples, nbSamples);
+    }
+
+    // Same as EEGProcessor.decimate()
+    public int decimate(double[][] samples, int nbSamples, int channel, double[] dst) {
+        return EEGProcessor.decimate(decimator, samples, nbSamples, channel, dst);
+    }
+
+    public int getMaxPoints(int nbSamples) {
+        return EEGProcessor.getMaxPoints(decimator, nbSamples);
+    }
+}
@@ -1,8 +1,8 @@
+package com.eeg_project.components.signal;
+
 import java.util.Arrays;
 import java.lang.Math;
 import java.util.*;
-import java.util.stream.*;
-import org.apache.commons.lang3.ArrayUtils;
 
 
 public class GaussianNaiveBayesClassifier {
@@ -117,7 +117,10 @@ public class GaussianNaiveBayesClassifier {
 		}
 
 		// Update class priors
-		int nbExamplesSeen = IntStream.of(classCounts).sum();
+		int nbExamplesSeen = 0;
+		for (int count : classCounts) {
+			nbExamplesSeen += count;
+		}
 		for (int i = 0; i < this.nbClasses; i++) {
 			this.classPriors[i] = (double) classCounts[i]/nbExamplesSeen;
 		}
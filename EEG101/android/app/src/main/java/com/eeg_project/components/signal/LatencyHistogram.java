@@ -0,0 +1,133 @@
+package com.eeg_project.components.signal;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+Histogram of latencies in nanoseconds with a bounded relative error, in the style of HdrHistogram
+
+Values below 2^SUB_BUCKET_BITS are counted exactly. Above, every power of two is split into
+2^(SUB_BUCKET_BITS - 1) equal buckets, so a value is counted in a bucket at most 1/64 (1.6%)
+wider than itself whatever its magnitude. Values above MAX_VALUE (about 18 minutes) are counted
+as MAX_VALUE.
+
+record() does not allocate and only increments counters, so it can be called for every sample on
+a data thread. It can be called from any thread; readers see the counts as they are at the time of
+the call, without stopping the writers.
+*/
+public class LatencyHistogram {
+
+    // ------------------------------------------------------------------------
+    // Variables
+
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT / 2;
+    public static final long MAX_VALUE = (1L << 40) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(bucketIndex(MAX_VALUE) + 1);
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    // ------------------------------------------------------------------------
+    // Methods
+
+    public void record(long nanos) {
+        long value = Math.min(Math.max(nanos, 0), MAX_VALUE);
+        counts.incrementAndGet(bucketIndex(value));
+        totalCount.incrementAndGet();
+        long currentMax;
+        while (value > (currentMax = max.get()) && !max.compareAndSet(currentMax, value)) {
+            // Another thread raised the maximum, compare again
+        }
+    }
+
+    public long getCount() {
+        return totalCount.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public long getValueAtPercentile(double percentile) {
+        // Smallest recorded value (rounded up to the end of its bucket) that is greater than or
+        // equal to `percentile` % of the recorded values. 0 if nothing was recorded
+
+        long count = totalCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestValueInBucket(i), max.get());
+            }
+        }
+        // Counts recorded while iterating may lag behind totalCount
+        return max.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        totalCount.set(0);
+        max.set(0);
+    }
+
+    static int bucketIndex(long value) {
+        // Bucket m * SUB_BUCKET_HALF + (value >> m), where m is the number of low bits dropped
+        // to keep SUB_BUCKET_BITS significant bits
+        int magnitude = Math.max(0, 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+        return magnitude * SUB_BUCKET_HALF + (int) (value >>> magnitude);
+    }
+
+    static long highestValueInBucket(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int magnitude = index / SUB_BUCKET_HALF - 1;
+        long subBucket = index - magnitude * SUB_BUCKET_HALF;
+        return ((subBucket + 1) << magnitude) - 1;
+    }
+
+    // Example main for testing: checks the percentiles of log-normal latencies against exact ones
+    // computed from the sorted values, and measures the cost of record()
+    public static void main(String[] args) {
+        Random random = new Random(42);
+        int n = 1000000;
+        long[] values = new long[n];
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < n; i++) {
+            // Median 5 ms, with a long tail
+            values[i] = (long) (5e6 * Math.exp(0.8 * random.nextGaussian()));
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+
+        double worstError = 0;
+        for (double p : new double[] {50, 90, 99, 99.9, 100}) {
+            long exact = values[(int) Math.max(0, Math.ceil(p / 100 * n) - 1)];
+            long estimate = histogram.getValueAtPercentile(p);
+            double error = Math.abs(estimate - exact) / (double) exact;
+            worstError = Math.max(worstError, error);
+            System.out.println(String.format("p%s: exact %.3f ms, histogram %.3f ms (%.2f%% off)", p, exact / 1e6,
+                    estimate / 1e6, 100 * error));
+        }
+        System.out.println("Max: " + (histogram.getMax() == values[n - 1]) + ", count: " + histogram.getCount()
+                + ", worst relative error " + String.format("%.2f%%", 100 * worstError));
+
+        long start = System.nanoTime();
+        for (int pass = 0; pass < 10; pass++) {
+            for (int i = 0; i < n; i++) {
+                histogram.record(values[i]);
+            }
+        }
+        System.out.println(String.format("record(): %.1f ns per value", (System.nanoTime() - start) / (10. * n)));
+    }
+}
@@ -0,0 +1,77 @@
+package com.eeg_project.components.signal;
+
+import java.lang.reflect.Method;
+
+// Logging for the signal package, which must not depend on Android so it can run (and be
+// benchmarked) on a plain JVM. Messages go to android.util.Log when it is available and to
+// System.err otherwise, unless another Sink is set
+public final class Log {
+
+    // ------------------------------------------------------------------------
+    // Variables
+
+    // Same priorities as android.util.Log
+    public static final int DEBUG = 3;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+
+    public interface Sink {
+        void println(int priority, String tag, String message);
+    }
+
+    // Drops every message, e.g. to keep logging out of a benchmark
+    public static final Sink SILENT = new Sink() {
+        @Override
+        public void println(int priority, String tag, String message) {
+        }
+    };
+
+    private static volatile Sink sink = defaultSink();
+
+    private Log() {
+    }
+
+    // ------------------------------------------------------------------------
+    // Methods
+
+    public static void setSink(Sink newSink) {
+        sink = (newSink != null) ? newSink : SILENT;
+    }
+
+    public static void d(String tag, String message) {
+        sink.println(DEBUG, tag, message);
+    }
+
+    public static void w(String tag, String message) {
+        sink.println(WARN, tag, message);
+    }
+
+    public static void e(String tag, String message) {
+        sink.println(ERROR, tag, message);
+    }
+
+    private static Sink defaultSink() {
+        // android.util.Log is looked up once, by reflection, so this class still loads without it
+        try {
+            final Method println = Class.forName("android.util.Log")
+                    .getMethod("println", int.class, String.class, String.class);
+            return new Sink() {
+                @Override
+                public void println(int priority, String tag, String message) {
+                    try {
+                        println.invoke(null, priority, tag, message);
+                    } catch (Exception e) {
+                        System.err.println(tag + ": " + message);
+                    }
+                }
+            };
+        } catch (Exception e) {
+            return new Sink() {
+                @Override
+                public void println(int priority, String tag, String message) {
+                    System.err.println(tag + ": " + message);
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package com.eeg_project.components.signal;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/*
+Min/max decimation of a multi-channel stream for plotting
+
+Every `samplesPerBucket` consecutive samples form a bucket, which is reduced to two display points
+per channel: its minimum and its maximum, in the order they occurred. Unlike keeping one sample out
+of every few, a spike or blink always shows at its full height, and the trace does not alias.
+
+Buckets are counted in samples, so the number of display points per second is fixed
+(2 * samplingFrequency / samplesPerBucket) whatever the timing of the thread feeding the samples.
+update() costs O(nbCh) per sample and the decimator holds O(nbCh) memory.
+
+Typical use, in a data thread reading a CircularBuffer:
+    int n = buffer.readSince(cursor, chunk);
+    for (int i = 0; i < n; i++) {
+        if (decimator.update(chunk, i)) {
+            int nbPoints = decimator.getPoints(channel, points, 0);
+            series.addAll(points, 0, nbPoints);
+        }
+    }
+
+Args:
+nbCh (int) : number of channels
+samplesPerBucket (int) : number of samples reduced to 2 display points (at least 2)
+*/
+public class MinMaxDecimator {
+
+    // ------------------------------------------------------------------------
+    // Variables
+
+    public static final int POINTS_PER_BUCKET = 2;
+
+    private final int nbCh;
+    private final int samplesPerBucket;
+
+    // Current bucket: extremes of every channel and the position in the bucket they were seen at
+    private final double[] min;
+    private final double[] max;
+    private final int[] minPosition;
+    private final int[] maxPosition;
+    private int count;
+
+    // Points of the last completed bucket, [channel][first, second]
+    private final double[][] points;
+
+    // ------------------------------------------------------------------------
+    // Constructor
+
+    public MinMaxDecimator(int nbCh, int samplesPerBucket) {
+        if (samplesPerBucket < POINTS_PER_BUCKET) {
+            throw new IllegalArgumentException("A bucket needs at least " + POINTS_PER_BUCKET + " samples.");
+        }
+        this.nbCh = nbCh;
+        this.samplesPerBucket = samplesPerBucket;
+        min = new double[nbCh];
+        max = new double[nbCh];
+        minPosition = new int[nbCh];
+        maxPosition = new int[nbCh];
+        points = new double[nbCh][POINTS_PER_BUCKET];
+    }
+
+    // ------------------------------------------------------------------------
+    // Methods
+
+    // Adds one sample of every channel. Returns true when it completes a bucket, whose points can
+    // then be read with getPoints() until the next bucket is completed
+    public boolean update(double[] sample) {
+        for (int c = 0; c < nbCh; c++) {
+            add(c, sample[c]);
+        }
+        return endSample();
+    }
+
+    // Same as update(double[]) for sample `index` of channel-major samples[nbCh][], as returned by
+    // CircularBuffer.readSince()
+    public boolean update(double[][] samples, int index) {
+        for (int c = 0; c < nbCh; c++) {
+            add(c, samples[c][index]);
+        }
+        return endSample();
+    }
+
+    // Copies the POINTS_PER_BUCKET points of `channel` in the last completed bucket into dst, oldest
+    // first. Returns the number of points copied
+    public int getPoints(int channel, double[] dst, int offset) {
+        dst[offset] = points[channel][0];
+        dst[offset + 1] = points[channel][1];
+        return POINTS_PER_BUCKET;
+    }
+
+    public int getSamplesPerBucket() {
+        return samplesPerBucket;
+    }
+
+    // Drops the samples of the incomplete bucket
+    public void clear() {
+        count = 0;
+    }
+
+    private void add(int c, double value) {
+        if (count == 0 || value < min[c]) {
+            min[c] = value;
+            minPosition[c] = count;
+        }
+        if (count == 0 || value > max[c]) {
+            max[c] = value;
+            maxPosition[c] = count;
+        }
+    }
+
+    private boolean endSample() {
+        if (++count < samplesPerBucket) {
+            return false;
+        }
+        for (int c = 0; c < nbCh; c++) {
+            boolean minFirst = minPosition[c] <= maxPosition[c];
+            points[c][0] = minFirst ? min[c] : max[c];
+            points[c][1] = minFirst ? max[c] : min[c];
+        }
+        count = 0;
+        return true;
+    }
+
+    // Example main for testing: 2 minutes of synthetic EEG at 256 Hz with a one-sample 150 uV
+    // spike every 0.9 s, decimated 6 samples to 2 points (the time span EEGGraph shows in
+    // PLOT_LENGTH points). Counts the spikes still visible in the plotted points, against the
+    // previous one-sample-every-3 dropping, and checks that feeding the samples in chunks of random
+    // sizes (as a data thread woken at random times would) gives exactly the same points
+    public static void main(String[] args) {
+        double fs = 256;
+        int nbSamples = (int) (120 * fs);
+        int spikeInterval = (int) (0.9 * fs);
+        double spikeHeight = 150;
+        SyntheticEEG eeg = new SyntheticEEG(1, fs, 42);
+        double[][] signal = new double[1][nbSamples];
+        double[] sample = new double[1];
+        int nbSpikes = 0;
+        for (int i = 0; i < nbSamples; i++) {
+            eeg.nextSample(sample);
+            signal[0][i] = sample[0];
+            if (i % spikeInterval == spikeInterval / 2) {
+                signal[0][i] += spikeHeight;
+                nbSpikes++;
+            }
+        }
+
+        // Decimate sample by sample
+        MinMaxDecimator decimator = new MinMaxDecimator(1, 6);
+        double[] decimated = new double[nbSamples / 3];
+        int nbPoints = 0;
+        for (int i = 0; i < nbSamples; i++) {
+            if (decimator.update(signal, i)) {
+                nbPoints += decimator.getPoints(0, decimated, nbPoints);
+            }
+        }
+
+        // One sample out of every 3, as the data threads used to plot
+        double[] dropped = new double[nbSamples / 3];
+        for (int i = 0; i < dropped.length; i++) {
+            dropped[i] = signal[0][3 * i + 2];
+        }
+
+        // A spike is visible if a plotted point within its bucket reaches 80% of its height above the
+        // surrounding signal
+        int keptByDecimator = 0;
+        int keptByDropping = 0;
+        for (int spike = spikeInterval / 2; spike < nbSamples; spike += spikeInterval) {
+            double threshold = signal[0][spike] - 0.2 * spikeHeight;
+            int point = spike / 3 / 2 * 2;
+            if (Math.max(decimated[point], decimated[point + 1]) >= threshold) {
+                keptByDecimator++;
+            }
+            if (dropped[spike / 3] >= threshold) {
+                keptByDropping++;
+            }
+        }
+        System.out.println(String.format("%d samples -> %d points. Spikes visible: min/max %d of %d, "
+                + "one sample in 3: %d of %d", nbSamples, nbPoints, keptByDecimator, nbSpikes, keptByDropping, nbSpikes));
+
+        // Feed the same samples in random-size chunks
+        MinMaxDecimator chunked = new MinMaxDecimator(1, 6);
+        double[] chunkedPoints = new double[nbSamples / 3];
+        double[][] chunk = new double[1][64];
+        Random random = new Random(7);
+        int nbChunkedPoints = 0;
+        for (int i = 0; i < nbSamples; ) {
+            int n = Math.min(1 + random.nextInt(chunk[0].length), nbSamples - i);
+            System.arraycopy(signal[0], i, chunk[0], 0, n);
+            for (int j = 0; j < n; j++) {
+                if (chunked.update(chunk, j)) {
+                    nbChunkedPoints += chunked.getPoints(0, chunkedPoints, nbChunkedPoints);
+                }
+            }
+            i += n;
+        }
+        System.out.println("Same points when fed in random chunks: "
+                + (nbChunkedPoints == nbPoints && Arrays.equals(chunkedPoints, decimated)));
+
+        long start = System.nanoTime();
+        MinMaxDecimator timed = new MinMaxDecimator(4, 6);
+        double[][] fourChannels = new double[4][nbSamples];
+        for (int c = 0; c < 4; c++) {
+            fourChannels[c] = signal[0];
+        }
+        double checksum = 0;
+        for (int pass = 0; pass < 20; pass++) {
+            for (int i = 0; i < nbSamples; i++) {
+                if (timed.update(fourChannels, i)) {
+                    checksum += timed.getPoints(3, decimated, 0);
+                }
+            }
+        }
+        System.out.println(String.format("update(): %.1f ns per 4-channel sample (%.0f)",
+                (System.nanoTime() - start) / (20. * nbSamples), checksum));
+    }
+}
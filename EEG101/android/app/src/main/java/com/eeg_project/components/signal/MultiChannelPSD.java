@@ -0,0 +1,243 @@
+package com.eeg_project.components.signal;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+Computes the log-PSD of every channel of a CircularBuffer at each hop and keeps a smoothed
+(averaged over the last `smoothingLength` hops) log-PSD per channel.
+
+Because all channels are always up to date, choosing which electrode to display is just a matter
+of calling getSmoothLogPower(channel): switching does not throw away the smoothing history.
+
+One FFT plan is shared by all channels; each channel has its own window and scratch arrays so
+the per-channel work can run in parallel. When an Executor is given, the calling thread and
+min(nbCh - 1, nbWorkers) pool tasks claim channels from a shared counter; the caller runs any
+channel no worker has picked up yet, so a busy pool only slows the hop down and never blocks it.
+
+getSmoothLogPower() is for the thread calling update(): its arrays are rewritten in place at each
+hop. Another thread (e.g. the one drawing the PSD) reads the smoothed log-PSDs with
+getSnapshot().acquire(), which returns the spectra of all channels from one hop, without locks.
+
+Args:
+nbCh (int) : number of channels
+windowLength (int) : number of samples per FFT window
+fftLength (int) : FFT length (see FFT)
+samplingFrequency (double) : sampling frequency of the input signal, in Hz
+smoothingLength (int) : number of hops averaged by the smoothed log-PSD
+*/
+public class MultiChannelPSD {
+
+    // ------------------------------------------------------------------------
+    // Variables
+
+    private final int nbCh;
+    private final int windowLength;
+    private final FFT fft;
+    private final double[][] window;
+    private final double[][] scratch;
+    private final double[][] logpower;
+    private final PSDBuffer[] psdBuffers;
+    private final double[][] smoothLogPower;
+    private final TripleBuffer snapshot;
+
+    // Parallel hop bookkeeping
+    private final Executor executor;
+    private final int nbWorkers;
+    private final Runnable worker;
+    private final AtomicInteger nextChannel = new AtomicInteger();
+    private final AtomicInteger pendingChannels = new AtomicInteger();
+    private volatile Thread waitingThread;
+
+    // ------------------------------------------------------------------------
+    // Constructors
+
+    // Runs the channels in parallel on the DspRuntime's pool when more than one core is available
+    public MultiChannelPSD(int nbCh, int windowLength, int fftLength, double samplingFrequency, int smoothingLength) {
+        this(nbCh, windowLength, fftLength, samplingFrequency, smoothingLength, defaultExecutor(),
+                Runtime.getRuntime().availableProcessors() - 1);
+    }
+
+    // executor may be null, in which case every channel is computed on the calling thread
+    public MultiChannelPSD(int nbCh, int windowLength, int fftLength, double samplingFrequency, int smoothingLength,
+                           Executor executor, int nbWorkers) {
+        this.nbCh = nbCh;
+        this.windowLength = windowLength;
+        this.executor = executor;
+        this.nbWorkers = (executor == null) ? 0 : Math.max(0, Math.min(nbCh - 1, nbWorkers));
+
+        fft = new FFT(windowLength, fftLength, samplingFrequency);
+        int nbBins = fft.getFreqBins().length;
+
+        window = new double[nbCh][windowLength];
+        scratch = new double[nbCh][fftLength];
+        logpower = new double[nbCh][nbBins];
+        psdBuffers = new PSDBuffer[nbCh];
+        smoothLogPower = new double[nbCh][];
+        for (int c = 0; c < nbCh; c++) {
+            psdBuffers[c] = new PSDBuffer(smoothingLength, nbBins);
+            smoothLogPower[c] = new double[nbBins];
+        }
+        snapshot = new TripleBuffer(nbCh, nbBins);
+
+        worker = new Runnable() {
+            @Override
+            public void run() {
+                computeClaimedChannels();
+            }
+        };
+    }
+
+    // ------------------------------------------------------------------------
+    // Methods
+
+    public void update(CircularBuffer buffer) {
+        // Compute one hop: take the latest windowLength samples of every channel, compute their
+        // log-PSD and update the smoothed log-PSD of each channel.
+
+        buffer.extractInto(window, windowLength);
+
+        if (nbWorkers == 0) {
+            for (int c = 0; c < nbCh; c++) {
+                computeChannel(c);
+            }
+            publishSnapshot();
+            return;
+        }
+
+        waitingThread = Thread.currentThread();
+        pendingChannels.set(nbCh);
+        nextChannel.set(0); // publishes the new windows to the workers
+        for (int i = 0; i < nbWorkers; i++) {
+            executor.execute(worker);
+        }
+
+        computeClaimedChannels();
+        while (pendingChannels.get() > 0) {
+            LockSupport.park(this);
+        }
+        publishSnapshot();
+    }
+
+    // Smoothed log-PSD of one channel. The returned array is rewritten at each hop, so it must only
+    // be read by the thread calling update()
+    public double[] getSmoothLogPower(int channel) {
+        return smoothLogPower[channel];
+    }
+
+    // Smoothed log-PSDs of every channel, [nbCh][nbBins], published after each hop. A single other
+    // thread may acquire() them
+    public TripleBuffer getSnapshot() {
+        return snapshot;
+    }
+
+    // Log-PSD of one channel for the latest hop only
+    public double[] getLogPower(int channel) {
+        return logpower[channel];
+    }
+
+    public double[] getFreqBins() {
+        return fft.getFreqBins();
+    }
+
+    public int getNbCh() {
+        return nbCh;
+    }
+
+    public void clear() {
+        for (int c = 0; c < nbCh; c++) {
+            psdBuffers[c].clear();
+            Arrays.fill(smoothLogPower[c], 0);
+        }
+        publishSnapshot();
+    }
+
+    // Claims and computes channels until none are left for the current hop. Run by the caller
+    // and by the pool workers; a worker that starts after the hop is over finds nothing to do
+    private void computeClaimedChannels() {
+        int c;
+        while ((c = nextChannel.getAndIncrement()) < nbCh) {
+            try {
+                computeChannel(c);
+            } finally {
+                if (pendingChannels.decrementAndGet() == 0) {
+                    LockSupport.unpark(waitingThread);
+                }
+            }
+        }
+    }
+
+    private void computeChannel(int c) {
+        fft.computeLogPSD(window[c], 0, logpower[c], scratch[c]);
+        psdBuffers[c].update(logpower[c]);
+        psdBuffers[c].meanInto(smoothLogPower[c]);
+    }
+
+    private void publishSnapshot() {
+        double[][] back = snapshot.getBackBuffer();
+        for (int c = 0; c < nbCh; c++) {
+            System.arraycopy(smoothLogPower[c], 0, back[c], 0, smoothLogPower[c].length);
+        }
+        snapshot.publish();
+    }
+
+    private static Executor defaultExecutor() {
+        if (Runtime.getRuntime().availableProcessors() < 2) {
+            return null;
+        }
+        return DspRuntime.getInstance().getExecutor();
+    }
+
+    // Example main for testing: serial and parallel engines must give identical spectra
+    public static void main(String[] args) {
+        int nbCh = 4;
+        double fs = 256.;
+        CircularBuffer buffer = new CircularBuffer(512, nbCh);
+        MultiChannelPSD serial = new MultiChannelPSD(nbCh, 256, 256, fs, 20, null, 0);
+        MultiChannelPSD parallel = new MultiChannelPSD(nbCh, 256, 256, fs, 20);
+
+        // Each channel carries a sine at a different frequency
+        double[] sample = new double[nbCh];
+        double maxDiff = 0;
+        int hops = 0;
+        long serialNanos = 0;
+        long parallelNanos = 0;
+        for (int i = 0; i < 256 * 60; i++) {
+            for (int c = 0; c < nbCh; c++) {
+                sample[c] = 800 + 40*Math.sin(2*Math.PI*(6 + 4*c)*i/fs) + 10*Math.random();
+            }
+            buffer.update(sample);
+
+            if (i >= 256 && i % 26 == 0) {
+                long start = System.nanoTime();
+                serial.update(buffer);
+                serialNanos += System.nanoTime() - start;
+                start = System.nanoTime();
+                parallel.update(buffer);
+                parallelNanos += System.nanoTime() - start;
+                hops++;
+
+                for (int c = 0; c < nbCh; c++) {
+                    double[] a = serial.getSmoothLogPower(c);
+                    double[] b = parallel.getSmoothLogPower(c);
+                    for (int k = 0; k < a.length; k++) {
+                        maxDiff = Math.max(maxDiff, Math.abs(a[k] - b[k]));
+                    }
+                }
+            }
+        }
+
+        for (int c = 0; c < nbCh; c++) {
+            double[] psd = parallel.getSmoothLogPower(c);
+            int peak = 1;
+            for (int k = 1; k < psd.length; k++) {
+                if (psd[k] > psd[peak]) peak = k;
+            }
+            System.out.println("Channel " + c + " peak at " + parallel.getFreqBins()[peak] + " Hz");
+        }
+        System.out.println(hops + " hops, serial " + serialNanos / hops / 1000 + " us/hop, parallel "
+                + parallelNanos / hops / 1000 + " us/hop, max difference " + maxDiff);
+    }
+}
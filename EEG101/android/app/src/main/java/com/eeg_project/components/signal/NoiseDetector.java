@@ -1,7 +1,5 @@
 package com.eeg_project.components.signal;
 
-import android.util.Log;
-
 import java.util.Arrays; // For printing arrays when debugging
 
 // This class implements a simple EEG noise detector based on
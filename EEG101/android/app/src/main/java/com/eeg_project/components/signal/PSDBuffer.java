@@ -1,5 +1,7 @@
 package com.eeg_project.components.signal;
 
+import java.util.Arrays;
+
 // This class implements a PSD-specific single channel buffer with methods
 // such as noise marking in a joined buffer, and mean across epochs
 public class PSDBuffer {
@@ -45,6 +47,14 @@ public class PSDBuffer {
         // Compute the mean of the buffer across epochs (1st dimension of `buffer`).
 
         double[] bufferMean = new double[nbBins];
+        meanInto(bufferMean);
+        return bufferMean;
+    }
+
+    public void meanInto(double[] bufferMean) {
+        // Same as mean(), written into bufferMean[nbBins] instead of a new array
+
+        Arrays.fill(bufferMean, 0, nbBins, 0);
         double nbPointsSummed = 0;
 
         for (int i = 0; i <  this.bufferlength; i++) {
@@ -57,8 +67,6 @@ public class PSDBuffer {
         for (int n = 0; n <  nbBins; n++) {
             bufferMean[n] /= nbPointsSummed;
         }
-
-        return bufferMean;
     }
 
     public void clear() {
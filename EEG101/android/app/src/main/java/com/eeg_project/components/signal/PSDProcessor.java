@@ -0,0 +1,74 @@
+package com.eeg_project.components.signal;
+
+/*
+Processing of the PSD graph, with no dependency on any View, so that PSDGraph's pipeline and
+ReplaySource run the same chain
+
+Every new sample is passed to addSamples(), which feeds a BandPowerTracker over the last 256 samples.
+Every getStepSize() samples (~0.1 s), update() computes the log-PSD of the latest 256 raw samples of
+the shared buffer and averages it over the last 20 hops, for every channel (MultiChannelPSD). Both
+must be called from a single thread; the results can be read from any thread.
+
+Args:
+nbCh (int) : number of channels
+samplingFrequency (double) : sampling frequency of the input signal, in Hz (256 or 220 on a Muse)
+*/
+public class PSDProcessor {
+
+    // ------------------------------------------------------------------------
+    // Variables
+
+    private final double samplingFrequency;
+    private final int stepSize;
+    private final MultiChannelPSD psd;
+    private final BandPowerTracker bandPowerTracker;
+    private final double[] row;
+
+    // ------------------------------------------------------------------------
+    // Constructor
+
+    public PSDProcessor(int nbCh, double samplingFrequency) {
+        this.samplingFrequency = samplingFrequency;
+        // Choosing these step sizes arbitrarily based on how they look
+        stepSize = (samplingFrequency == 256) ? 26 : 22;
+        // 256-point FFT, smoothed over 20 hops
+        psd = new MultiChannelPSD(nbCh, 256, 256, samplingFrequency, 20);
+        bandPowerTracker = new BandPowerTracker(nbCh, 256, samplingFrequency);
+        row = new double[nbCh];
+    }
+
+    // ------------------------------------------------------------------------
+    // Methods
+
+    // Feeds the first nbSamples samples of every channel to the band power tracker
+    public void addSamples(double[][] samples, int nbSamples) {
+        for (int i = 0; i < nbSamples; i++) {
+            for (int c = 0; c < row.length; c++) {
+                row[c] = samples[c][i];
+            }
+            bandPowerTracker.update(row);
+        }
+    }
+
+    // Computes the PSD of the latest raw samples of buffer
+    public void update(CircularBuffer buffer) {
+        psd.update(buffer);
+    }
+
+    // Number of new samples between two PSDs
+    public int getStepSize() {
+        return stepSize;
+    }
+
+    public double getSamplingFrequency() {
+        return samplingFrequency;
+    }
+
+    public MultiChannelPSD getPSD() {
+        return psd;
+    }
+
+    public BandPowerTracker getBandPowerTracker() {
+        return bandPowerTracker;
+    }
+}
@@ -0,0 +1,308 @@
+package com.eeg_project.components.signal;
+
+import java.util.Random;
+
+/*
+Butterworth filter implemented as a cascade of second-order sections (biquads)
+
+Same design as Filter (see FilterDesign), but the poles and zeros are kept as pairs instead of
+being multiplied out into one high-order polynomial. A high-order direct form is very sensitive to
+coefficient rounding when the poles are close to z = 1 (low cutoff relative to the sampling
+frequency, e.g. a 2-35 Hz bandpass at 256 Hz); each biquad only depends on one pole pair.
+
+The filter keeps the state of every channel internally, so whole packets can be filtered with
+process() / processInterleaved(), or one frame at a time with transform(), without allocating.
+Each section is a transposed direct form II biquad.
+
+Args:
+samplingFrequency (double) : sampling frequency of the input signal, in Hz
+filterType (String) : "lowpass", "highpass", "bandpass" or "bandstop"
+filterOrder (int) : order of the Butterworth prototype
+fc1 (double) : cutoff frequency (lower one for bandpass and bandstop), in Hz
+fc2 (double) : upper cutoff frequency for bandpass and bandstop, in Hz (ignored otherwise)
+nbCh (int) : number of channels filtered in parallel
+*/
+public class SOSFilter {
+
+    // ------------------------------------------------------------------------
+    // Variables
+
+    private final FilterDesign design;
+    private final int nbCh;
+    private final int nbSections;
+
+    // Coefficients of each section (a0 = 1), shared with every filter of the same design
+    private final double[] b0;
+    private final double[] b1;
+    private final double[] b2;
+    private final double[] a1;
+    private final double[] a2;
+
+    // Two state variables per section and per channel, [channel][2*section + i]
+    private final double[][] state;
+
+    // ------------------------------------------------------------------------
+    // Constructors
+
+    public SOSFilter(double samplingFrequency, String filterType, int filterOrder, double fc1, double fc2, int nbCh) {
+        this(FilterDesign.get(samplingFrequency, filterType, filterOrder, fc1, fc2), nbCh);
+    }
+
+    // Filter with a shared (cached) design; only the state belongs to this filter
+    public SOSFilter(FilterDesign design, int nbCh) {
+        this.design = design;
+        this.nbCh = nbCh;
+        nbSections = design.nbSections;
+        b0 = design.b0;
+        b1 = design.b1;
+        b2 = design.b2;
+        a1 = design.a1;
+        a2 = design.a2;
+        state = new double[nbCh][2*nbSections];
+    }
+
+    // ------------------------------------------------------------------------
+    // Methods
+
+    public double transform(double x, int channel) {
+        // Filter one sample of one channel and return the filtered value
+
+        double[] z = state[channel];
+        double v = x;
+        for (int s = 0; s < nbSections; s++) {
+            double y = b0[s]*v + z[2*s];
+            z[2*s] = b1[s]*v - a1[s]*y + z[2*s + 1];
+            z[2*s + 1] = b2[s]*v - a2[s]*y;
+            v = y;
+        }
+        return v;
+    }
+
+    public void transform(double[] x, double[] y) {
+        // Filter one frame (one sample of every channel). x and y may be the same array
+
+        for (int c = 0; c < nbCh; c++) {
+            y[c] = transform(x[c], c);
+        }
+    }
+
+    public void process(double[][] in, double[][] out, int n) {
+        // Filter the first n samples of every channel, in[channel][sample] -> out[channel][sample].
+        // in and out (or any of their rows) may be the same arrays
+        //
+        // Each section runs over a whole channel before the next one, so its coefficients and
+        // state stay in registers and the samples are read sequentially.
+
+        for (int c = 0; c < nbCh; c++) {
+            double[] x = in[c];
+            double[] y = out[c];
+            if (x.length < n || y.length < n) {
+                throw new IllegalArgumentException("Channel " + c + " has fewer than " + n + " samples.");
+            }
+            if (x != y) {
+                System.arraycopy(x, 0, y, 0, n);
+            }
+
+            double[] z = state[c];
+            for (int s = 0; s < nbSections; s++) {
+                double sb0 = b0[s], sb1 = b1[s], sb2 = b2[s], sa1 = a1[s], sa2 = a2[s];
+                double z1 = z[2*s];
+                double z2 = z[2*s + 1];
+                for (int i = 0; i < n; i++) {
+                    double v = y[i];
+                    double w = sb0*v + z1;
+                    z1 = sb1*v - sa1*w + z2;
+                    z2 = sb2*v - sa2*w;
+                    y[i] = w;
+                }
+                z[2*s] = z1;
+                z[2*s + 1] = z2;
+            }
+        }
+    }
+
+    public void processInterleaved(float[] in, float[] out, int frames) {
+        // Filter `frames` frames of interleaved samples, in[frame*nbCh + channel]. in and out
+        // may be the same array. Intermediate values between sections are kept in double
+        // precision; only the output is rounded to float
+
+        if (in.length < frames*nbCh || out.length < frames*nbCh) {
+            throw new IllegalArgumentException("Input or output has fewer than " + frames + " frames.");
+        }
+
+        int i = 0;
+        for (int f = 0; f < frames; f++) {
+            for (int c = 0; c < nbCh; c++, i++) {
+                out[i] = (float) transform(in[i], c);
+            }
+        }
+    }
+
+    // Forget the past samples of every channel
+    public void reset() {
+        for (int c = 0; c < nbCh; c++) {
+            for (int i = 0; i < state[c].length; i++) {
+                state[c][i] = 0;
+            }
+        }
+    }
+
+    public int getNbSections() {
+        return nbSections;
+    }
+
+    public int getNbCh() {
+        return nbCh;
+    }
+
+    public FilterDesign getDesign() {
+        return design;
+    }
+
+    // Example main for testing: compares the cascade with the direct form Filter for the
+    // settings used by FilterGraph and EEGGraph, and measures the cost of both
+    public static void main(String[] args) {
+        Object[][] settings = {
+                {"lowpass", 5, 35., 0.},
+                {"bandpass", 5, 2., 35.},
+                {"highpass", 2, 1., 0.},
+                {"highpass", 2, .1, 0.},
+                {"bandstop", 5, 55., 65.}};
+        int nbCh = 4;
+        int nbSamples = 256 * 60;
+
+        for (double fs : new double[] {220., 256.}) {
+            // Muse-like test signal: offset, a few sines and noise
+            Random random = new Random(42);
+            double[][] x = new double[nbSamples][nbCh];
+            for (int i = 0; i < nbSamples; i++) {
+                for (int c = 0; c < nbCh; c++) {
+                    x[i][c] = 800 + 40*Math.sin(2*Math.PI*10*i/fs) + 20*Math.sin(2*Math.PI*60*i/fs)
+                            + 10*random.nextGaussian();
+                }
+            }
+
+            for (Object[] setting : settings) {
+                String type = (String) setting[0];
+                int order = (Integer) setting[1];
+                double fc1 = (Double) setting[2];
+                double fc2 = (Double) setting[3];
+                Filter filter = new Filter(fs, type, order, fc1, fc2);
+                SOSFilter sos = new SOSFilter(fs, type, order, fc1, fc2, nbCh);
+
+                // Accuracy: difference between both implementations, relative to the RMS of the
+                // output, over the second half (after the start-up transient)
+                double[][] z = new double[nbCh][filter.getNB()];
+                double[] y = new double[nbCh];
+                double maxDiff = 0;
+                double sumSq = 0;
+                for (int i = 0; i < nbSamples; i++) {
+                    z = filter.transform(x[i], z);
+                    double[] reference = Filter.extractFilteredSamples(z);
+                    sos.transform(x[i], y);
+                    if (i >= nbSamples/2) {
+                        for (int c = 0; c < nbCh; c++) {
+                            maxDiff = Math.max(maxDiff, Math.abs(y[c] - reference[c]));
+                            sumSq += y[c]*y[c];
+                        }
+                    }
+                }
+                double rms = Math.sqrt(sumSq / (nbSamples/2 * nbCh));
+
+                // Cost per 4-channel sample (best of several passes, to leave out JIT warm-up)
+                long filterNanos = Long.MAX_VALUE;
+                long sosNanos = Long.MAX_VALUE;
+                for (int pass = 0; pass < 10; pass++) {
+                    long start = System.nanoTime();
+                    for (int i = 0; i < nbSamples; i++) {
+                        z = filter.transform(x[i], z);
+                        y = Filter.extractFilteredSamples(z);
+                    }
+                    filterNanos = Math.min(filterNanos, (System.nanoTime() - start) / nbSamples);
+                    start = System.nanoTime();
+                    for (int i = 0; i < nbSamples; i++) {
+                        sos.transform(x[i], y);
+                    }
+                    sosNanos = Math.min(sosNanos, (System.nanoTime() - start) / nbSamples);
+                }
+
+                System.out.println(String.format("%s order %d %.1f-%.1f Hz at %.0f Hz: %d sections, max difference "
+                        + "%.2e (output RMS %.3g), Filter %d ns, SOSFilter %d ns per sample",
+                        type, order, fc1, fc2, fs, sos.getNbSections(), maxDiff, rms, filterNanos, sosNanos));
+            }
+        }
+
+        compareBlockProcessing(12);
+    }
+
+    // Block processing must give the same output as frame by frame processing; also compares
+    // their cost for packets of `blockSize` frames (bandpass 5/2-35 Hz at 256 Hz)
+    private static void compareBlockProcessing(int blockSize) {
+        int nbCh = 4;
+        int nbBlocks = 256 * 60 / blockSize;
+        SOSFilter frames = new SOSFilter(256, "bandpass", 5, 2, 35, nbCh);
+        SOSFilter blocks = new SOSFilter(256, "bandpass", 5, 2, 35, nbCh);
+        SOSFilter interleaved = new SOSFilter(256, "bandpass", 5, 2, 35, nbCh);
+
+        Random random = new Random(42);
+        double[][] block = new double[nbCh][blockSize];
+        double[][] expected = new double[nbCh][blockSize];
+        double[] frame = new double[nbCh];
+        float[] packet = new float[blockSize*nbCh];
+        double maxDiff = 0;
+        double maxFloatDiff = 0;
+        for (int k = 0; k < nbBlocks; k++) {
+            for (int i = 0; i < blockSize; i++) {
+                for (int c = 0; c < nbCh; c++) {
+                    block[c][i] = 800 + 40*Math.sin(2*Math.PI*10*(k*blockSize + i)/256.) + 10*random.nextGaussian();
+                    packet[i*nbCh + c] = (float) block[c][i];
+                }
+            }
+            for (int i = 0; i < blockSize; i++) {
+                for (int c = 0; c < nbCh; c++) {
+                    frame[c] = packet[i*nbCh + c];
+                    block[c][i] = packet[i*nbCh + c]; // same (float) input for every method
+                }
+                frames.transform(frame, frame);
+                for (int c = 0; c < nbCh; c++) {
+                    expected[c][i] = frame[c];
+                }
+            }
+            blocks.process(block, block, blockSize);
+            interleaved.processInterleaved(packet, packet, blockSize);
+            for (int i = 0; i < blockSize; i++) {
+                for (int c = 0; c < nbCh; c++) {
+                    maxDiff = Math.max(maxDiff, Math.abs(block[c][i] - expected[c][i]));
+                    maxFloatDiff = Math.max(maxFloatDiff, Math.abs(packet[i*nbCh + c] - expected[c][i]));
+                }
+            }
+        }
+
+        long frameNanos = Long.MAX_VALUE;
+        long blockNanos = Long.MAX_VALUE;
+        long interleavedNanos = Long.MAX_VALUE;
+        for (int pass = 0; pass < 10; pass++) {
+            long start = System.nanoTime();
+            for (int k = 0; k < nbBlocks; k++) {
+                for (int i = 0; i < blockSize; i++) {
+                    frames.transform(frame, frame);
+                }
+            }
+            frameNanos = Math.min(frameNanos, (System.nanoTime() - start) / nbBlocks);
+            start = System.nanoTime();
+            for (int k = 0; k < nbBlocks; k++) {
+                blocks.process(block, block, blockSize);
+            }
+            blockNanos = Math.min(blockNanos, (System.nanoTime() - start) / nbBlocks);
+            start = System.nanoTime();
+            for (int k = 0; k < nbBlocks; k++) {
+                interleaved.processInterleaved(packet, packet, blockSize);
+            }
+            interleavedNanos = Math.min(interleavedNanos, (System.nanoTime() - start) / nbBlocks);
+        }
+
+        System.out.println(String.format("%d-frame packets: process() max difference %.2e, processInterleaved() "
+                + "max difference %.2e; transform() %d ns, process() %d ns, processInterleaved() %d ns per packet",
+                blockSize, maxDiff, maxFloatDiff, frameNanos, blockNanos, interleavedNanos));
+    }
+}
@@ -0,0 +1,290 @@
+package com.eeg_project.components.signal;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+/*
+Multichannel filter whose design can be replaced while samples are streaming
+
+transform() (one frame) and process() (a block of frames) are called by a single filtering thread
+(FilterGraph's pipeline). setFilter() can be called from any thread: it builds the new filter (and
+its state) on the calling thread and publishes it, and the filtering thread switches to it at its
+next frame or block, without any lock or pause.
+
+With warm start, the new filter is first run over the most recent raw samples, so its state is
+already what it would have been had it been running all along and the output has no start-up
+transient. Samples that arrive while the new filter is being prepared are fed to it by the
+filtering thread just before switching, so no sample is skipped.
+
+Until the first filter is set, samples are passed through unchanged.
+
+Args:
+nbCh (int) : number of channels
+historyLength (int) : number of raw samples kept for warm start
+warmUpLength (int) : number of raw samples run through a new filter before it is switched in
+(< historyLength)
+*/
+public class SwappableFilter {
+
+    // ------------------------------------------------------------------------
+    // Variables
+
+    // Size of the blocks used to feed a new filter the samples it missed
+    private static final int CATCH_UP_BLOCK = 32;
+
+    private final int nbCh;
+    private final int warmUpLength;
+
+    // Raw samples, written by the filtering thread
+    private final CircularBuffer rawHistory;
+
+    // Filter in use, only touched by the filtering thread
+    private SOSFilter active;
+    private final AtomicReference<Pending> pending = new AtomicReference<Pending>();
+    private final double[][] catchUp;
+    private final double[] frame;
+
+    private volatile long lastSwitchLatency = -1;
+
+    // New filter waiting to be switched in
+    private static final class Pending {
+        final SOSFilter filter;
+        final long fedUpTo; // sequence number of the first raw sample the filter has not seen
+        final long requestTime;
+
+        Pending(SOSFilter filter, long fedUpTo, long requestTime) {
+            this.filter = filter;
+            this.fedUpTo = fedUpTo;
+            this.requestTime = requestTime;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // Constructor
+
+    public SwappableFilter(int nbCh, int historyLength, int warmUpLength) {
+        if (warmUpLength >= historyLength) {
+            throw new IllegalArgumentException("Warm-up length must be smaller than the history length.");
+        }
+        this.nbCh = nbCh;
+        this.warmUpLength = warmUpLength;
+        rawHistory = new CircularBuffer(historyLength, nbCh);
+        catchUp = new double[nbCh][CATCH_UP_BLOCK];
+        frame = new double[nbCh];
+    }
+
+    // ------------------------------------------------------------------------
+    // Methods
+
+    public void transform(double[] x, double[] y) {
+        // Filter one frame with the current filter. x and y may be the same array. Must always be
+        // called from the same thread
+
+        rawHistory.update(x);
+
+        Pending next = pending.getAndSet(null);
+        if (next != null) {
+            switchTo(next, rawHistory.getSequence() - 1);
+        }
+
+        if (active != null) {
+            active.transform(x, y);
+        } else if (x != y) {
+            System.arraycopy(x, 0, y, 0, nbCh);
+        }
+    }
+
+    public void process(double[][] in, double[][] out, int n) {
+        // Filter the first n samples of every channel, in[channel][sample] -> out[channel][sample],
+        // with the same result as n calls to transform(). in and out may be the same arrays. A new
+        // filter is switched in before the block. Must always be called from the same thread
+
+        Pending next = pending.getAndSet(null);
+        if (next != null) {
+            switchTo(next, rawHistory.getSequence());
+        }
+
+        for (int i = 0; i < n; i++) {
+            for (int c = 0; c < nbCh; c++) {
+                frame[c] = in[c][i];
+            }
+            rawHistory.update(frame);
+        }
+
+        if (active != null) {
+            active.process(in, out, n);
+        } else {
+            for (int c = 0; c < nbCh; c++) {
+                if (in[c] != out[c]) {
+                    System.arraycopy(in[c], 0, out[c], 0, n);
+                }
+            }
+        }
+    }
+
+    public void setFilter(FilterDesign design) {
+        setFilter(design, true);
+    }
+
+    public void setFilter(FilterDesign design, boolean warmStart) {
+        // Prepare a filter with the given design and publish it to the filtering thread. If several
+        // filters are set before the filtering thread picks one up, the last one wins
+
+        SOSFilter filter = new SOSFilter(design, nbCh);
+        long requestTime = System.nanoTime();
+        long end = rawHistory.getSequence();
+
+        if (warmStart) {
+            double[][] history = new double[nbCh][warmUpLength];
+            boolean complete;
+            do {
+                end = rawHistory.getSequence();
+                long first = end - warmUpLength; // samples before the first one count as zeros
+                complete = true;
+                for (int c = 0; c < nbCh && complete; c++) {
+                    complete = rawHistory.extractRangeInto(history[c], 0, c, first, warmUpLength);
+                }
+            } while (!complete);
+            filter.process(history, history, warmUpLength);
+        }
+
+        pending.set(new Pending(filter, end, requestTime));
+    }
+
+    // Time between the last setFilter() call and the first sample filtered by the new filter, in
+    // nanoseconds (-1 before the first switch)
+    public long getLastSwitchLatency() {
+        return lastSwitchLatency;
+    }
+
+    // Feed the pending filter the samples it missed (those before `current`, the sequence number of
+    // the next sample to filter) and make it the active filter
+    private void switchTo(Pending next, long current) {
+        long first = next.fedUpTo;
+        if (current - first >= rawHistory.getBufferLength() - 1) {
+            // Too slow to prepare: the missed samples are gone, switch without them
+            first = current;
+        }
+        while (first < current) {
+            int n = (int) Math.min(CATCH_UP_BLOCK, current - first);
+            for (int c = 0; c < nbCh; c++) {
+                rawHistory.extractRangeInto(catchUp[c], 0, c, first, n);
+            }
+            next.filter.process(catchUp, catchUp, n);
+            first += n;
+        }
+
+        active = next.filter;
+        lastSwitchLatency = System.nanoTime() - next.requestTime;
+    }
+
+    // Example main for testing: a synthetic 256 Hz source is filtered while another thread
+    // cycles through the FilterGraph presets. Reports the switch latency and the largest
+    // difference, after each switch, from a filter that has been running since the start
+    // (the start-up transient), with and without warm start
+    public static void main(String[] args) throws InterruptedException {
+        runSwitchTest(true);
+        runSwitchTest(false);
+    }
+
+    private static void runSwitchTest(final boolean warmStart) throws InterruptedException {
+        final double fs = 256;
+        final int nbCh = 4;
+        final FilterDesign[] designs = {
+                FilterDesign.get(fs, "lowpass", 5, 35, 0),
+                FilterDesign.get(fs, "bandpass", 5, 2, 35),
+                FilterDesign.get(fs, "highpass", 2, 1, 0)};
+        final int nbSwitches = 12;
+        final int switchPeriod = 128; // samples (0.5 s)
+
+        final SwappableFilter swappable = new SwappableFilter(nbCh, 1024, 512);
+        swappable.setFilter(designs[0], warmStart);
+
+        // References run over the whole stream, for each preset
+        final SOSFilter[] references = new SOSFilter[designs.length];
+        for (int d = 0; d < designs.length; d++) {
+            references[d] = new SOSFilter(designs[d], nbCh);
+        }
+
+        final Object lock = new Object();
+        final int[] requested = {0}; // index of the design last requested, guarded by lock
+        final long[] latencies = new long[nbSwitches];
+        final double[] transients = new double[nbSwitches];
+
+        // Source and filtering thread, at the Muse rate (12-sample packets every 47 ms)
+        Thread source = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Random random = new Random(42);
+                double[] x = new double[nbCh];
+                double[] y = new double[nbCh];
+                double[] expected = new double[nbCh];
+                double[] unused = new double[nbCh];
+                int sw = -1;
+                int sinceSwitch = 0;
+                long lastLatency = -1;
+                for (int i = 0; i < (nbSwitches + 1) * switchPeriod; i++) {
+                    for (int c = 0; c < nbCh; c++) {
+                        x[c] = 800 + 40*Math.sin(2*Math.PI*10*i/fs) + 10*random.nextGaussian();
+                    }
+                    swappable.transform(x, y);
+                    int design;
+                    synchronized (lock) {
+                        design = requested[0];
+                    }
+                    for (int d = 0; d < designs.length; d++) {
+                        references[d].transform(x, d == design ? expected : unused);
+                    }
+
+                    // A new latency value means the filter was switched at this sample
+                    long latency = swappable.getLastSwitchLatency();
+                    if (latency != lastLatency && lastLatency != -1) {
+                        sw++;
+                        latencies[sw] = latency;
+                        sinceSwitch = 0;
+                    }
+                    lastLatency = latency;
+
+                    // Transient: output difference over the 100 samples after a switch
+                    if (sw >= 0 && sinceSwitch++ < 100) {
+                        for (int c = 0; c < nbCh; c++) {
+                            transients[sw] = Math.max(transients[sw], Math.abs(y[c] - expected[c]));
+                        }
+                    }
+
+                    if (i % 12 == 11) {
+                        try {
+                            Thread.sleep(47);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            }
+        });
+        source.start();
+
+        // Control thread: switch preset every switchPeriod samples
+        for (int s = 0; s < nbSwitches; s++) {
+            Thread.sleep(switchPeriod * 1000 / 256);
+            int design = (s + 1) % designs.length;
+            synchronized (lock) {
+                requested[0] = design;
+            }
+            swappable.setFilter(designs[design], warmStart);
+        }
+        source.join();
+
+        long maxLatency = 0;
+        long sumLatency = 0;
+        double maxTransient = 0;
+        for (int s = 0; s < nbSwitches; s++) {
+            maxLatency = Math.max(maxLatency, latencies[s]);
+            sumLatency += latencies[s];
+            maxTransient = Math.max(maxTransient, transients[s]);
+        }
+        System.out.println(String.format("%s start: %d switches, latency mean %.1f ms, max %.1f ms, "
+                + "largest start-up transient %.3g uV", warmStart ? "Warm" : "Cold", nbSwitches,
+                sumLatency / nbSwitches / 1e6, maxLatency / 1e6, maxTransient));
+    }
+}
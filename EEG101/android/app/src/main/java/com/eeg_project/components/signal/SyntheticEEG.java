@@ -0,0 +1,414 @@
+package com.eeg_project.components.signal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+Generates EEG-like signals for load and latency testing, in place of a headband
+
+Every channel is the sum of (amplitudes in uV):
+- a constant offset, like the raw samples of the Muse
+- a 1/f (pink) background, from white noise shaped by three first-order filters (Paul Kellet's
+approximation)
+- alpha bursts: a sine wave at the alpha frequency whose amplitude fades in and out, with bursts of
+0.5 to 2 s separated by 0.5 to 3 s, strongest on the temporal electrodes
+- line noise at 50 or 60 Hz, the same on every channel
+- blinks: 300 ms positive bumps on the frontal electrodes, at random times
+- jaw clenches: 0.5 to 1.5 s bursts of broadband (EMG) noise, strongest on the temporal electrodes
+
+For 4 channels the electrodes are the Muse's: TP9, AF7, AF8, TP10 (AF7 and AF8 frontal). With any
+other number of channels every channel gets half of the frontal and half of the temporal artefacts.
+
+libmuse delivers samples in packets of PACKET_SIZE samples, and several packets often arrive back
+to back; nextBurst() reproduces this by returning 1 to maxPacketsPerBurst packets at once.
+
+Generators are not thread-safe: use one per virtual headset.
+
+Args:
+nbCh (int) : number of channels
+samplingFrequency (double) : 220 (Muse 2014) or 256 Hz (Muse 2016)
+seed (long) : seed of the random generator, so a run can be reproduced
+*/
+public class SyntheticEEG {
+
+    // ------------------------------------------------------------------------
+    // Variables
+
+    public static final int PACKET_SIZE = 12;
+    private static final double BLINK_DURATION = 0.3;
+
+    private final int nbCh;
+    private final double samplingFrequency;
+    private final Random random;
+    private final double[] frontalGain;
+    private final double[] temporalGain;
+
+    // Signal parameters
+    private double offset = 800;
+    private double backgroundAmplitude = 10;
+    private double alphaAmplitude = 20;
+    private double alphaFrequency = 10;
+    private double lineNoiseAmplitude = 5;
+    private double lineFrequency = 60;
+    private double blinkRate = 0.2;
+    private double blinkAmplitude = 150;
+    private double clenchRate = 0.05;
+    private double clenchAmplitude = 60;
+    private int maxPacketsPerBurst = 4;
+
+    // Pink noise filter states, per channel
+    private final double[] pink0;
+    private final double[] pink1;
+    private final double[] pink2;
+
+    // Alpha: current and target envelope, and samples left before the envelope changes target
+    private double alphaPhase;
+    private double alphaEnvelope;
+    private double alphaTarget;
+    private long alphaSamplesLeft;
+
+    private double linePhase;
+
+    // Artefacts in progress: position and length in samples (length 0 when there is none)
+    private int blinkPosition;
+    private int blinkLength;
+    private int clenchPosition;
+    private int clenchLength;
+
+    private long nbSamples;
+
+    // ------------------------------------------------------------------------
+    // Constructor
+
+    public SyntheticEEG(int nbCh, double samplingFrequency, long seed) {
+        if (nbCh <= 0 || !(samplingFrequency > 0)) {
+            throw new IllegalArgumentException("Number of channels and sampling frequency must be positive.");
+        }
+        this.nbCh = nbCh;
+        this.samplingFrequency = samplingFrequency;
+        random = new Random(seed);
+
+        frontalGain = new double[nbCh];
+        temporalGain = new double[nbCh];
+        for (int c = 0; c < nbCh; c++) {
+            if (nbCh == 4) {
+                boolean frontal = c == 1 || c == 2;
+                frontalGain[c] = frontal ? 1 : 0.1;
+                temporalGain[c] = frontal ? 0.3 : 1;
+            } else {
+                frontalGain[c] = 0.5;
+                temporalGain[c] = 0.5;
+            }
+        }
+
+        pink0 = new double[nbCh];
+        pink1 = new double[nbCh];
+        pink2 = new double[nbCh];
+        alphaSamplesLeft = nextDuration(0.5, 3);
+    }
+
+    // ------------------------------------------------------------------------
+    // Settings
+
+    public void setOffset(double offset) {
+        this.offset = offset;
+    }
+
+    // Approximate standard deviation of the 1/f background
+    public void setBackgroundAmplitude(double amplitude) {
+        backgroundAmplitude = amplitude;
+    }
+
+    public void setAlpha(double amplitude, double frequency) {
+        alphaAmplitude = amplitude;
+        alphaFrequency = frequency;
+    }
+
+    public void setLineNoise(double amplitude, double frequency) {
+        lineNoiseAmplitude = amplitude;
+        lineFrequency = frequency;
+    }
+
+    // Rates are in events per second
+    public void setBlinks(double rate, double amplitude) {
+        blinkRate = rate;
+        blinkAmplitude = amplitude;
+    }
+
+    public void setJawClenches(double rate, double amplitude) {
+        clenchRate = rate;
+        clenchAmplitude = amplitude;
+    }
+
+    public void setMaxPacketsPerBurst(int maxPacketsPerBurst) {
+        if (maxPacketsPerBurst <= 0) {
+            throw new IllegalArgumentException("Bursts must hold at least one packet.");
+        }
+        this.maxPacketsPerBurst = maxPacketsPerBurst;
+    }
+
+    public int getMaxPacketsPerBurst() {
+        return maxPacketsPerBurst;
+    }
+
+    public int getNbCh() {
+        return nbCh;
+    }
+
+    public double getSamplingFrequency() {
+        return samplingFrequency;
+    }
+
+    // Samples generated so far
+    public long getNbSamples() {
+        return nbSamples;
+    }
+
+    // ------------------------------------------------------------------------
+    // Methods
+
+    public int nextBurst(double[][] out) {
+        // Fill out[0, n) with the next burst of packets, out having at least
+        // maxPacketsPerBurst * PACKET_SIZE rows of nbCh values. Returns n, the number of samples
+
+        int n = (1 + random.nextInt(maxPacketsPerBurst)) * PACKET_SIZE;
+        for (int i = 0; i < n; i++) {
+            nextSample(out[i]);
+        }
+        return n;
+    }
+
+    public void nextSample(double[] out) {
+        // Write the next sample of every channel into out[nbCh]
+
+        double dt = 1 / samplingFrequency;
+
+        // Alpha envelope: switch between bursts and pauses, fading over about 100 ms
+        if (--alphaSamplesLeft <= 0) {
+            boolean burst = alphaTarget == 0;
+            alphaTarget = burst ? 1 : 0;
+            alphaSamplesLeft = burst ? nextDuration(0.5, 2) : nextDuration(0.5, 3);
+        }
+        alphaEnvelope += (alphaTarget - alphaEnvelope) * dt / 0.1;
+        double alpha = alphaAmplitude * alphaEnvelope;
+        alphaPhase = wrap(alphaPhase + 2*Math.PI*alphaFrequency*dt);
+        linePhase = wrap(linePhase + 2*Math.PI*lineFrequency*dt);
+        double line = lineNoiseAmplitude * Math.sin(linePhase);
+
+        // Artefacts start at random times (Poisson process) and are shaped by a Hann window
+        if (blinkLength == 0 && random.nextDouble() < blinkRate * dt) {
+            blinkLength = (int) (BLINK_DURATION * samplingFrequency);
+            blinkPosition = 0;
+        }
+        double blink = 0;
+        if (blinkLength > 0) {
+            blink = blinkAmplitude * hann(blinkPosition, blinkLength);
+            if (++blinkPosition == blinkLength) {
+                blinkLength = 0;
+            }
+        }
+        if (clenchLength == 0 && random.nextDouble() < clenchRate * dt) {
+            clenchLength = nextDuration(0.5, 1.5);
+            clenchPosition = 0;
+        }
+        double clench = 0;
+        if (clenchLength > 0) {
+            clench = clenchAmplitude * hann(clenchPosition, clenchLength);
+            if (++clenchPosition == clenchLength) {
+                clenchLength = 0;
+            }
+        }
+
+        for (int c = 0; c < nbCh; c++) {
+            double white = random.nextGaussian();
+            pink0[c] = 0.99765*pink0[c] + 0.0990460*white;
+            pink1[c] = 0.96300*pink1[c] + 0.2965164*white;
+            pink2[c] = 0.57000*pink2[c] + 1.0526913*white;
+            // The filter's output has a standard deviation of about 3
+            double background = backgroundAmplitude * (pink0[c] + pink1[c] + pink2[c] + 0.1848*white) / 3;
+
+            double v = offset + background + line;
+            v += alpha * temporalGain[c] * Math.sin(alphaPhase + 0.3*c);
+            v += blink * frontalGain[c];
+            if (clench != 0) {
+                v += clench * temporalGain[c] * random.nextGaussian();
+            }
+            out[c] = v;
+        }
+        nbSamples++;
+    }
+
+    private int nextDuration(double min, double max) {
+        return (int) ((min + (max - min) * random.nextDouble()) * samplingFrequency) + 1;
+    }
+
+    private static double hann(int position, int length) {
+        return 0.5 * (1 - Math.cos(2*Math.PI*position / length));
+    }
+
+    private static double wrap(double phase) {
+        return (phase > 2*Math.PI) ? phase - 2*Math.PI : phase;
+    }
+
+    // ------------------------------------------------------------------------
+    // Load test
+
+    // Example main for testing: runs N virtual headsets in parallel, each on its own thread with
+    // its own generator and the Filter -> FFT -> NoiseDetector -> PSDBuffer path (60 Hz bandstop on
+    // every sample; every 26 samples, for every channel, the last 256 samples are checked for
+    // artefacts and, if clean, their log-PSD is added to a PSDBuffer of 20 epochs and averaged).
+    // Samples are released in bursts of packets, at 10x and 100x real time, and for every N the
+    // aggregate throughput, the slowest headset's speed and the latency from the release of a
+    // burst to the end of its processing are reported. A headset that cannot keep up falls behind
+    // its schedule and its latency grows without bound: the first N where that happens is where
+    // throughput saturates. Arguments: sampling frequency (220 or 256, default 256) and the largest
+    // N (default 64)
+    public static void main(String[] args) throws InterruptedException {
+        double fs = (args.length > 0) ? Double.parseDouble(args[0]) : 256;
+        int maxHeadsets = (args.length > 1) ? Integer.parseInt(args[1]) : 64;
+        System.out.println(Runtime.getRuntime().availableProcessors() + " cores, " + fs + " Hz, 4 channels");
+
+        for (double speedup : new double[] {10, 100}) {
+            System.out.println(String.format("%.0fx real time (%.0f samples/s per headset):", speedup, speedup * fs));
+            int saturation = 0;
+            for (int n = 1; n <= maxHeadsets; n *= 2) {
+                List<StressedHeadset> headsets = new ArrayList<StressedHeadset>();
+                List<Thread> threads = new ArrayList<Thread>();
+                for (int i = 0; i < n; i++) {
+                    StressedHeadset headset = new StressedHeadset(fs, speedup, 1000, i);
+                    headsets.add(headset);
+                    threads.add(new Thread(headset, "Headset " + i));
+                }
+                for (Thread thread : threads) {
+                    thread.start();
+                }
+                for (Thread thread : threads) {
+                    thread.join();
+                }
+
+                double samplesPerSecond = 0;
+                double slowest = Double.MAX_VALUE;
+                double meanLatency = 0;
+                double maxLatency = 0;
+                for (StressedHeadset headset : headsets) {
+                    samplesPerSecond += headset.getSpeedup() * fs;
+                    slowest = Math.min(slowest, headset.getSpeedup());
+                    meanLatency += headset.getMeanLatency() / n;
+                    maxLatency = Math.max(maxLatency, headset.maxLatency / 1e6);
+                }
+                boolean keepsUp = slowest >= 0.95 * speedup;
+                if (!keepsUp && saturation == 0) {
+                    saturation = n;
+                }
+                System.out.println(String.format("  %3d headsets: %9.0f samples/s, slowest headset %6.1fx real time, "
+                        + "burst latency mean %7.2f ms, max %8.2f ms%s", n, samplesPerSecond, slowest, meanLatency,
+                        maxLatency, keepsUp ? "" : "  <- saturated"));
+            }
+            System.out.println(saturation == 0 ? "  no saturation up to " + maxHeadsets + " headsets"
+                    : "  saturates at " + saturation + " headsets");
+        }
+    }
+
+    // A virtual headset and its processing, run for a fixed time at a multiple of real time
+    private static final class StressedHeadset implements Runnable {
+        private static final int NB_CH = 4;
+        private static final int WINDOW_LENGTH = 256;
+
+        private final SyntheticEEG generator;
+        private final double speedup;
+        private final long durationNanos;
+        private final int stepSize;
+
+        private final Filter bandstopFilter;
+        private final double[][] filterStates = new double[NB_CH][];
+        private final CircularBuffer eegBuffer = new CircularBuffer(2 * WINDOW_LENGTH, NB_CH);
+        private final NoiseDetector noiseDetector = new NoiseDetector(600);
+        private final FFT fft;
+        private final PSDBuffer[] psdBuffers = new PSDBuffer[NB_CH];
+        private final double[] window = new double[WINDOW_LENGTH];
+        private final double[] filtered = new double[NB_CH];
+        private final double[] logpower;
+        private final double[] scratch;
+
+        long nbSamples;
+        long elapsedNanos;
+        long totalLatency;
+        long maxLatency;
+        long nbBursts;
+        long nbArtefacts;
+
+        StressedHeadset(double fs, double speedup, long durationMillis, long seed) {
+            generator = new SyntheticEEG(NB_CH, fs, seed);
+            this.speedup = speedup;
+            durationNanos = durationMillis * 1000000L;
+            stepSize = (fs == 256) ? 26 : 22;
+
+            bandstopFilter = new Filter(fs, "bandstop", 5, 55, 65);
+            fft = new FFT(WINDOW_LENGTH, WINDOW_LENGTH, fs);
+            logpower = new double[fft.getFreqBins().length];
+            scratch = new double[WINDOW_LENGTH];
+            for (int c = 0; c < NB_CH; c++) {
+                filterStates[c] = new double[bandstopFilter.getNB()];
+                psdBuffers[c] = new PSDBuffer(20, logpower.length);
+            }
+        }
+
+        @Override
+        public void run() {
+            double[][] burst = new double[generator.getMaxPacketsPerBurst() * PACKET_SIZE][NB_CH];
+            double nanosPerSample = 1e9 / (generator.getSamplingFrequency() * speedup);
+            long start = System.nanoTime();
+            long now = start;
+            while (now - start < durationNanos) {
+                // Release time of the burst, relative to the start of the run
+                long due = start + (long) (nbSamples * nanosPerSample);
+                if (due > now) {
+                    LockSupport.parkNanos(due - now);
+                }
+
+                int n = generator.nextBurst(burst);
+                for (int i = 0; i < n; i++) {
+                    process(burst[i]);
+                }
+                nbSamples += n;
+
+                now = System.nanoTime();
+                long latency = now - due;
+                totalLatency += latency;
+                maxLatency = Math.max(maxLatency, latency);
+                nbBursts++;
+            }
+            elapsedNanos = now - start;
+        }
+
+        private void process(double[] sample) {
+            for (int c = 0; c < NB_CH; c++) {
+                filtered[c] = Filter.extractFilteredSamples(bandstopFilter.transform(sample[c], filterStates[c]));
+            }
+            eegBuffer.update(filtered);
+
+            if (eegBuffer.getSequence() % stepSize == 0 && eegBuffer.getSequence() >= WINDOW_LENGTH) {
+                for (int c = 0; c < NB_CH; c++) {
+                    eegBuffer.extractInto(window, c, WINDOW_LENGTH);
+                    if (noiseDetector.detectArtefact(window)) {
+                        nbArtefacts++;
+                        continue;
+                    }
+                    fft.computeLogPSD(window, 0, logpower, scratch);
+                    psdBuffers[c].update(logpower);
+                    psdBuffers[c].mean();
+                }
+            }
+        }
+
+        double getSpeedup() {
+            return nbSamples / (elapsedNanos / 1e9) / generator.getSamplingFrequency();
+        }
+
+        double getMeanLatency() {
+            return totalLatency / 1e6 / Math.max(1, nbBursts);
+        }
+    }
+}
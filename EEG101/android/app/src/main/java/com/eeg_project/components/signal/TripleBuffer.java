@@ -0,0 +1,120 @@
+package com.eeg_project.components.signal;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+Lock-free handoff of [nbRows][rowLength] snapshots (e.g. one spectrum per channel) from one producer
+thread to one consumer thread
+
+There are three buffers: the producer owns the back buffer, the consumer owns the front buffer, and
+the third one is exchanged between them through an atomic swap. The producer fills getBackBuffer()
+and calls publish(), which swaps it with the exchanged buffer. The consumer calls acquire(), which
+swaps its front buffer with the exchanged one if a newer snapshot was published since its last call.
+
+So the consumer always reads a complete snapshot, the most recent one published when it called
+acquire(), and it stays unchanged until its next acquire(). Neither side ever waits for the other or
+allocates. A slow consumer only misses intermediate snapshots.
+
+Args:
+nbRows (int) : number of rows of a snapshot
+rowLength (int) : number of values in each row
+*/
+public class TripleBuffer {
+
+    // ------------------------------------------------------------------------
+    // Variables
+
+    // state holds the index of the exchanged buffer, plus FRESH if the producer published it
+    // after the consumer's last acquire()
+    private static final int INDEX_MASK = 3;
+    private static final int FRESH = 4;
+
+    private final double[][][] buffers;
+    private final AtomicInteger state = new AtomicInteger(1);
+    private int back = 0;   // only used by the producer
+    private int front = 2;  // only used by the consumer
+
+    // ------------------------------------------------------------------------
+    // Constructor
+
+    public TripleBuffer(int nbRows, int rowLength) {
+        buffers = new double[3][nbRows][rowLength];
+    }
+
+    // ------------------------------------------------------------------------
+    // Producer methods
+
+    // Buffer to fill with the next snapshot. Not seen by the consumer until publish()
+    public double[][] getBackBuffer() {
+        return buffers[back];
+    }
+
+    // Makes the back buffer the latest snapshot and hands the producer a free buffer. The new back
+    // buffer holds an older snapshot: rows that are not entirely rewritten must be cleared first
+    public void publish() {
+        back = state.getAndSet(back | FRESH) & INDEX_MASK;
+    }
+
+    // ------------------------------------------------------------------------
+    // Consumer methods
+
+    // Latest published snapshot. It is not modified until the next call to acquire()
+    public double[][] acquire() {
+        if ((state.get() & FRESH) != 0) {
+            front = state.getAndSet(front) & INDEX_MASK;
+        }
+        return buffers[front];
+    }
+
+    // Example main for testing: a producer publishes snapshots whose values all equal the snapshot
+    // number while a consumer acquires them as fast as it can. Every acquired snapshot must be
+    // complete (all values equal) and no older than the previous one
+    public static void main(String[] args) throws InterruptedException {
+        final int nbRows = 4;
+        final int rowLength = 129;
+        final int nbSnapshots = 2000000;
+        final TripleBuffer snapshots = new TripleBuffer(nbRows, rowLength);
+
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int n = 1; n <= nbSnapshots; n++) {
+                    double[][] back = snapshots.getBackBuffer();
+                    for (int r = 0; r < nbRows; r++) {
+                        for (int k = 0; k < rowLength; k++) {
+                            back[r][k] = n;
+                        }
+                    }
+                    snapshots.publish();
+                }
+            }
+        });
+        producer.start();
+
+        long acquired = 0;
+        long torn = 0;
+        long wentBack = 0;
+        double previous = 0;
+        double latest;
+        do {
+            double[][] front = snapshots.acquire();
+            latest = front[0][0];
+            for (int r = 0; r < nbRows; r++) {
+                for (int k = 0; k < rowLength; k++) {
+                    if (front[r][k] != latest) {
+                        torn++;
+                    }
+                }
+            }
+            if (latest < previous) {
+                wentBack++;
+            }
+            previous = latest;
+            acquired++;
+        } while (latest < nbSnapshots);
+        producer.join();
+
+        System.out.println(acquired + " snapshots acquired while " + nbSnapshots + " were published: "
+                + torn + " torn values, " + wentBack + " older than the previous one");
+    }
+}
@@ -0,0 +1,344 @@
+package com.eeg_project.components.signal;
+
+import org.jtransforms.fft.DoubleFFT_1D;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+Welch power spectral density estimator.
+
+The input is split into segments of `segmentLength` samples overlapping by `overlap` samples.
+Each segment is de-meaned, windowed and transformed, and the periodograms are averaged. Compared
+to a single periodogram of the same data this trades frequency resolution for a much lower
+variance.
+
+The output is a one-sided density in (input units)^2/Hz over segmentLength/2 + 1 bins, from 0 Hz
+to Nyquist (see getFreqBins()).
+
+Window coefficients and their power normalization only depend on the window type and segment
+length, so they are computed once and shared by every estimator with the same configuration.
+
+Segments can be read straight from a CircularBuffer into the FFT work array, without copying the
+whole analysis window first.
+
+Args:
+segmentLength (int) : number of samples per segment (also the FFT length)
+overlap (int) : number of samples shared by consecutive segments, in [0, segmentLength)
+windowType (WindowType) : taper applied to each segment
+samplingFrequency (double) : sampling frequency of the input signal, in Hz
+*/
+public class WelchPSD {
+
+    // ------------------------------------------------------------------------
+    // Window types
+
+    public enum WindowType {
+        HAMMING(new double[] {0.54, 0.46}),
+        HANN(new double[] {0.5, 0.5}),
+        BLACKMAN_HARRIS(new double[] {0.35875, 0.48829, 0.14128, 0.01168}),
+        FLAT_TOP(new double[] {0.21557895, 0.41663158, 0.277263158, 0.083578947, 0.006947368});
+
+        // Cosine-sum coefficients: w[n] = a0 - a1*cos(2*pi*n/N) + a2*cos(4*pi*n/N) - ...
+        private final double[] a;
+
+        WindowType(double[] a) {
+            this.a = a;
+        }
+    }
+
+    // Periodic window of a given type and length with its power normalization
+    private static final class Window {
+        final double[] coeffs;
+        final double sumOfSquares;
+
+        Window(WindowType type, int length) {
+            coeffs = new double[length];
+            double sum = 0;
+            for (int n = 0; n < length; n++) {
+                double w = 0;
+                for (int k = 0; k < type.a.length; k++) {
+                    double term = type.a[k]*Math.cos(2*Math.PI*k*n/length);
+                    w += (k % 2 == 0) ? term : -term;
+                }
+                coeffs[n] = w;
+                sum += w*w;
+            }
+            sumOfSquares = sum;
+        }
+    }
+
+    private static final ConcurrentHashMap<String, Window> windowCache = new ConcurrentHashMap<String, Window>();
+
+    // ------------------------------------------------------------------------
+    // Variables
+
+    private final int segmentLength;
+    private final int hop;
+    private final int nbBins;
+    private final double[] window;
+    private final double scale;
+    private final double[] f;
+    private final double[] segment;
+    private final double[] accumulator;
+    private final DoubleFFT_1D fft_1D;
+
+    // ------------------------------------------------------------------------
+    // Constructor
+
+    public WelchPSD(int segmentLength, int overlap, WindowType windowType, double samplingFrequency) {
+        if (overlap < 0 || overlap >= segmentLength) {
+            throw new IllegalArgumentException("Overlap must be in [0, " + segmentLength + "), got " + overlap + ".");
+        }
+
+        this.segmentLength = segmentLength;
+        this.hop = segmentLength - overlap;
+        this.nbBins = segmentLength/2 + 1;
+
+        Window w = getWindow(windowType, segmentLength);
+        window = w.coeffs;
+        scale = 1. / (samplingFrequency * w.sumOfSquares);
+
+        f = new double[nbBins];
+        for (int i = 0; i < nbBins; i++) {
+            f[i] = samplingFrequency * i / segmentLength;
+        }
+
+        segment = new double[segmentLength];
+        accumulator = new double[nbBins];
+        fft_1D = new DoubleFFT_1D(segmentLength);
+    }
+
+    // ------------------------------------------------------------------------
+    // Methods
+
+    // Number of segments used for an input of `length` samples
+    public int getNbSegments(int length) {
+        return (length < segmentLength) ? 0 : (length - segmentLength) / hop + 1;
+    }
+
+    public void computePSD(double[] x, int offset, int length, double[] out) {
+        // Welch PSD of x[offset, offset + length) into out[nbBins]. Segments are aligned to
+        // the end of the input, so the most recent samples are always used.
+
+        int nbSegments = checkSegments(length);
+        int start = offset + length - segmentLength - (nbSegments - 1)*hop;
+
+        clearAccumulator();
+        for (int s = 0; s < nbSegments; s++) {
+            System.arraycopy(x, start + s*hop, segment, 0, segmentLength);
+            accumulateSegment();
+        }
+        finish(nbSegments, out, false);
+    }
+
+    public void computePSD(CircularBuffer buffer, int channel, int length, double[] out) {
+        // Welch PSD of the last `length` samples of `channel` into out[nbBins]. Each segment
+        // is copied directly from the buffer into the FFT work array.
+
+        computeFromBuffer(buffer, channel, length, out, false);
+    }
+
+    public void computeLogPSD(CircularBuffer buffer, int channel, int length, double[] out) {
+        // Same as computePSD(buffer, ...) but returns log10 of the PSD
+        computeFromBuffer(buffer, channel, length, out, true);
+    }
+
+    public double[] getFreqBins() {
+        return f;
+    }
+
+    public int getNbBins() {
+        return nbBins;
+    }
+
+    private void computeFromBuffer(CircularBuffer buffer, int channel, int length, double[] out, boolean log) {
+        // Same limit as CircularBuffer.extract(): the slot being written is never readable, so a
+        // longer input would be reported as overwritten on every attempt
+        if (length >= buffer.getBufferLength()) {
+            throw new IllegalArgumentException("Cannot compute a PSD of " + length + " samples from a buffer of length "
+                    + buffer.getBufferLength() + ".");
+        }
+        int nbSegments = checkSegments(length);
+
+        // All segments are taken relative to one snapshot of the buffer, so they stay aligned
+        // even though new samples arrive meanwhile. If the producer laps the oldest segment
+        // before it is read, start again from a newer snapshot
+        boolean complete;
+        do {
+            long first = buffer.getSequence() - segmentLength - (nbSegments - 1)*hop;
+            clearAccumulator();
+            complete = true;
+            for (int s = 0; s < nbSegments && complete; s++) {
+                complete = buffer.extractRangeInto(segment, 0, channel, first + s*hop, segmentLength);
+                if (complete) {
+                    accumulateSegment();
+                }
+            }
+        } while (!complete);
+
+        finish(nbSegments, out, log);
+    }
+
+    private int checkSegments(int length) {
+        int nbSegments = getNbSegments(length);
+        if (nbSegments == 0) {
+            throw new IllegalArgumentException("Input has " + length + " elements, at least " + segmentLength + " are needed.");
+        }
+        return nbSegments;
+    }
+
+    private void clearAccumulator() {
+        for (int k = 0; k < nbBins; k++) {
+            accumulator[k] = 0;
+        }
+    }
+
+    // De-mean, window and transform `segment`, and add its periodogram to the accumulator
+    private void accumulateSegment() {
+        double mean = 0;
+        for (int i = 0; i < segmentLength; i++) {
+            mean += segment[i];
+        }
+        mean /= segmentLength;
+
+        for (int i = 0; i < segmentLength; i++) {
+            segment[i] = window[i]*(segment[i] - mean);
+        }
+
+        fft_1D.realForward(segment);
+
+        // Packed JTransforms layout: [Re0, Re(N/2), Re1, Im1, ...] for even N,
+        // [Re0, Im((N-1)/2), Re1, Im1, ..., Re((N-1)/2)] for odd N
+        accumulator[0] += segment[0]*segment[0];
+        int last = (segmentLength % 2 == 0) ? nbBins - 1 : nbBins;
+        for (int k = 1; k < last; k++) {
+            double re = segment[2*k];
+            double im = segment[2*k + 1];
+            accumulator[k] += re*re + im*im;
+        }
+        if (segmentLength % 2 == 0) {
+            accumulator[nbBins - 1] += segment[1]*segment[1];
+        } else {
+            double re = segment[segmentLength - 1];
+            double im = segment[1];
+            accumulator[nbBins - 1] += re*re + im*im;
+        }
+    }
+
+    // Average the accumulated periodograms and apply the one-sided density normalization
+    private void finish(int nbSegments, double[] out, boolean log) {
+        double norm = scale / nbSegments;
+        for (int k = 0; k < nbBins; k++) {
+            // Every bin except DC (and Nyquist for even lengths) also holds the negative frequency
+            boolean doubled = k > 0 && !(segmentLength % 2 == 0 && k == nbBins - 1);
+            double p = accumulator[k] * (doubled ? 2*norm : norm);
+            out[k] = log ? Math.log10(p) : p;
+        }
+    }
+
+    private static Window getWindow(WindowType type, int length) {
+        String key = type.name() + ":" + length;
+        Window w = windowCache.get(key);
+        if (w == null) {
+            windowCache.putIfAbsent(key, new Window(type, length));
+            w = windowCache.get(key);
+        }
+        return w;
+    }
+
+    // Example main comparing the variance and cost of the current FFT path with Welch
+    // estimates on white noise (variance of the log10-PSD across independent trials,
+    // averaged over the 4-40 Hz bins)
+    public static void main(String[] args) {
+        double fs = 256.;
+        int trials = 400;
+
+        System.out.println("Single 256-point periodogram (FFT.computeLogPSD): "
+                + benchmarkFFT(fs, trials, 1));
+        System.out.println("FFT path smoothed over 20 hops of 26 samples (PSDGraph): "
+                + benchmarkFFT(fs, trials, 20));
+        System.out.println("Welch, 256 samples, 128-sample Hann segments, 50% overlap: "
+                + benchmarkWelch(fs, trials, 256, 128, 64, WindowType.HANN));
+        System.out.println("Welch, 256 samples, 64-sample Hann segments, 50% overlap: "
+                + benchmarkWelch(fs, trials, 256, 64, 32, WindowType.HANN));
+        System.out.println("Welch, 750 samples, 256-sample Hamming segments, 50% overlap: "
+                + benchmarkWelch(fs, trials, 750, 256, 128, WindowType.HAMMING));
+        System.out.println("Welch, 750 samples, 256-sample Blackman-Harris segments, 75% overlap: "
+                + benchmarkWelch(fs, trials, 750, 256, 192, WindowType.BLACKMAN_HARRIS));
+    }
+
+    private static String benchmarkFFT(double fs, int trials, int hops) {
+        FFT fft = new FFT(256, 256, fs);
+        PSDBuffer psdBuffer = new PSDBuffer(hops, fft.getFreqBins().length);
+        double[] logpower = new double[fft.getFreqBins().length];
+        int length = 256 + (hops - 1)*26;
+        double[][] estimates = new double[trials][];
+        Random random = new Random(42);
+        double[] x = new double[length];
+
+        long nanos = 0;
+        for (int t = 0; t < trials; t++) {
+            whiteNoise(random, x);
+            long start = System.nanoTime();
+            for (int h = 0; h < hops; h++) {
+                fft.computeLogPSD(x, h*26, logpower);
+                psdBuffer.update(logpower);
+            }
+            estimates[t] = psdBuffer.mean();
+            nanos += System.nanoTime() - start;
+        }
+        return report(estimates, fft.getFreqBins(), nanos / trials, length);
+    }
+
+    private static String benchmarkWelch(double fs, int trials, int length, int segmentLength, int overlap, WindowType type) {
+        WelchPSD welch = new WelchPSD(segmentLength, overlap, type, fs);
+        CircularBuffer buffer = new CircularBuffer(1024, 1);
+        double[][] estimates = new double[trials][welch.getNbBins()];
+        Random random = new Random(42);
+        double[] x = new double[length];
+        double[] sample = new double[1];
+
+        long nanos = 0;
+        for (int t = 0; t < trials; t++) {
+            whiteNoise(random, x);
+            for (double v : x) {
+                sample[0] = v;
+                buffer.update(sample);
+            }
+            long start = System.nanoTime();
+            welch.computeLogPSD(buffer, 0, length, estimates[t]);
+            nanos += System.nanoTime() - start;
+        }
+        return report(estimates, welch.getFreqBins(), nanos / trials, length);
+    }
+
+    private static void whiteNoise(Random random, double[] x) {
+        for (int i = 0; i < x.length; i++) {
+            x[i] = 800 + 10*random.nextGaussian();
+        }
+    }
+
+    private static String report(double[][] estimates, double[] f, long nanosPerEstimate, int length) {
+        double variance = 0;
+        int nbBins = 0;
+        for (int k = 0; k < f.length; k++) {
+            if (f[k] < 4 || f[k] > 40) {
+                continue;
+            }
+            double mean = 0;
+            for (double[] e : estimates) {
+                mean += e[k];
+            }
+            mean /= estimates.length;
+            double var = 0;
+            for (double[] e : estimates) {
+                var += (e[k] - mean)*(e[k] - mean);
+            }
+            variance += var / (estimates.length - 1);
+            nbBins++;
+        }
+        return String.format("log-PSD variance %.5f, %d us per estimate over %d samples, %.2f Hz resolution",
+                variance / nbBins, nanosPerEstimate / 1000, length, f[1] - f[0]);
+    }
+}
@@ -0,0 +1,111 @@
+package com.eeg_project.benchmarks;
+
+import com.eeg_project.components.signal.CircBuffer2D;
+import com.eeg_project.components.signal.CircularBuffer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// Cost of writing one sample to the buffers and of the ways the graphs read them back:
+// `nbSamples` is the number of samples read (26: one PSD hop, 256: one PSD window)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BufferBenchmark {
+
+    @Param({"26", "256"})
+    public int nbSamples;
+
+    private double[][] samples;
+    private int index;
+
+    private CircularBuffer buffer;
+    private CircularBuffer.Cursor cursor;
+    private double[] channel;
+    private double[][] channels;
+
+    private CircBuffer2D psdBuffer;
+    private double[][] psd;
+
+    @Setup
+    public void setUp() {
+        samples = Signals.samples();
+        buffer = new CircularBuffer(512, Signals.NB_CH);
+        for (double[] sample : samples) {
+            buffer.update(sample);
+        }
+        cursor = buffer.newCursor();
+        channel = new double[nbSamples];
+        channels = new double[Signals.NB_CH][nbSamples];
+
+        psd = new double[Signals.NB_CH][129];
+        psdBuffer = new CircBuffer2D(512, Signals.NB_CH, 129);
+        for (int i = 0; i < 512; i++) {
+            psdBuffer.update(psd);
+        }
+    }
+
+    @Benchmark
+    public CircularBuffer update() {
+        buffer.update(samples[index++ & Signals.MASK]);
+        return buffer;
+    }
+
+    // Allocates a [nbSamples][nbCh] array
+    @Benchmark
+    public double[][] extract() {
+        return buffer.extract(nbSamples);
+    }
+
+    // Allocates a [nbCh][nbSamples] array
+    @Benchmark
+    public double[][] extractTransposed() {
+        return buffer.extractTransposed(nbSamples);
+    }
+
+    @Benchmark
+    public double[] extractSingleChannelTransposed() {
+        return buffer.extractSingleChannelTransposed(nbSamples, 1);
+    }
+
+    @Benchmark
+    public double[] extractInto() {
+        buffer.extractInto(channel, 0, nbSamples);
+        return channel;
+    }
+
+    // A writer adds nbSamples samples and the reader catches up with readSince()
+    @Benchmark
+    public double[][] updateAndReadSince() {
+        for (int i = 0; i < nbSamples; i++) {
+            buffer.update(samples[index++ & Signals.MASK]);
+        }
+        buffer.readSince(cursor, channels);
+        return channels;
+    }
+
+    @Benchmark
+    public CircBuffer2D update2D() {
+        psdBuffer.update(psd);
+        return psdBuffer;
+    }
+
+    @Benchmark
+    public double[][][] extract2D() {
+        return psdBuffer.extract(nbSamples);
+    }
+}
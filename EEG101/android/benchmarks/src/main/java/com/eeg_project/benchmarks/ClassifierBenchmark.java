@@ -0,0 +1,71 @@
+package com.eeg_project.benchmarks;
+
+import com.eeg_project.components.signal.GaussianNaiveBayesClassifier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Cost of classifying one example and a batch of examples with a two-class model, for feature
+// vectors of band powers (4 channels x 5 bands) and of whole log-PSDs (4 channels x 129 bins)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ClassifierBenchmark {
+
+    private static final int BATCH_SIZE = 100;
+
+    @Param({"20", "516"})
+    public int nbFeatures;
+
+    private GaussianNaiveBayesClassifier classifier;
+    private double[][] example;
+    private double[][] batch;
+
+    @Setup
+    public void setUp() {
+        // Two Gaussian classes one standard deviation apart
+        Random random = new Random(42);
+        int nbTrain = 200;
+        double[][] X = new double[nbTrain][nbFeatures];
+        int[] y = new int[nbTrain];
+        for (int i = 0; i < nbTrain; i++) {
+            y[i] = i % 2;
+            for (int k = 0; k < nbFeatures; k++) {
+                X[i][k] = y[i] + random.nextGaussian();
+            }
+        }
+        classifier = new GaussianNaiveBayesClassifier();
+        classifier.fit(X, y);
+
+        batch = new double[BATCH_SIZE][];
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            batch[i] = X[i];
+        }
+        example = new double[][] {X[0]};
+    }
+
+    @Benchmark
+    public int[] predictOne() {
+        return classifier.predict(example);
+    }
+
+    @Benchmark
+    public int[] predictBatch() {
+        return classifier.predict(batch);
+    }
+}
@@ -0,0 +1,131 @@
+package com.eeg_project.benchmarks;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+Compares two JMH result files (-rf json) benchmark by benchmark, to spot regressions between two
+versions of the signal package
+
+Prints the score of every benchmark found in both files and its relative change, and exits with
+status 1 if any benchmark got worse by more than the threshold (10% by default). Scores per
+operation (e.g. us/op) are better when lower, throughputs (e.g. ops/s) when higher.
+
+Usage: CompareResults <baseline.json> <current.json> [threshold in %]
+*/
+public class CompareResults {
+
+    private static final Pattern BENCHMARK = Pattern.compile("\"benchmark\"\\s*:\\s*\"([^\"]+)\"");
+    private static final Pattern PARAMS = Pattern.compile("\"params\"\\s*:\\s*\\{([^}]*)\\}");
+    private static final Pattern PARAM = Pattern.compile("\"([^\"]+)\"\\s*:\\s*\"([^\"]*)\"");
+    private static final Pattern PRIMARY_METRIC = Pattern.compile(
+            "\"primaryMetric\"\\s*:\\s*\\{\\s*\"score\"\\s*:\\s*([-0-9.eE+]+|\"NaN\")");
+    private static final Pattern SCORE_UNIT = Pattern.compile("\"scoreUnit\"\\s*:\\s*\"([^\"]+)\"");
+
+    // Score and unit of one benchmark run
+    private static final class Score {
+        final double value;
+        final String unit;
+
+        Score(double value, String unit) {
+            this.value = value;
+            this.unit = unit;
+        }
+
+        boolean lowerIsBetter() {
+            return unit.endsWith("/op");
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: CompareResults <baseline.json> <current.json> [threshold in %]");
+            System.exit(2);
+        }
+        double threshold = (args.length > 2) ? Double.parseDouble(args[2]) : 10;
+        Map<String, Score> baseline = read(new File(args[0]));
+        Map<String, Score> current = read(new File(args[1]));
+
+        int nbRegressions = 0;
+        for (Map.Entry<String, Score> entry : current.entrySet()) {
+            Score before = baseline.get(entry.getKey());
+            Score after = entry.getValue();
+            if (before == null) {
+                System.out.println(String.format("%-90s %12s -> %12.3f %s (new)", entry.getKey(), "", after.value,
+                        after.unit));
+                continue;
+            }
+            double change = 100 * (after.value - before.value) / before.value;
+            boolean regression = after.lowerIsBetter() ? change > threshold : change < -threshold;
+            if (regression) {
+                nbRegressions++;
+            }
+            System.out.println(String.format("%-90s %12.3f -> %12.3f %s (%+.1f%%)%s", entry.getKey(), before.value,
+                    after.value, after.unit, change, regression ? "  REGRESSION" : ""));
+        }
+        System.out.println(nbRegressions + " regression(s) above " + threshold + "%");
+        System.exit(nbRegressions > 0 ? 1 : 0);
+    }
+
+    // Scores by "benchmark [param=value, ...]"
+    static Map<String, Score> read(File file) throws IOException {
+        String json = readFile(file);
+        Map<String, Score> scores = new LinkedHashMap<String, Score>();
+        Matcher benchmark = BENCHMARK.matcher(json);
+        if (!benchmark.find()) {
+            return scores;
+        }
+        while (true) {
+            String name = benchmark.group(1);
+            int start = benchmark.end();
+            boolean last = !benchmark.find();
+            String run = json.substring(start, last ? json.length() : benchmark.start());
+
+            StringBuilder key = new StringBuilder(name);
+            Matcher params = PARAMS.matcher(run);
+            if (params.find()) {
+                Matcher param = PARAM.matcher(params.group(1));
+                String separator = " [";
+                while (param.find()) {
+                    key.append(separator).append(param.group(1)).append('=').append(param.group(2));
+                    separator = ", ";
+                }
+                key.append(']');
+            }
+            Matcher score = PRIMARY_METRIC.matcher(run);
+            Matcher unit = SCORE_UNIT.matcher(run);
+            if (score.find() && unit.find()) {
+                String value = score.group(1);
+                scores.put(key.toString(), new Score(value.startsWith("\"") ? Double.NaN : Double.parseDouble(value),
+                        unit.group(1)));
+            }
+            if (last) {
+                return scores;
+            }
+        }
+    }
+
+    private static String readFile(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] bytes = new byte[(int) file.length()];
+            int n = 0;
+            while (n < bytes.length) {
+                int read = in.read(bytes, n, bytes.length - n);
+                if (read < 0) {
+                    break;
+                }
+                n += read;
+            }
+            return new String(bytes, 0, n, "UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.eeg_project.benchmarks;
+
+import com.eeg_project.components.signal.FFT;
+import com.eeg_project.components.signal.WelchPSD;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// Cost of the log-PSD of one channel window, for several FFT lengths (the window is as long as the
+// FFT; the graphs use 256)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FFTBenchmark {
+
+    @Param({"128", "256", "512", "1024"})
+    public int fftLength;
+
+    private FFT fft;
+    private WelchPSD welch;
+    private double[] window;
+    private double[] logpower;
+
+    @Setup
+    public void setUp() {
+        fft = new FFT(fftLength, fftLength, Signals.SAMPLING_FREQUENCY);
+        welch = new WelchPSD(fftLength / 4, fftLength / 8, WelchPSD.WindowType.HAMMING, Signals.SAMPLING_FREQUENCY);
+        double[][] samples = Signals.samples();
+        window = new double[fftLength];
+        for (int i = 0; i < fftLength; i++) {
+            window[i] = samples[i][0];
+        }
+        logpower = new double[fftLength];
+    }
+
+    // Allocates the output and the intermediate arrays
+    @Benchmark
+    public double[] logPSD() {
+        return fft.computeLogPSD(window);
+    }
+
+    @Benchmark
+    public double[] logPSDInto() {
+        fft.computeLogPSD(window, 0, logpower);
+        return logpower;
+    }
+
+    // Welch estimate over the same window, with segments of a quarter of it overlapping by half
+    @Benchmark
+    public double[] welchPSD() {
+        welch.computePSD(window, 0, fftLength, logpower);
+        return logpower;
+    }
+}
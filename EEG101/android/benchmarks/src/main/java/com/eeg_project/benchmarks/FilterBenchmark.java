@@ -0,0 +1,76 @@
+package com.eeg_project.benchmarks;
+
+import com.eeg_project.components.signal.Filter;
+import com.eeg_project.components.signal.FilterDesign;
+import com.eeg_project.components.signal.SOSFilter;
+import com.eeg_project.components.signal.SwappableFilter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// Cost of filtering one 4-channel sample, with the filters and designs used by the graphs
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FilterBenchmark {
+
+    // "bandstop": 5th order 55-65 Hz (EEGGraph), "bandpass": 5th order 2-35 Hz (FilterGraph)
+    @Param({"bandstop", "bandpass"})
+    public String filterType;
+
+    private double[][] samples;
+    private int index;
+    private final double[] filtered = new double[Signals.NB_CH];
+
+    private Filter filter;
+    private double[][] filterStates;
+    private SOSFilter sosFilter;
+    private SwappableFilter swappableFilter;
+
+    @Setup
+    public void setUp() {
+        samples = Signals.samples();
+        double fc1 = "bandstop".equals(filterType) ? 55 : 2;
+        double fc2 = "bandstop".equals(filterType) ? 65 : 35;
+        FilterDesign design = FilterDesign.get(Signals.SAMPLING_FREQUENCY, filterType, 5, fc1, fc2);
+
+        filter = new Filter(Signals.SAMPLING_FREQUENCY, filterType, 5, fc1, fc2);
+        filterStates = new double[Signals.NB_CH][filter.getNB()];
+        sosFilter = new SOSFilter(design, Signals.NB_CH);
+        swappableFilter = new SwappableFilter(Signals.NB_CH, 1024, 512);
+        swappableFilter.setFilter(design);
+    }
+
+    // Direct form II transposed filter over the whole transfer function
+    @Benchmark
+    public double[][] directForm() {
+        return filter.transform(samples[index++ & Signals.MASK], filterStates);
+    }
+
+    @Benchmark
+    public double[] secondOrderSections() {
+        sosFilter.transform(samples[index++ & Signals.MASK], filtered);
+        return filtered;
+    }
+
+    // SOSFilter behind the history kept to swap designs (FilterGraph)
+    @Benchmark
+    public double[] swappable() {
+        swappableFilter.transform(samples[index++ & Signals.MASK], filtered);
+        return filtered;
+    }
+}
@@ -0,0 +1,108 @@
+package com.eeg_project.benchmarks;
+
+import com.eeg_project.components.signal.BandPowerTracker;
+import com.eeg_project.components.signal.CircularBuffer;
+import com.eeg_project.components.signal.FFT;
+import com.eeg_project.components.signal.MultiChannelPSD;
+import com.eeg_project.components.signal.NoiseDetector;
+import com.eeg_project.components.signal.PSDBuffer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// Cost of one PSD hop as done by PSDGraph (256-sample windows, 256-point FFT, smoothed over 20
+// hops), of its parts, and of the per-sample band power update
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PSDBenchmark {
+
+    private static final int WINDOW_LENGTH = 256;
+    private static final int SMOOTHING_LENGTH = 20;
+
+    private double[][] samples;
+    private int index;
+    private CircularBuffer buffer;
+
+    private MultiChannelPSD sequentialPSD;
+    private MultiChannelPSD parallelPSD;
+
+    private FFT fft;
+    private double[] window;
+    private double[] logpower;
+    private PSDBuffer psdBuffer;
+    private NoiseDetector noiseDetector;
+    private BandPowerTracker bandPowerTracker;
+
+    @Setup
+    public void setUp() {
+        samples = Signals.samples();
+        buffer = new CircularBuffer(512, Signals.NB_CH);
+        for (double[] sample : samples) {
+            buffer.update(sample);
+        }
+
+        sequentialPSD = new MultiChannelPSD(Signals.NB_CH, WINDOW_LENGTH, WINDOW_LENGTH, Signals.SAMPLING_FREQUENCY,
+                SMOOTHING_LENGTH, null, 0);
+        parallelPSD = new MultiChannelPSD(Signals.NB_CH, WINDOW_LENGTH, WINDOW_LENGTH, Signals.SAMPLING_FREQUENCY,
+                SMOOTHING_LENGTH);
+
+        fft = new FFT(WINDOW_LENGTH, WINDOW_LENGTH, Signals.SAMPLING_FREQUENCY);
+        window = new double[WINDOW_LENGTH];
+        buffer.extractInto(window, 0, WINDOW_LENGTH);
+        logpower = new double[fft.getFreqBins().length];
+        fft.computeLogPSD(window, 0, logpower);
+        psdBuffer = new PSDBuffer(SMOOTHING_LENGTH, logpower.length);
+        for (int i = 0; i < SMOOTHING_LENGTH; i++) {
+            psdBuffer.update(logpower);
+        }
+        noiseDetector = new NoiseDetector(600);
+        bandPowerTracker = new BandPowerTracker(Signals.NB_CH, WINDOW_LENGTH, Signals.SAMPLING_FREQUENCY);
+    }
+
+    // All 4 channels on the calling thread
+    @Benchmark
+    public MultiChannelPSD multiChannelHop() {
+        sequentialPSD.update(buffer);
+        return sequentialPSD;
+    }
+
+    // All 4 channels, spread over the shared pool when there is more than one core
+    @Benchmark
+    public MultiChannelPSD parallelMultiChannelHop() {
+        parallelPSD.update(buffer);
+        return parallelPSD;
+    }
+
+    // Smoothing of one channel: add the new log-PSD and average the last 20
+    @Benchmark
+    public double[] smoothing() {
+        psdBuffer.update(logpower);
+        return psdBuffer.mean();
+    }
+
+    // Artefact check of one channel window
+    @Benchmark
+    public boolean noiseDetection() {
+        return noiseDetector.detectArtefact(window);
+    }
+
+    @Benchmark
+    public BandPowerTracker bandPowerUpdate() {
+        bandPowerTracker.update(samples[index++ & Signals.MASK]);
+        return bandPowerTracker;
+    }
+}
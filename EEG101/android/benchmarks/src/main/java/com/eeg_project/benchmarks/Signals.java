@@ -0,0 +1,28 @@
+package com.eeg_project.benchmarks;
+
+import com.eeg_project.components.signal.SyntheticEEG;
+
+// Input shared by the benchmarks: 4-channel EEG at 256 Hz from SyntheticEEG, always with the same
+// seed so every run (and every version) measures the same data
+final class Signals {
+
+    static final int NB_CH = 4;
+    static final double SAMPLING_FREQUENCY = 256;
+
+    // Number of samples generated, a power of 2 so benchmarks can cycle through them with a mask
+    static final int LENGTH = 4096;
+    static final int MASK = LENGTH - 1;
+
+    private Signals() {
+    }
+
+    // [LENGTH][NB_CH] samples, one row per time point
+    static double[][] samples() {
+        SyntheticEEG generator = new SyntheticEEG(NB_CH, SAMPLING_FREQUENCY, 42);
+        double[][] samples = new double[LENGTH][NB_CH];
+        for (double[] sample : samples) {
+            generator.nextSample(sample);
+        }
+        return samples;
+    }
+}
@@ -0,0 +1,7 @@
+// Acquisition.js
+//  Exposes AcquisitionModule.java to JS: getStatus() resolves to whether a Muse is streaming into
+//  the shared acquisition hub, the number of samples received, and each consumer's backlog
+
+import { NativeModules } from 'react-native';
+
+module.exports = NativeModules.Acquisition;
@@ -11,6 +11,7 @@ const iface = {
         channelOfInterest: PropTypes.number,
         graphType: PropTypes.string,
         isRecording: PropTypes.bool,
+        recordingFormat: PropTypes.string, // "csv" (default), "binary" or "compressed"
     ...View.propTypes // include the default view properties
   },
 };
@@ -0,0 +1,11 @@
+// Latency.js
+//  Exposes LatencyModule.java to JS: getLatencies() resolves to the p50/p99/max sample-to-plot
+//  latencies (ms) of every graph, resetLatencies() starts them over
+//  getRenderMetrics() resolves to the frame and redraw counts and draw times of the shared plot
+//  render scheduler, setTargetFrameRate(fps) caps how often plots are redrawn
+//  getProcessingMetrics() resolves to the live and busy threads, running pipelines and utilisation of
+//  the shared DSP worker pool
+
+import { NativeModules } from 'react-native';
+
+module.exports = NativeModules.Latency;
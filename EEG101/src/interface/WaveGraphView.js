@@ -145,6 +145,7 @@ WaveGraphView.propTypes = {
   visibility: PropTypes.bool,
   channelOfInterest: PropTypes.number,
   isRecording: PropTypes.bool,
+  recordingFormat: PropTypes.string, // "csv" (default), "binary" or "compressed"
   ...View.propTypes // include the default view properties
 };
 